@@ -45,6 +45,8 @@ import io.tidepool.urchin.data.Profile;
 import io.tidepool.urchin.data.Session;
 import io.tidepool.urchin.data.SharedUserId;
 import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.storage.AccountStore;
+import io.tidepool.urchin.storage.NoteStore;
 import io.tidepool.urchin.util.HashtagUtils;
 import io.tidepool.urchin.util.Log;
 import io.tidepool.urchin.util.MiscUtils;
@@ -59,6 +61,8 @@ public class APIClientTest extends AndroidTestCase {
                 .build();
         Realm.deleteRealm(mRealmConfiguration);
         Realm.setDefaultConfiguration(mRealmConfiguration);
+        NoteStore.initialize(getContext(), mRealmConfiguration);
+        AccountStore.initialize(getContext(), APIClient.DEVELOPMENT);
 
         _setUpAPIClient(APIClient.DEVELOPMENT);
     }
@@ -298,7 +302,7 @@ public class APIClientTest extends AndroidTestCase {
         try {
             Note note = new Note();
             note.setMessagetext("New note added from test.");
-            note.setTimestamp(new Date());
+            note.setTimestamp(new Date().getTime());
             note.setGroupid(mAPIClient.getUser().getUserid());
             note.setUserid(mAPIClient.getUser().getUserid());
             note.setAuthorFullName(MiscUtils.getPrintableNameForUser(mAPIClient.getUser()));
@@ -0,0 +1,103 @@
+package io.tidepool.urchin;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.api.APIClient;
+import io.tidepool.urchin.data.SyncState;
+import io.tidepool.urchin.storage.AccountStore;
+
+@RunWith(AndroidJUnit4.class)
+public class AccountStoreTest {
+    private static final String USERNAME = "clinician@example.com";
+    private static final String PASSWORD = "correct horse";
+
+    private Context mContext;
+    private AccountStore mAccountStore;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        AccountStore.initialize(mContext, APIClient.DEVELOPMENT);
+        mAccountStore = AccountStore.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        // Nothing locked may stay behind
+        mAccountStore.setBudget(0, 0);
+        mAccountStore.setBudget(AccountStore.DEFAULT_MAX_BYTES, AccountStore.DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    @Test
+    public void testSameAccountReopensCache() {
+        RealmConfiguration configuration = mAccountStore.unlock(USERNAME, PASSWORD);
+        assertThat(configuration.getEncryptionKey(), notNullValue());
+        writeSyncState(configuration);
+        mAccountStore.lock();
+        assertThat(mAccountStore.isAccountOpen(), is(false));
+
+        // The file is still there, and the same password opens it
+        assertThat(new File(configuration.getPath()).exists(), is(true));
+        RealmConfiguration reopened = mAccountStore.unlock(USERNAME.toUpperCase(), PASSWORD);
+        assertThat(reopened.getPath(), is(configuration.getPath()));
+        assertThat(countSyncStates(reopened), is(1L));
+        mAccountStore.lock();
+    }
+
+    @Test
+    public void testChangedPasswordStartsAgain() {
+        RealmConfiguration configuration = mAccountStore.unlock(USERNAME, PASSWORD);
+        writeSyncState(configuration);
+        mAccountStore.lock();
+
+        RealmConfiguration reopened = mAccountStore.unlock(USERNAME, "new password");
+        assertThat(countSyncStates(reopened), is(0L));
+        mAccountStore.lock();
+    }
+
+    @Test
+    public void testBudgetDeletesLockedCaches() {
+        RealmConfiguration configuration = mAccountStore.unlock(USERNAME, PASSWORD);
+        mAccountStore.lock();
+        assertThat(new File(configuration.getPath()).exists(), is(true));
+
+        mAccountStore.setBudget(0, AccountStore.DEFAULT_MAX_AGE_MILLIS);
+        assertThat(new File(configuration.getPath()).exists(), is(false));
+    }
+
+    private static void writeSyncState(RealmConfiguration configuration) {
+        Realm realm = Realm.getInstance(configuration);
+        try {
+            realm.beginTransaction();
+            SyncState state = realm.createObject(SyncState.class);
+            state.setUserId(RealmFixtures.PATIENT_ID);
+            state.setSyncedTo(RealmFixtures.NOTE_TIME);
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+    }
+
+    private static long countSyncStates(RealmConfiguration configuration) {
+        Realm realm = Realm.getInstance(configuration);
+        try {
+            return realm.where(SyncState.class).count();
+        } finally {
+            realm.close();
+        }
+    }
+}
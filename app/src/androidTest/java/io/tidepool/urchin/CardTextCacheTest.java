@@ -0,0 +1,65 @@
+package io.tidepool.urchin;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Color;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.ui.CardTextCache;
+
+@RunWith(AndroidJUnit4.class)
+public class CardTextCacheTest {
+    private CardTextCache mCache;
+    private Note mNote;
+
+    @Before
+    public void setUp() {
+        mCache = new CardTextCache(Color.BLUE);
+        mNote = new Note();
+        mNote.setId("note-1");
+        mNote.setMessagetext("Bolus for #pizza");
+        mNote.setAuthorFullName("Alice");
+        mNote.setGroupFullName("Bob");
+        mNote.setTimestamp(RealmFixtures.NOTE_TIME);
+    }
+
+    @After
+    public void tearDown() {
+        mCache.shutdown();
+    }
+
+    @Test
+    public void testStylesCardText() {
+        CardTextCache.CardText text = mCache.get(mNote, 1);
+        assertThat(text.author, is("Alice to Bob"));
+        assertThat(text.body.toString(), is("Bolus for #pizza"));
+        Spanned body = (Spanned) text.body;
+        assertThat(body.getSpans(0, body.length(), ForegroundColorSpan.class).length, is(1));
+    }
+
+    @Test
+    public void testReusesTextUntilContentChanges() {
+        CardTextCache.CardText text = mCache.get(mNote, 1);
+        assertThat(mCache.get(mNote, 1), sameInstance(text));
+
+        mNote.setMessagetext("Edited #pizza");
+        assertThat(mCache.get(mNote, 2).body.toString(), is("Edited #pizza"));
+    }
+
+    @Test
+    public void testTrimMemoryEvicts() {
+        CardTextCache.CardText text = mCache.get(mNote, 1);
+        mCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        assertThat(mCache.get(mNote, 1), not(sameInstance(text)));
+    }
+}
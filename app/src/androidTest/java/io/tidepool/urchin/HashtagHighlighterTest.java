@@ -0,0 +1,59 @@
+package io.tidepool.urchin;
+
+import android.graphics.Color;
+import android.support.test.runner.AndroidJUnit4;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import io.tidepool.urchin.ui.HashtagHighlighter;
+
+@RunWith(AndroidJUnit4.class)
+public class HashtagHighlighterTest {
+    private SpannableStringBuilder mText;
+
+    @Before
+    public void setUp() {
+        mText = new SpannableStringBuilder();
+        mText.setSpan(new HashtagHighlighter(Color.BLUE), 0, 0, SpannableStringBuilder.SPAN_INCLUSIVE_INCLUSIVE);
+    }
+
+    @Test
+    public void testHighlightsWhileTyping() {
+        String typed = "Bolus for #pizza";
+        for (int i = 0; i < typed.length(); i++) {
+            mText.append(typed.charAt(i));
+        }
+        assertThat(getHighlighted(), is(new String[]{"#pizza"}));
+    }
+
+    @Test
+    public void testEditsOnlyChangeTouchedWords() {
+        mText.append("#lowbg at #school");
+        ForegroundColorSpan first = mText.getSpans(0, 1, ForegroundColorSpan.class)[0];
+
+        // Breaking the second tag with a space leaves the first span alone
+        mText.insert(13, " ");
+        assertThat(getHighlighted(), is(new String[]{"#lowbg", "#sc"}));
+        assertThat(mText.getSpans(0, 1, ForegroundColorSpan.class)[0], sameInstance(first));
+
+        // Joining it to a word means it's no longer a tag
+        mText.delete(9, 10);
+        assertThat(getHighlighted(), is(new String[]{"#lowbg"}));
+    }
+
+    private String[] getHighlighted() {
+        ForegroundColorSpan[] spans = mText.getSpans(0, mText.length(), ForegroundColorSpan.class);
+        String[] tags = new String[spans.length];
+        for (int i = 0; i < spans.length; i++) {
+            tags[i] = mText.subSequence(mText.getSpanStart(spans[i]), mText.getSpanEnd(spans[i])).toString();
+        }
+        return tags;
+    }
+}
@@ -16,9 +16,14 @@ import static org.hamcrest.Matchers.*;
 import org.junit.runner.RunWith;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 import io.tidepool.urchin.R;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.util.HashtagScanner;
 import io.tidepool.urchin.util.HashtagUtils;
 
 @RunWith(AndroidJUnit4.class)
@@ -41,21 +46,69 @@ public class HashtagUtilsTest {
         assertThat(spans.length, is(0));
     }
 
-    // TODO: my - Need to fix HashtagUtils per comment below and then re-enable this test. Log a Trello bug first.
-//    @Test
-//    public void testWithHashtags() {
-//        SpannableString text = new SpannableString("This #is text #that? does #contain! #hashtags. #hashtags are present.");
-//        HashtagUtils.formatHashtags(text, 0, true);
-//        StyleSpan[] spans = text.getSpans(0, text.length(), StyleSpan.class);
-//
-//        assertThat(spans.length, is(5));
-//
-//        testStyleSpan(text, spans[0], 5, 8, Typeface.BOLD);
-//        testStyleSpan(text, spans[1], 14, 19, Typeface.BOLD); // TODO: my - failing, need to fix formatter to stop on puncutation, not just whitespace
-//        testStyleSpan(text, spans[1], 26, 34, Typeface.BOLD);
-//        testStyleSpan(text, spans[1], 36, 45, Typeface.BOLD);
-//        testStyleSpan(text, spans[1], 47, 56, Typeface.BOLD);
-//    }
+    @Test
+    public void testParseAndFormatAgree() {
+        String message = "#start a#b # #one  #two\n#three";
+        int[] offsets = HashtagUtils.findHashtags(message);
+        assertThat(offsets, is(new int[]{0, 6, 13, 17, 19, 23, 24, 30}));
+
+        List<Hashtag> tags = HashtagUtils.parseHashtags(message);
+        assertThat(tags.size(), is(4));
+        assertThat(tags.get(2).getTag(), is("#two"));
+
+        SpannableString text = new SpannableString(message);
+        HashtagUtils.formatHashtags(text, 0, true);
+        StyleSpan[] spans = text.getSpans(0, text.length(), StyleSpan.class);
+        assertThat(spans.length, is(4));
+        for (int i = 0; i < spans.length; i++) {
+            testStyleSpan(text, spans[i], offsets[i * 2], offsets[i * 2 + 1], Typeface.BOLD);
+        }
+    }
+
+    @Test
+    public void testPackedOffsetsRoundTrip() {
+        int[] offsets = {0, 6, 14, 18, 200, 300, 70000, 70010};
+        byte[] packed = HashtagUtils.packOffsets(offsets);
+        assertThat(packed.length, lessThan(offsets.length * 4));
+        assertThat(HashtagUtils.unpackOffsets(packed), is(offsets));
+        assertThat(HashtagUtils.unpackOffsets(HashtagUtils.packOffsets(new int[0])).length, is(0));
+    }
+
+    @Test
+    public void testWithHashtags() {
+        SpannableString text = new SpannableString("This #is text #that? does #contain! #hashtags. #hashtags are present.");
+        HashtagUtils.formatHashtags(text, 0, true);
+        StyleSpan[] spans = text.getSpans(0, text.length(), StyleSpan.class);
+
+        assertThat(spans.length, is(5));
+
+        testStyleSpan(text, spans[0], 5, 8, Typeface.BOLD);
+        testStyleSpan(text, spans[1], 14, 19, Typeface.BOLD);
+        testStyleSpan(text, spans[2], 26, 34, Typeface.BOLD);
+        testStyleSpan(text, spans[3], 36, 45, Typeface.BOLD);
+        testStyleSpan(text, spans[4], 47, 56, Typeface.BOLD);
+    }
+
+    @Test
+    public void testUnicodeHashtags() {
+        // Accented, CJK and supplementary letters are part of a tag; emoji and punctuation aren't
+        String message = "Snack #caf\u00e9 \ud83d\ude00#x #\u65e5\u672c\u8a9e! #\ud83d\udc4d #tag_1. #\ud835\udc9cb";
+        assertThat(HashtagUtils.findHashtags(message), is(new int[]{6, 11, 14, 16, 17, 21, 27, 33, 35, 39}));
+    }
+
+    @Test
+    public void testScannerCallback() {
+        final List<String> tags = new ArrayList<>();
+        final String message = "#one, #two;#three";
+        int count = new HashtagScanner().scan(message, new HashtagScanner.Callback() {
+            @Override
+            public void hashtag(int start, int end) {
+                tags.add(message.substring(start, end));
+            }
+        });
+        assertThat(count, is(3));
+        assertThat(tags, contains("#one", "#two", "#three"));
+    }
 
     private void testStyleSpan(SpannableString spannableString, StyleSpan styleSpan, int start, int end, int typeface) {
         assertThat(styleSpan.getStyle(), is(typeface));
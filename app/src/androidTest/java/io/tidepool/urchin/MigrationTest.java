@@ -0,0 +1,133 @@
+package io.tidepool.urchin;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.data.Migration;
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.data.Session;
+import io.tidepool.urchin.data.SyncState;
+import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.ui.UserFilterAdapter;
+import io.tidepool.urchin.util.HashtagUtils;
+
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+    private static final String FIXTURE_NAME = "migration-test.realm";
+
+    private RealmConfiguration mFixtureConfiguration;
+    private RealmConfiguration mCurrentConfiguration;
+
+    @Before
+    public void setUp() {
+        mFixtureConfiguration = RealmFixtures.createVersion0(InstrumentationRegistry.getTargetContext(), FIXTURE_NAME);
+        mCurrentConfiguration = new RealmConfiguration.Builder(InstrumentationRegistry.getTargetContext())
+                .name(FIXTURE_NAME)
+                .schemaVersion(Migration.SCHEMA_VERSION)
+                .migration(new Migration())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        Realm.deleteRealm(mCurrentConfiguration);
+    }
+
+    @Test
+    public void testVersion0KeepsData() {
+        Realm realm = Realm.getInstance(mCurrentConfiguration);
+        try {
+            assertThat(realm.where(Note.class).count(), is(1L));
+            assertThat(realm.where(User.class).count(), is(2L));
+            assertThat(realm.where(SyncState.class).count(), is(0L));
+
+            Session session = realm.where(Session.class).findFirst();
+            assertThat(session.getSessionId(), is("session-token"));
+            assertThat(session.getUser().getUserid(), is(RealmFixtures.CLINICIAN_ID));
+
+            // The hashtag was found again, and the old row replaced
+            Note note = realm.where(Note.class).findFirst();
+            assertThat(note.getHashtags().size(), is(1));
+            assertThat(note.getHashtags().first().getTag(), is("#exercise"));
+            assertThat(note.getHashtags().first().getOwnerId(), is(RealmFixtures.PATIENT_ID));
+            assertThat(realm.where(Hashtag.class).count(), is(1L));
+        } finally {
+            realm.close();
+        }
+    }
+
+    @Test
+    public void testVersion0FillsInGroupNames() {
+        Realm realm = Realm.getInstance(mCurrentConfiguration);
+        try {
+            Note note = realm.where(Note.class).equalTo("id", "note-1").findFirst();
+            assertThat(note.getGroupFullName(), is(RealmFixtures.PATIENT_NAME));
+        } finally {
+            realm.close();
+        }
+    }
+
+    @Test
+    public void testVersion0FillsInHashtagOffsets() {
+        Realm realm = Realm.getInstance(mCurrentConfiguration);
+        try {
+            Note note = realm.where(Note.class).equalTo("id", "note-1").findFirst();
+            int[] offsets = HashtagUtils.unpackOffsets(note.getHashtagOffsets());
+            assertThat(offsets.length, is(2));
+            assertThat(note.getMessagetext().substring(offsets[0], offsets[1]), is("#exercise"));
+        } finally {
+            realm.close();
+        }
+    }
+
+    @Test
+    public void testVersion0ConvertsNoteTimes() {
+        Realm realm = Realm.getInstance(mCurrentConfiguration);
+        try {
+            Note note = realm.where(Note.class)
+                    .equalTo("groupid", RealmFixtures.PATIENT_ID)
+                    .greaterThan("timestamp", RealmFixtures.NOTE_TIME - 1)
+                    .findFirst();
+            assertThat(note, notNullValue());
+            assertThat(note.getTimestamp(), is(RealmFixtures.NOTE_TIME));
+            assertThat(note.getCreatedtime(), is(RealmFixtures.NOTE_TIME));
+        } finally {
+            realm.close();
+        }
+    }
+
+    @Test
+    public void testVersion0FillsInUserFlags() {
+        Realm.setDefaultConfiguration(mCurrentConfiguration);
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            User patient = realm.where(User.class).equalTo("userid", RealmFixtures.PATIENT_ID).findFirst();
+            assertThat(patient.isPatient(), is(true));
+            assertThat(patient.isViewable(), is(true));
+            assertThat(patient.getSortName(), not(isEmptyOrNullString()));
+
+            User clinician = realm.where(User.class).equalTo("userid", RealmFixtures.CLINICIAN_ID).findFirst();
+            assertThat(clinician.isPatient(), is(false));
+            assertThat(clinician.isViewable(), is(false));
+
+            List<User> users = UserFilterAdapter.createUserList();
+            assertThat(users.size(), is(1));
+            assertThat(users.get(0).getUserid(), is(RealmFixtures.PATIENT_ID));
+        } finally {
+            realm.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package io.tidepool.urchin;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.FieldAttribute;
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmQuery;
+import io.realm.RealmResults;
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Times the notes feed queries on a synthetic store of 100k notes, laid out both the way
+ * schema version 1 stored notes (Date times, no indexes) and the way version 2 does (epoch
+ * millisecond times, indexed groupid / userid / timestamp). Results are logged under LOG_TAG.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NoteStoreBenchmark {
+    private static final String LOG_TAG = "NoteStoreBenchmark";
+
+    private static final int NOTE_COUNT = 100000;
+    private static final int GROUP_COUNT = 50;
+    private static final int RUNS = 5;
+    private static final long SPAN_MILLIS = 3L * 365 * 24 * 60 * 60 * 1000;   // Three years of notes
+    private static final long RANGE_MILLIS = 90L * 24 * 60 * 60 * 1000;       // One notes page
+
+    private final List<RealmConfiguration> _configurations = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (RealmConfiguration configuration : _configurations) {
+            Realm.deleteRealm(configuration);
+        }
+    }
+
+    @Test
+    public void benchmarkNoteQueries() {
+        long now = System.currentTimeMillis();
+        long[] before = runQueries(createStore("bench-v1.realm", false, now), false, now);
+        long[] after = runQueries(createStore("bench-v2.realm", true, now), true, now);
+
+        Log.i(LOG_TAG, NOTE_COUNT + " notes, " + GROUP_COUNT + " groups, best of " + RUNS + " runs (ms)");
+        Log.i(LOG_TAG, "                 v1 (Date)   v2 (long, indexed)");
+        Log.i(LOG_TAG, "filter groupid   " + format(before[0]) + format(after[0]));
+        Log.i(LOG_TAG, "sort timestamp   " + format(before[1]) + format(after[1]));
+        Log.i(LOG_TAG, "range delete     " + format(before[2]) + format(after[2]));
+
+        // Both layouts should have found and deleted the same notes
+        assertThat(before[3], is(after[3]));
+    }
+
+    /**
+     * Creates a store with NOTE_COUNT notes spread evenly over GROUP_COUNT groups and the last
+     * SPAN_MILLIS before now.
+     */
+    private DynamicRealm createStore(String name, boolean version2, long now) {
+        RealmConfiguration configuration = new RealmConfiguration.Builder(InstrumentationRegistry.getTargetContext())
+                .name(name)
+                .build();
+        Realm.deleteRealm(configuration);
+        _configurations.add(configuration);
+
+        DynamicRealm realm = DynamicRealm.getInstance(configuration);
+        realm.beginTransaction();
+        RealmObjectSchema note = realm.getSchema().create("Note")
+                .addField("id", String.class, FieldAttribute.PRIMARY_KEY)
+                .addField("messagetext", String.class);
+        if (version2) {
+            note.addField("groupid", String.class, FieldAttribute.INDEXED)
+                    .addField("userid", String.class, FieldAttribute.INDEXED)
+                    .addField("timestamp", long.class, FieldAttribute.INDEXED);
+        } else {
+            note.addField("groupid", String.class)
+                    .addField("userid", String.class)
+                    .addField("timestamp", Date.class);
+        }
+
+        // Same seed for both stores, so they hold the same notes
+        Random random = new Random(42);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            DynamicRealmObject object = realm.createObject("Note", "note-" + i);
+            object.setString("groupid", "group-" + (i % GROUP_COUNT));
+            object.setString("userid", "user-" + random.nextInt(GROUP_COUNT * 2));
+            object.setString("messagetext", "Synthetic note " + i + " #benchmark");
+            long timestamp = now - (long) (random.nextDouble() * SPAN_MILLIS);
+            if (version2) {
+                object.setLong("timestamp", timestamp);
+            } else {
+                object.setDate("timestamp", new Date(timestamp));
+            }
+        }
+        realm.commitTransaction();
+        return realm;
+    }
+
+    /**
+     * Runs the feed queries against a store, then closes it.
+     *
+     * @return best times in ms for filter, sort and range delete, and the number of notes deleted
+     */
+    private long[] runQueries(DynamicRealm realm, boolean version2, long now) {
+        long bestFilter = Long.MAX_VALUE;
+        long bestSort = Long.MAX_VALUE;
+        long bestDelete = Long.MAX_VALUE;
+        long deleted = 0;
+
+        try {
+            for (int run = 0; run < RUNS; run++) {
+                String groupId = "group-" + run;
+
+                long start = System.nanoTime();
+                RealmResults<DynamicRealmObject> filtered = realm.where("Note").equalTo("groupid", groupId).findAll();
+                filtered.size();
+                bestFilter = Math.min(bestFilter, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                RealmResults<DynamicRealmObject> sorted = realm.where("Note").equalTo("groupid", groupId).findAllSorted("timestamp");
+                sorted.size();
+                bestSort = Math.min(bestSort, System.nanoTime() - start);
+
+                // The range getNotes clears before adding a page of notes
+                long to = now - run * RANGE_MILLIS;
+                long from = to - RANGE_MILLIS;
+                realm.beginTransaction();
+                start = System.nanoTime();
+                RealmQuery<DynamicRealmObject> range = realm.where("Note").equalTo("groupid", groupId);
+                if (version2) {
+                    range.greaterThan("timestamp", from).lessThanOrEqualTo("timestamp", to);
+                } else {
+                    range.greaterThan("timestamp", new Date(from)).lessThanOrEqualTo("timestamp", new Date(to));
+                }
+                RealmResults<DynamicRealmObject> inRange = range.findAll();
+                deleted += inRange.size();
+                inRange.clear();
+                bestDelete = Math.min(bestDelete, System.nanoTime() - start);
+                realm.commitTransaction();
+            }
+        } finally {
+            realm.close();
+        }
+
+        return new long[]{bestFilter / 1000000L, bestSort / 1000000L, bestDelete / 1000000L, deleted};
+    }
+
+    private static String format(long ms) {
+        return String.format("%10d  ", ms);
+    }
+}
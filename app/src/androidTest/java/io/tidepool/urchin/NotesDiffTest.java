@@ -0,0 +1,120 @@
+package io.tidepool.urchin;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.ViewGroup;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.ui.NotesDiff;
+
+@RunWith(AndroidJUnit4.class)
+public class NotesDiffTest {
+    private List<String> mEvents;
+    private RecyclerView.Adapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mEvents = new ArrayList<>();
+        mAdapter = new RecyclerView.Adapter() {
+            @Override
+            public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+                return null;
+            }
+
+            @Override
+            public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            }
+
+            @Override
+            public int getItemCount() {
+                return 0;
+            }
+        };
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                mEvents.add("all");
+            }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                mEvents.add((payload == NotesDiff.PAYLOAD_BACKGROUND ? "background " : "change ")
+                        + positionStart + "+" + itemCount);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                mEvents.add("insert " + positionStart + "+" + itemCount);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                mEvents.add("remove " + positionStart + "+" + itemCount);
+            }
+        });
+    }
+
+    @Test
+    public void testUnchangedListNotifiesNothing() {
+        dispatch(notes("a", "b", "c"), notes("a", "b", "c"));
+        assertThat(mEvents, empty());
+    }
+
+    @Test
+    public void testNewNoteIsOneInsert() {
+        dispatch(notes("a", "b"), notes("a", "b", "c"));
+        assertThat(mEvents, contains("insert 2+1"));
+    }
+
+    @Test
+    public void testRemovalsAndInsertionsAreRanges() {
+        dispatch(notes("a", "b", "c", "d"), notes("x", "y", "a", "d"));
+        assertThat(mEvents, contains("remove 1+2", "insert 0+2"));
+    }
+
+    @Test
+    public void testEditedNoteIsRebound() {
+        List<Note> after = notes("a", "b", "c");
+        after.get(1).setMessagetext("edited");
+        dispatch(notes("a", "b", "c"), after);
+        assertThat(mEvents, contains("change 1+1"));
+    }
+
+    @Test
+    public void testShiftedNotesOnlyUpdateBackground() {
+        dispatch(notes("a", "b"), notes("x", "a", "b"));
+        assertThat(mEvents, contains("insert 0+1", "background 1+2"));
+    }
+
+    @Test
+    public void testReorderFallsBackToFullRebind() {
+        dispatch(notes("a", "b"), notes("b", "a"));
+        assertThat(mEvents, contains("all"));
+    }
+
+    private void dispatch(List<Note> before, List<Note> after) {
+        NotesDiff.dispatch(NotesDiff.snapshot(before), NotesDiff.snapshot(after), mAdapter);
+    }
+
+    private static List<Note> notes(String... ids) {
+        List<Note> notes = new ArrayList<>();
+        for (String id : ids) {
+            Note note = new Note();
+            note.setId(id);
+            note.setUserid(RealmFixtures.PATIENT_ID);
+            note.setMessagetext("Note " + id);
+            notes.add(note);
+        }
+        return notes;
+    }
+}
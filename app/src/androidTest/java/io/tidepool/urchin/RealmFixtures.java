@@ -0,0 +1,145 @@
+package io.tidepool.urchin;
+
+import android.content.Context;
+
+import java.util.Date;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.FieldAttribute;
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmSchema;
+
+/**
+ * Writes Realm files laid out the way older versions of the app stored them, so tests can
+ * check that the migration brings them up to date.
+ */
+public class RealmFixtures {
+    public static final String PATIENT_ID = "patient-1";
+    public static final String PATIENT_NAME = "Patty Patient";
+    public static final String CLINICIAN_ID = "clinician-1";
+    public static final String CLINICIAN_NAME = "Dr. Clinician";
+    public static final long NOTE_TIME = 1441065600000L;
+
+    /**
+     * Creates a database with the version 0 schema: one patient the clinician can view, and a
+     * note from the clinician to the patient.
+     *
+     * @param context Context for the Realm directory
+     * @param name    File name for the fixture
+     * @return the configuration of the fixture, at schema version 0
+     */
+    public static RealmConfiguration createVersion0(Context context, String name) {
+        RealmConfiguration config = new RealmConfiguration.Builder(context)
+                .name(name)
+                .schemaVersion(0)
+                .build();
+        Realm.deleteRealm(config);
+
+        DynamicRealm realm = DynamicRealm.getInstance(config);
+        try {
+            realm.beginTransaction();
+            createVersion0Schema(realm.getSchema());
+
+            DynamicRealmObject patient = realm.createObject("Patient");
+            patient.setString("birthday", "2000-01-01");
+
+            DynamicRealmObject profile = realm.createObject("Profile", PATIENT_ID);
+            profile.setString("fullName", PATIENT_NAME);
+            profile.setObject("patient", patient);
+
+            DynamicRealmObject patientUser = realm.createObject("User", PATIENT_ID);
+            patientUser.setObject("profile", profile);
+
+            DynamicRealmObject clinician = realm.createObject("User", CLINICIAN_ID);
+            clinician.setString("fullName", CLINICIAN_NAME);
+
+            DynamicRealmObject sharedId = realm.createObject("SharedUserId");
+            sharedId.setString("val", PATIENT_ID);
+            clinician.getList("viewableUserIds").add(sharedId);
+
+            DynamicRealmObject note = realm.createObject("Note", "note-1");
+            note.setString("groupid", PATIENT_ID);
+            note.setString("userid", CLINICIAN_ID);
+            note.setString("messagetext", "Checked in with #exercise! Back at 5");
+            note.setString("authorFullName", CLINICIAN_NAME);
+            note.setDate("timestamp", new Date(NOTE_TIME));
+            note.setDate("createdtime", new Date(NOTE_TIME));
+
+            DynamicRealmObject tag = realm.createObject("Hashtag");
+            tag.setString("ownerId", PATIENT_ID);
+            // As the old whitespace split found it
+            tag.setString("tag", "#exercise!");
+            note.getList("hashtags").add(tag);
+
+            DynamicRealmObject session = realm.createObject("Session", "SessionKey");
+            session.setString("sessionId", "session-token");
+            session.setObject("user", clinician);
+
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+
+        return config;
+    }
+
+    /**
+     * Version 0: the schema from before we had migrations.
+     */
+    private static void createVersion0Schema(RealmSchema schema) {
+        RealmObjectSchema patient = schema.create("Patient")
+                .addField("birthday", String.class)
+                .addField("diagnosisDate", String.class)
+                .addField("aboutMe", String.class);
+
+        RealmObjectSchema profile = schema.create("Profile")
+                .addField("firstName", String.class)
+                .addField("lastName", String.class)
+                .addField("fullName", String.class)
+                .addField("shortName", String.class)
+                .addRealmObjectField("patient", patient)
+                .addField("userId", String.class, FieldAttribute.PRIMARY_KEY);
+
+        RealmObjectSchema emailAddress = schema.create("EmailAddress")
+                .addField("val", String.class)
+                .addField("ownerId", String.class);
+
+        RealmObjectSchema sharedUserId = schema.create("SharedUserId")
+                .addField("val", String.class);
+
+        RealmObjectSchema user = schema.create("User")
+                .addField("userid", String.class, FieldAttribute.PRIMARY_KEY)
+                .addField("username", String.class)
+                .addRealmListField("emails", emailAddress)
+                .addField("fullName", String.class)
+                .addRealmObjectField("profile", profile)
+                .addRealmListField("viewableUserIds", sharedUserId);
+
+        schema.create("CurrentUser")
+                .addRealmObjectField("currentUser", user);
+
+        schema.create("Session")
+                .addField("key", String.class, FieldAttribute.PRIMARY_KEY)
+                .addField("sessionId", String.class)
+                .addRealmObjectField("user", user);
+
+        RealmObjectSchema hashtag = schema.create("Hashtag")
+                .addField("ownerId", String.class, FieldAttribute.INDEXED)
+                .addField("tag", String.class, FieldAttribute.INDEXED);
+
+        schema.create("Note")
+                .addField("createdtime", Date.class)
+                .addField("groupid", String.class)
+                .addField("guid", String.class)
+                .addField("id", String.class, FieldAttribute.PRIMARY_KEY)
+                .addField("messagetext", String.class)
+                .addField("parentmessage", String.class)
+                .addField("timestamp", Date.class)
+                .addField("userid", String.class)
+                .addField("authorFullName", String.class)
+                .addRealmListField("hashtags", hashtag);
+    }
+}
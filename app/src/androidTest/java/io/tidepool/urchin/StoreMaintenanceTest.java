@@ -0,0 +1,104 @@
+package io.tidepool.urchin;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.data.Migration;
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.storage.NoteStore;
+import io.tidepool.urchin.storage.RetentionPolicy;
+import io.tidepool.urchin.storage.StoreMaintenance;
+
+@RunWith(AndroidJUnit4.class)
+public class StoreMaintenanceTest {
+    private static final String PINNED_ID = "pinned-1";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private RealmConfiguration mConfiguration;
+
+    @Before
+    public void setUp() {
+        mConfiguration = new RealmConfiguration.Builder(InstrumentationRegistry.getTargetContext())
+                .name("maintenance-test.realm")
+                .schemaVersion(Migration.SCHEMA_VERSION)
+                .migration(new Migration())
+                .build();
+        Realm.deleteRealm(mConfiguration);
+        NoteStore.initialize(InstrumentationRegistry.getTargetContext(), mConfiguration);
+
+        long now = System.currentTimeMillis();
+        Realm realm = Realm.getInstance(mConfiguration);
+        try {
+            realm.beginTransaction();
+            addNote(realm, "old", RealmFixtures.PATIENT_ID, now - 400 * DAY_MILLIS, "#old");
+            addNote(realm, "recent", RealmFixtures.PATIENT_ID, now - DAY_MILLIS, "#recent");
+            addNote(realm, "pinned", PINNED_ID, now - 400 * DAY_MILLIS, "#pinned");
+
+            // Nothing refers to this user or hashtag
+            User stranger = realm.createObject(User.class);
+            stranger.setUserid("stranger-1");
+            Hashtag stray = realm.createObject(Hashtag.class);
+            stray.setTag("#stray");
+            stray.setOwnerId(RealmFixtures.PATIENT_ID);
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Realm.deleteRealm(mConfiguration);
+    }
+
+    @Test
+    public void testPrunesOldNotesAndOrphans() {
+        RetentionPolicy policy = new RetentionPolicy(12, Collections.singleton(PINNED_ID));
+        StoreMaintenance.Result result = StoreMaintenance.runNow(InstrumentationRegistry.getTargetContext(), policy);
+
+        assertThat(result.notesPruned, is(1));
+        assertThat(result.hashtagsPruned, is(2));
+        assertThat(result.usersPruned, is(1));
+        assertThat(result.sizeBefore, greaterThan(0L));
+        assertThat(result.liveSize, greaterThan(0L));
+
+        Realm realm = Realm.getInstance(mConfiguration);
+        try {
+            assertThat(realm.where(Note.class).equalTo("id", "old").count(), is(0L));
+            assertThat(realm.where(Note.class).equalTo("id", "recent").count(), is(1L));
+            assertThat(realm.where(Note.class).equalTo("id", "pinned").count(), is(1L));
+            assertThat(realm.where(Hashtag.class).count(), is(2L));
+            assertThat(realm.where(User.class).equalTo("userid", "stranger-1").count(), is(0L));
+        } finally {
+            realm.close();
+        }
+    }
+
+    private static void addNote(Realm realm, String id, String groupId, long timestamp, String tag) {
+        Note note = realm.createObject(Note.class);
+        note.setId(id);
+        note.setGroupid(groupId);
+        note.setUserid(groupId);
+        note.setTimestamp(timestamp);
+        note.setMessagetext("Note with " + tag);
+
+        Hashtag hashtag = realm.createObject(Hashtag.class);
+        hashtag.setTag(tag);
+        hashtag.setOwnerId(groupId);
+        note.getHashtags().add(hashtag);
+    }
+}
@@ -0,0 +1,120 @@
+package io.tidepool.urchin;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.data.Migration;
+import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.storage.NoteStore;
+import io.tidepool.urchin.storage.WriteCoalescer;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteCoalescerTest {
+    private RealmConfiguration mConfiguration;
+
+    @Before
+    public void setUp() {
+        mConfiguration = new RealmConfiguration.Builder(InstrumentationRegistry.getTargetContext())
+                .name("coalescer-test.realm")
+                .schemaVersion(Migration.SCHEMA_VERSION)
+                .migration(new Migration())
+                .build();
+        Realm.deleteRealm(mConfiguration);
+        NoteStore.initialize(InstrumentationRegistry.getTargetContext(), mConfiguration);
+    }
+
+    @After
+    public void tearDown() {
+        Realm.deleteRealm(mConfiguration);
+    }
+
+    @Test
+    public void testWritesShareOneBatch() {
+        final WriteCoalescer coalescer = WriteCoalescer.getInstance();
+        final int batchesBefore = coalescer.getStats().batches;
+        final List<Exception> results = new ArrayList<>();
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    coalescer.enqueue(new AddUser("user-" + i, results));
+                }
+                coalescer.flush();
+            }
+        });
+
+        assertThat(results.size(), is(3));
+        assertThat(results, everyItem(nullValue(Exception.class)));
+        assertThat(coalescer.getStats().batches, is(batchesBefore + 1));
+        assertThat(countUsers(), is(3L));
+    }
+
+    @Test
+    public void testFailedWriteDoesNotLoseTheBatch() {
+        final WriteCoalescer coalescer = WriteCoalescer.getInstance();
+        final List<Exception> results = new ArrayList<>();
+
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                coalescer.enqueue(new AddUser("user-1", results));
+                coalescer.enqueue(new AddUser(null, results));
+                coalescer.enqueue(new AddUser("user-2", results));
+                coalescer.flush();
+            }
+        });
+
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0), nullValue());
+        assertThat(results.get(1), notNullValue());
+        assertThat(results.get(2), nullValue());
+        assertThat(countUsers(), is(2L));
+    }
+
+    private long countUsers() {
+        Realm realm = Realm.getInstance(mConfiguration);
+        try {
+            return realm.where(User.class).count();
+        } finally {
+            realm.close();
+        }
+    }
+
+    private static class AddUser extends WriteCoalescer.Write {
+        private final String _userId;
+        private final List<Exception> _results;
+
+        AddUser(String userId, List<Exception> results) {
+            _userId = userId;
+            _results = results;
+        }
+
+        @Override
+        public void apply(WriteCoalescer.Batch batch) {
+            if (_userId == null) {
+                throw new IllegalArgumentException("No user ID");
+            }
+            User user = batch.getDefaultRealm().createObject(User.class);
+            user.setUserid(_userId);
+        }
+
+        @Override
+        public void committed(Exception error) {
+            _results.add(error);
+        }
+    }
+}
@@ -124,21 +124,29 @@ public class LoginActivity extends Activity implements LoaderCallbacks<Cursor> {
     public boolean onContextItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.server_development:
-                MainActivity.getInstance().setSelectedServer(APIClient.DEVELOPMENT);
+                UrchinApplication.get(this).setSelectedServer(APIClient.DEVELOPMENT);
                 break;
 
             case R.id.server_production:
-                MainActivity.getInstance().setSelectedServer(APIClient.PRODUCTION);
+                UrchinApplication.get(this).setSelectedServer(APIClient.PRODUCTION);
                 break;
 
             case R.id.server_staging:
-                MainActivity.getInstance().setSelectedServer(APIClient.STAGING);
+                UrchinApplication.get(this).setSelectedServer(APIClient.STAGING);
                 break;
 
             default:
                 return super.onContextItemSelected(item);
         }
 
+        // Each server keeps its own session. If we're still signed in there, go straight back
+        // to its notes.
+        if (UrchinApplication.get(this).getAPIClient().getSessionId() != null) {
+            setResult(Activity.RESULT_OK, new Intent());
+            finish();
+            return true;
+        }
+
         // Update the UI to show the new server
         TextView version = (TextView) findViewById(R.id.version_textview);
         version.setText(MiscUtils.getAppInfoString(this));
@@ -204,7 +212,7 @@ public class LoginActivity extends Activity implements LoaderCallbacks<Cursor> {
             // Show a progress spinner, and kick off a background task to
             // perform the user login attempt.
             showProgress(true);
-            final APIClient client = MainActivity.getInstance().getAPIClient();
+            final APIClient client = UrchinApplication.get(this).getAPIClient();
             client.signIn(email, password, new APIClient.SignInListener() {
                 @Override
                 public void signInComplete(User user, Exception exception) {
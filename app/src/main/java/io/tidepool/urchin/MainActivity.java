@@ -2,15 +2,14 @@ package io.tidepool.urchin;
 
 import android.animation.Animator;
 import android.app.Activity;
-import android.content.Context;
 import android.content.Intent;
 import android.support.v4.widget.SwipeRefreshLayout;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Process;
 import android.support.v7.widget.CardView;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
-import android.text.SpannableString;
 
 import io.realm.RealmConfiguration;
 import io.tidepool.urchin.util.Log;
@@ -20,6 +19,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.AdapterView;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
@@ -27,12 +27,10 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import java.io.File;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 import io.realm.Realm;
 import io.realm.RealmChangeListener;
@@ -43,27 +41,39 @@ import io.tidepool.urchin.data.CurrentUser;
 import io.tidepool.urchin.data.Note;
 import io.tidepool.urchin.data.Profile;
 import io.tidepool.urchin.data.SharedUserId;
+import io.tidepool.urchin.data.SyncState;
 import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.storage.AccountStore;
+import io.tidepool.urchin.storage.MergedNoteList;
+import io.tidepool.urchin.storage.NoteStore;
+import io.tidepool.urchin.storage.RetentionPolicy;
+import io.tidepool.urchin.storage.StoreMaintenance;
+import io.tidepool.urchin.ui.CardTextCache;
+import io.tidepool.urchin.ui.NotesDiff;
 import io.tidepool.urchin.ui.UserFilterAdapter;
-import io.tidepool.urchin.util.HashtagUtils;
 import io.tidepool.urchin.util.MiscUtils;
+import io.tidepool.urchin.util.NoteRanges;
+import io.tidepool.urchin.util.StartupTrace;
+import io.tidepool.urchin.util.Trace;
 
-public class MainActivity extends AppCompatActivity implements RealmChangeListener, SwipeRefreshLayout.OnRefreshListener {
+public class MainActivity extends AppCompatActivity implements SwipeRefreshLayout.OnRefreshListener {
     private static final String LOG_TAG = "MainActivity";
 
-    // What server we will connect to by default
-    private static final String DEFAULT_SERVER = APIClient.PRODUCTION;
-
     // Activity request codes
     private static final int REQ_LOGIN = 1;
     private static final int REQ_NOTE = 2;
 
-    // Key into preferences for the ID of the user filter
-    private static final String PREFS_KEY_USERID = "PrefsUserId";
-    private static final String PREFS_KEY_SERVER = "Server";
+    // How many cards ahead of the scroll position we style in the background
+    private static final int PREFETCH_CARDS = 20;
+
+    // Where Trace events are saved, in the files directory
+    private static final String TRACE_FILE_NAME = "trace.json";
+
+    // A delta sync starts this far before the last sync, to pick up late edits
+    private static final long SYNC_OVERLAP_MILLIS = 24L * 60 * 60 * 1000;
 
-    private Realm _realm;
-    private APIClient _apiClient;
+    private UrchinApplication _app;
+    private Realm _realm;               // The application's, so not ours to close
 
     // User to filter messages on, or null for all messages
     private User _userFilter;
@@ -71,10 +81,13 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
     // UI stuff
     private RecyclerView _recyclerView;
     private ImageButton _addButton;
-    private RealmResults<Note> _notesResultSet;
+    private List<Note> _notes;
+    private final List<Realm> _noteRealms = new ArrayList<>();     // Note shards the feed is showing
+    private final List<RealmResults<Note>> _noteResults = new ArrayList<>();
+    private NotesDiff.Snapshot _notesSnapshot = NotesDiff.EMPTY;   // What the adapter last saw
     private SwipeRefreshLayout _swipeRefreshLayout;
     private LinearLayout _dropDownLayout;
-    private DateFormat _cardDateFormat = new SimpleDateFormat("EEEE MM/dd/yy h:mm a", Locale.getDefault());
+    private CardTextCache _cardTextCache;
     private ListView _dropDownListView;
     private TextView _footerTextView;
 
@@ -84,28 +97,29 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
     private boolean _allDataFetched;
 
     // State stuff
+    private static final String STATE_JUST_ADDED = "JustAdded";
     private boolean _justAdded;
-
-    // Access to our instance
-    private static MainActivity __thisInstance;
-
-    public static MainActivity getInstance() {
-        return __thisInstance;
-    }
-
-    // Provide access to our APIClient
-    public APIClient getAPIClient() {
-        return _apiClient;
-    }
+    private boolean _recreated;         // Recreated from saved state, e.g. after a rotation
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        Trace.begin("MainActivity.onCreate");
+
+        if (savedInstanceState != null) {
+            _recreated = true;
+            _justAdded = savedInstanceState.getBoolean(STATE_JUST_ADDED);
+        }
 
-        __thisInstance = this;
+        _app = UrchinApplication.get(this);
+        _realm = _app.getRealm();
+        _app.addDatabaseChangedListener(_databaseChangedListener);
+        NoteStore.getInstance().addShardsChangedListener(_shardsChangedListener);
 
         setContentView(R.layout.activity_main);
 
+        _cardTextCache = new CardTextCache(getResources().getColor(R.color.hashtag_text));
+
         _recyclerView = (RecyclerView) findViewById(R.id.recycler_view);
         _recyclerView.setLayoutManager(new LinearLayoutManager(this));
         _recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
@@ -114,6 +128,17 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
                 super.onScrolled(recyclerView, dx, dy);
                 LinearLayoutManager lm = (LinearLayoutManager) recyclerView.getLayoutManager();
                 int pos = lm.findFirstVisibleItemPosition();
+
+                // Style the cards we're scrolling towards before they're on screen
+                if (_notes != null) {
+                    if (dy >= 0) {
+                        int last = lm.findLastVisibleItemPosition();
+                        _cardTextCache.prefetch(_notes, _notesSnapshot, last + 1, last + 1 + PREFETCH_CARDS);
+                    } else {
+                        _cardTextCache.prefetch(_notes, _notesSnapshot, pos - PREFETCH_CARDS, pos);
+                    }
+                }
+
                 if (pos >= lm.getItemCount() - 10) {
                     // We've neared the end of the set of data. Get more.
                     fetchMoreData();
@@ -148,41 +173,57 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
             }
         });
 
-        // For now, we are going to blow away our database on an update
-        RealmConfiguration realmConfiguration = new RealmConfiguration.Builder(this)
-                .deleteRealmIfMigrationNeeded()
-                .build();
-        Realm.setDefaultConfiguration(realmConfiguration);
-        try {
-            _realm = Realm.getDefaultInstance();
-        } catch (RuntimeException e) {
-            Log.e(LOG_TAG, "Failed to load realm database. Blowing away and trying anew.");
-            File dbPath = getFilesDir();
-            File dbFile = new File(dbPath, "default.realm");
-            boolean deleted = dbFile.delete();
-            Log.e(LOG_TAG, "dbFile: " + dbFile.getPath() + " deleted: " + deleted);
-
-            // Try again, this time we'll just blow up if it doesn't work
-            try {
-                _realm = Realm.getDefaultInstance();
-            } catch (RuntimeException eInner) {
-                Log.e(LOG_TAG, "Failed to open / update the Realm database. Re-throwing.");
-                e.printStackTrace();
-                throw (eInner);
+        if (StartupTrace.isRunning()) {
+            _recyclerView.getViewTreeObserver().addOnPreDrawListener(_firstCardListener);
+        }
+        StartupTrace.mark("activityCreated");
+        Trace.end();
+    }
+
+    // Ends the startup trace as the first card is drawn
+    private final ViewTreeObserver.OnPreDrawListener _firstCardListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            if (_recyclerView.getChildCount() > 0) {
+                StartupTrace.firstCard();
+            }
+            if (!StartupTrace.isRunning()) {
+                _recyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
             }
+            return true;
         }
+    };
 
-        // Create our API client on the appropriate service
-        setUpAPIClient(getSelectedServer());
-    }
+    // Signing in or out, or changing servers, switches to another database
+    private final AccountStore.DatabaseChangedListener _databaseChangedListener = new AccountStore.DatabaseChangedListener() {
+        @Override
+        public void databaseChanged(RealmConfiguration configuration) {
+            _userFilter = null;
+            _recyclerView.setAdapter(null);
+            closeNoteRealms();
+            _realm = _app.getRealm();
+
+            // There's a new NoteStore for the new database
+            NoteStore.getInstance().addShardsChangedListener(_shardsChangedListener);
+        }
+    };
 
     @Override
     protected void onDestroy() {
-        _realm.close();
+        _app.removeDatabaseChangedListener(_databaseChangedListener);
+        NoteStore.getInstance().removeShardsChangedListener(_shardsChangedListener);
+        closeNoteRealms();
+        _cardTextCache.shutdown();
 
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        _cardTextCache.trimMemory(level);
+    }
+
     @Override
     public void onBackPressed() {
         // Let the back button dismiss the drop-down menu if present
@@ -194,71 +235,164 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
     }
 
     protected void populateNotes() {
+        Trace.begin("MainActivity.populateNotes");
+        closeNoteRealms();
+        NoteStore noteStore = NoteStore.getInstance();
+
         // Set up our query
         if (_userFilter == null) {
-            _notesResultSet = _realm.where(Note.class).findAllSorted("timestamp");
+            if (noteStore.isSharded()) {
+                // Merge the notes from every shard
+                for (Realm realm : noteStore.openAllNotes()) {
+                    _noteRealms.add(realm);
+                    _noteResults.add(realm.where(Note.class).findAllSorted("timestamp"));
+                }
+                _notes = new MergedNoteList(_noteResults);
+            } else {
+                _noteResults.add(_realm.where(Note.class).findAllSorted("timestamp"));
+                _notes = _noteResults.get(0);
+            }
             String title = getResources().getString(R.string.all_notes);
             setTitle(title);
 
         } else {
-            _notesResultSet = _realm.where(Note.class).equalTo("groupid", _userFilter.getUserid())
-                    .findAllSorted("timestamp");
+            Realm realm = _realm;
+            if (noteStore.isSharded()) {
+                realm = noteStore.openNotes(_userFilter.getUserid());
+                _noteRealms.add(realm);
+            }
+            _noteResults.add(realm.where(Note.class).equalTo("groupid", _userFilter.getUserid())
+                    .findAllSorted("timestamp"));
+            _notes = _noteResults.get(0);
             setTitle(_userFilter.getProfile().getFullName());
         }
 
-        _recyclerView.setAdapter(new NotesAdapter());
+        // Only changes to the notes we show matter to the feed
+        for (RealmResults<Note> results : _noteResults) {
+            results.addChangeListener(_notesChangeListener);
+        }
+        _notesSnapshot = NotesDiff.snapshot(_notes);
+        _cardTextCache.prefetch(_notes, _notesSnapshot, 0, PREFETCH_CARDS);
+
+        User user = _app.getAPIClient().getUser();
+        _recyclerView.setAdapter(new NotesAdapter(user != null ? user.getUserid() : null));
+        Trace.end();
     }
 
     @Override
     protected void onStart() {
         super.onStart();
+        Trace.begin("MainActivity.onStart");
 
         Log.d(LOG_TAG, "onStart");
 
-        String sessionId = _apiClient.getSessionId();
-        User user = _apiClient.getUser();
+        // Catch up on anything that changed while we were stopped
+        for (RealmResults<Note> results : _noteResults) {
+            results.addChangeListener(_notesChangeListener);
+        }
+        notesChanged();
+
+        String sessionId = _app.getAPIClient().getSessionId();
+        User user = _app.getAPIClient().getUser();
         if (sessionId == null || user == null) {
             // We need to sign in
+            StartupTrace.abandon("signed out");
             showLogin();
         } else {
-            // Refresh the session token
-            _apiClient.refreshToken(new APIClient.RefreshTokenListener() {
-                @Override
-                public void tokenRefreshed(Exception error) {
-                    Log.d(LOG_TAG, "tokenRefreshed: " + error);
-
-                    if (error != null) {
-                        // We could not refresh. Need to log in.
-                        showLogin();
-                    } else {
-                        updateUser();
-                        // Select the current user, if present in the db
-                        restoreUserFilter();
+            if (_recyclerView.getAdapter() == null) {
+                // Show what we have straight away. The network can catch up.
+                showCachedFeed();
+            }
+            // A rotation doesn't need another sync, or another "Add Note"
+            if (!_recreated || !_app.isSessionRefreshed()) {
+                refreshSessionAfterFirstFrame();
+            }
+        }
+        _recreated = false;
+        Trace.end();
+    }
 
-                        // Launch the "Add Note" unless we're returning from that activity
-                        if (!_justAdded) {
-                            addButtonTapped();
-                        }
-                        _justAdded = false;
-                    }
-                }
-            });
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_JUST_ADDED, _justAdded);
+    }
+
+    /**
+     * Shows the notes we have, filtered the way they were last time.
+     */
+    private void showCachedFeed() {
+        restoreUserFilter();
+        if (_recyclerView.getAdapter() == null) {
+            // No filter saved, so all notes
+            setUserFilter(null);
         }
+        StartupTrace.mark("feedShown");
+    }
 
-        _realm.addChangeListener(this);
+    /**
+     * Refreshes the session token, then syncs. It waits for the next frame to be drawn, so
+     * starting requests and handling their responses doesn't hold up showing the feed.
+     */
+    private void refreshSessionAfterFirstFrame() {
+        _recyclerView.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                _recyclerView.getViewTreeObserver().removeOnPreDrawListener(this);
+                // Posted, so it runs once this frame is out
+                _recyclerView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshSession();
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    private void refreshSession() {
+        StartupTrace.mark("syncStarted");
+        _app.getAPIClient().refreshToken(new APIClient.RefreshTokenListener() {
+            @Override
+            public void tokenRefreshed(Exception error) {
+                Log.d(LOG_TAG, "tokenRefreshed: %s", error);
+
+                if (error != null) {
+                    // We could not refresh. Need to log in.
+                    showLogin();
+                } else {
+                    _app.setSessionRefreshed(true);
+                    updateUser();
+
+                    // Launch the "Add Note" unless we're returning from that activity
+                    if (!_justAdded) {
+                        addButtonTapped();
+                    }
+                    _justAdded = false;
+
+                    // Prune old notes, at most once a day
+                    StoreMaintenance.runIfDue(MainActivity.this, RetentionPolicy.load(MainActivity.this), null);
+                }
+            }
+        });
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         _swipeRefreshLayout.setRefreshing(false);
-        _realm.removeChangeListener(this);
+        for (RealmResults<Note> results : _noteResults) {
+            results.removeChangeListener(_notesChangeListener);
+        }
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_shard_notes).setChecked(NoteStore.getInstance().isSharded());
+        menu.findItem(R.id.action_save_trace).setVisible(Trace.isEnabled());
         return true;
     }
 
@@ -279,9 +413,45 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
             return true;
         }
 
+        if (id == R.id.action_shard_notes) {
+            // Notes move to the new layout on the next refresh
+            boolean sharded = !item.isChecked();
+            item.setChecked(sharded);
+            closeNoteRealms();
+            NoteStore.getInstance().setSharded(sharded);
+            populateNotes();
+            onRefresh();
+            return true;
+        }
+
+        if (id == R.id.action_save_trace) {
+            saveTrace();
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Writes what Trace has recorded to files/trace.json, in the background. Get it with
+     * "adb shell run-as io.tidepool.urchin cat files/trace.json".
+     */
+    private void saveTrace() {
+        final File file = new File(getFilesDir(), TRACE_FILE_NAME);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    Trace.save(file);
+                    Log.i(LOG_TAG, "Saved " + Trace.size() + " trace events to " + file);
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save trace: " + e);
+                }
+            }
+        }).start();
+    }
+
     private void showLogin() {
         Intent loginIntent = new Intent(this, LoginActivity.class);
         startActivityForResult(loginIntent, REQ_LOGIN);
@@ -378,40 +548,60 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
     }
 
     /**
-     * Gets information about the current user
+     * Gets information about the current user, and the notes since we last synced
      */
     private void updateUser() {
-        _apiClient.getViewableUserIds(new APIClient.ViewableUserIdsListener() {
+        updateUser(false);
+    }
+
+    /**
+     * Gets information about the current user
+     *
+     * @param fullRefresh true to fetch the groups, profiles and the current range of notes
+     *                    again, even if what we have is still fresh; false to use cached
+     *                    groups and profiles and only fetch the notes that are new since we
+     *                    last synced
+     */
+    private void updateUser(final boolean fullRefresh) {
+        _app.getAPIClient().getViewableUserIds(fullRefresh, new APIClient.ViewableUserIdsListener() {
             @Override
             public void fetchComplete(RealmList<SharedUserId> userIds, Exception error) {
-                Log.d(LOG_TAG, "Viewable IDs received: " + userIds + "Error: " + error);
-                updateProfilesAndNotes(userIds);
+                Log.d(LOG_TAG, "Viewable IDs received: %s error: %s", userIds != null ? userIds.size() : null, error);
+                updateProfilesAndNotes(userIds, fullRefresh);
             }
         });
     }
 
-    private void updateProfilesAndNotes(RealmList<SharedUserId> userIds) {
-        final Date to = new Date();
-        Calendar c = Calendar.getInstance();
-        c.setTime(to);
-        c.add(Calendar.MONTH, -3);
-        final Date from = c.getTime();
+    private void updateProfilesAndNotes(RealmList<SharedUserId> userIds, boolean fullRefresh) {
+        // The range we're in, which older ranges are fetched back from as we scroll
+        final long now = System.currentTimeMillis();
+        final Date from = new Date(NoteRanges.getRangeStart(now));
+        final Date to = new Date(NoteRanges.getRangeEnd(now));
 
         _lastFetchDate = from;
         _allDataFetched = false;
 
         if (userIds != null) {
             for (SharedUserId userId : userIds) {
-                _apiClient.getProfileForUserId(userId.getVal(), new APIClient.ProfileListener() {
+                // Only fetch what's new, unless we haven't synced this user recently
+                Date userFrom = from;
+                Date userTo = to;
+                SyncState syncState = _realm.where(SyncState.class).equalTo("userId", userId.getVal()).findFirst();
+                if (!fullRefresh && syncState != null && syncState.getSyncedTo() - SYNC_OVERLAP_MILLIS > from.getTime()) {
+                    userFrom = new Date(syncState.getSyncedTo() - SYNC_OVERLAP_MILLIS);
+                    userTo = new Date(now);
+                }
+
+                _app.getAPIClient().getProfileForUserId(userId.getVal(), fullRefresh, new APIClient.ProfileListener() {
                     @Override
                     public void profileReceived(Profile profile, Exception error) {
-                        Log.d(LOG_TAG, "Profile updated: " + profile + " error: " + error);
+                        Log.d(LOG_TAG, "Profile updated: %s error: %s", profile, error);
                     }
                 });
-                _apiClient.getNotes(userId.getVal(), from, to, new APIClient.NotesListener() {
+                _app.getAPIClient().getNotes(userId.getVal(), userFrom, userTo, new APIClient.NotesListener() {
                     @Override
                     public void notesReceived(RealmList<Note> notes, Exception error) {
-                        Log.d(LOG_TAG, "Notes received: " + notes + " error: " + error);
+                        Log.d(LOG_TAG, "Notes received: %s error: %s", notes != null ? notes.size() : null, error);
                         _swipeRefreshLayout.setRefreshing(false);
                     }
                 });
@@ -433,23 +623,22 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
             List<SharedUserId> userIds = _realm.where(SharedUserId.class).findAll();
 
             if (_lastFetchDate == null) {
-                _lastFetchDate = new Date();
+                _lastFetchDate = new Date(NoteRanges.getRangeStart(System.currentTimeMillis()));
             }
 
+            // The whole range before the last one fetched, so it can come from the cache
             final Date to = _lastFetchDate;
-            Calendar c = Calendar.getInstance();
-            c.setTime(to);
-            c.add(Calendar.MONTH, -3);
-            final Date from = c.getTime();
+            final Date from = new Date(NoteRanges.getPreviousRangeStart(to.getTime()));
+            _lastFetchDate = from;
 
             _remainingUserFetchCount = userIds.size();
 
-            Log.d(LOG_TAG, "Fetching notes from " + from + " to " + to);
+            Log.d(LOG_TAG, "Fetching notes from %s to %s", from, to);
 
             final int startNoteCount = _recyclerView.getAdapter().getItemCount();
 
             for (SharedUserId userId : userIds) {
-                _apiClient.getNotes(userId.getVal(), from, to, new APIClient.NotesListener() {
+                _app.getAPIClient().getNotes(userId.getVal(), from, to, new APIClient.NotesListener() {
                     @Override
                     public void notesReceived(RealmList<Note> notes, Exception error) {
                         _remainingUserFetchCount--;
@@ -496,7 +685,7 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
         // Set the current user in the database
 
         // First get the user out of the database
-        User apiClientUser = _apiClient.getUser();
+        User apiClientUser = _app.getAPIClient().getUser();
 
         _realm.beginTransaction();
         _realm.where(CurrentUser.class).findAll().clear();
@@ -515,16 +704,16 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
 
         // Save the last user in preferences
         if (user == null) {
-            getPreferences(Context.MODE_PRIVATE).edit()
-                    .remove(PREFS_KEY_USERID).apply();
+            _app.getPreferences().edit()
+                    .remove(UrchinApplication.PREFS_KEY_USERID).apply();
         } else {
-            getPreferences(Context.MODE_PRIVATE).edit()
-                    .putString(PREFS_KEY_USERID, user.getUserid()).apply();
+            _app.getPreferences().edit()
+                    .putString(UrchinApplication.PREFS_KEY_USERID, user.getUserid()).apply();
         }
     }
 
     private void restoreUserFilter() {
-        String userId = getPreferences(Context.MODE_PRIVATE).getString(PREFS_KEY_USERID, null);
+        String userId = _app.getPreferences().getString(UrchinApplication.PREFS_KEY_USERID, null);
         if (userId != null) {
             User user = _realm.where(User.class).equalTo("userid", userId).findFirst();
             setUserFilter(user);
@@ -535,11 +724,12 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
         _userFilter = null;
         _dropDownListView.setAdapter(null);
         _recyclerView.setAdapter(null);
+        closeNoteRealms();
 
         // Clear out our saved preferences for the user
-        clearUserPreferences();
+        _app.clearUserPreferences();
 
-        _apiClient.signOut(new APIClient.SignOutListener() {
+        _app.getAPIClient().signOut(new APIClient.SignOutListener() {
             @Override
             public void signedOut(int responseCode, Exception error) {
                 showLogin();
@@ -552,33 +742,7 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
         // Swipe view refresh
         Log.d(LOG_TAG, "OnRefresh");
         _allDataFetched = false;
-        updateUser();
-    }
-
-    public String getSelectedServer() {
-        return getPreferences(Context.MODE_PRIVATE).getString(PREFS_KEY_SERVER, DEFAULT_SERVER);
-    }
-
-    /**
-     * Removes preferences related to a specific user. Will not remove saved preferences for
-     * the application, such as the selected server to use.
-     */
-    void clearUserPreferences() {
-        getPreferences(Context.MODE_PRIVATE).edit().remove(PREFS_KEY_USERID);
-    }
-
-    public void setSelectedServer(String server) {
-        // Clear out our user preferences - everything is different on a different server
-        clearUserPreferences();
-
-        // Save the selected server
-        getPreferences(Context.MODE_PRIVATE).edit().putString(PREFS_KEY_SERVER, server).apply();
-
-        // Set up new APIClient for server
-        setUpAPIClient(server);
-
-        // Remove everything from our database
-        _apiClient.clearDatabase();
+        updateUser(true);
     }
 
     public class NotesViewHolder extends RecyclerView.ViewHolder {
@@ -597,6 +761,13 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
     }
 
     public class NotesAdapter extends RecyclerView.Adapter<NotesViewHolder> {
+        // ID of the signed-in user, whose notes can be edited
+        private final String _currentUserId;
+
+        public NotesAdapter(String currentUserId) {
+            _currentUserId = currentUserId;
+            setHasStableIds(true);
+        }
 
         @Override
         public NotesViewHolder onCreateViewHolder(ViewGroup viewGroup, int i) {
@@ -605,33 +776,28 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
         }
 
         @Override
-        public void onBindViewHolder(NotesViewHolder notesViewHolder, int i) {
-            final Note note = _notesResultSet.get(i);
-            SpannableString bodyText = new SpannableString(note.getMessagetext());
-            int color = getResources().getColor(R.color.hashtag_text);
-            HashtagUtils.formatHashtags(bodyText, color, true);
-            notesViewHolder._body.setText(bodyText, TextView.BufferType.SPANNABLE);
-
-            User group = null;
-            String groupId = note.getGroupid();
-            String userId = note.getUserid();
-            if (groupId != null && !groupId.equals(userId)) {
-                group = _realm.where(User.class).equalTo("userid", groupId).findFirst();
-            }
-
-            if (group != null) {
-                notesViewHolder._author.setText(note.getAuthorFullName() + " to " + MiscUtils.getPrintableNameForUser(group));
+        public void onBindViewHolder(NotesViewHolder notesViewHolder, int i, List<Object> payloads) {
+            if (payloads.contains(NotesDiff.PAYLOAD_BACKGROUND)) {
+                // Only moved by an odd number of places
+                setCardBackground(notesViewHolder, i);
             } else {
-                notesViewHolder._author.setText(note.getAuthorFullName());
+                onBindViewHolder(notesViewHolder, i);
             }
+        }
 
-            notesViewHolder._date.setText(_cardDateFormat.format(note.getTimestamp()));
+        @Override
+        public void onBindViewHolder(NotesViewHolder notesViewHolder, int i) {
+            final Note note = _notes.get(i);
 
-            int colorId = (i % 2 == 0) ? R.color.card_bg_even : R.color.card_bg_odd;
-            CardView cardView = (CardView) notesViewHolder.itemView;
-            cardView.setCardBackgroundColor(notesViewHolder.itemView.getContext().getResources().getColor(colorId));
+            // Styled once and cached, often ahead of time on a background thread
+            CardTextCache.CardText text = _cardTextCache.get(note, _notesSnapshot.getContentHash(i));
+            notesViewHolder._body.setText(text.body);
+            notesViewHolder._author.setText(text.author);
+            notesViewHolder._date.setText(text.date);
+
+            setCardBackground(notesViewHolder, i);
 
-            if (note.getUserid().equals(_apiClient.getUser().getUserid())) {
+            if (note.getUserid().equals(_currentUserId)) {
                 notesViewHolder._editTextView.setVisibility(View.VISIBLE);
                 notesViewHolder._editTextView.setOnClickListener(new View.OnClickListener() {
                     @Override
@@ -644,29 +810,77 @@ public class MainActivity extends AppCompatActivity implements RealmChangeListen
             }
         }
 
+        private void setCardBackground(NotesViewHolder notesViewHolder, int i) {
+            int colorId = (i % 2 == 0) ? R.color.card_bg_even : R.color.card_bg_odd;
+            CardView cardView = (CardView) notesViewHolder.itemView;
+            cardView.setCardBackgroundColor(notesViewHolder.itemView.getContext().getResources().getColor(colorId));
+        }
+
+        @Override
+        public long getItemId(int i) {
+            return _notesSnapshot.getItemId(i);
+        }
+
         @Override
         public int getItemCount() {
-            return _notesResultSet.size();
+            // Matches what we last told the RecyclerView, even if the results moved on since
+            return _notesSnapshot.size();
         }
 
     }
 
     private void editNoteClicked(Note note) {
-        Log.d(LOG_TAG, "Edit note: " + note.getMessagetext());
+        Log.d(LOG_TAG, "Edit note: %s", note.getId());
         Intent intent = new Intent(this, NewNoteActivity.class);
         intent.putExtra(NewNoteActivity.ARG_EDIT_NOTE_ID, note.getId());
+        intent.putExtra(NewNoteActivity.ARG_EDIT_NOTE_GROUP_ID, note.getGroupid());
         startActivityForResult(intent, REQ_NOTE);
     }
 
-    private void setUpAPIClient(String server) {
-        _apiClient = new APIClient(this, server);
+    /**
+     * Closes the note shards the feed was showing, if any.
+     */
+    private void closeNoteRealms() {
+        for (RealmResults<Note> results : _noteResults) {
+            results.removeChangeListener(_notesChangeListener);
+        }
+        _noteResults.clear();
+        _notesSnapshot = NotesDiff.EMPTY;
+        for (Realm realm : _noteRealms) {
+            realm.close();
+        }
+        _noteRealms.clear();
     }
 
-    @Override
-    public void onChange() {
-        // Realm dataset has changed. Refresh our data
-        if (_recyclerView.getAdapter() != null) {
-            _recyclerView.getAdapter().notifyDataSetChanged();
+    // Shards were added or deleted, so the merged feed needs to be rebuilt
+    private final NoteStore.ShardsChangedListener _shardsChangedListener = new NoteStore.ShardsChangedListener() {
+        @Override
+        public void shardsChanged() {
+            if (_recyclerView.getAdapter() != null) {
+                populateNotes();
+            }
+        }
+    };
+
+    private final RealmChangeListener _notesChangeListener = new RealmChangeListener() {
+        @Override
+        public void onChange() {
+            notesChanged();
+        }
+    };
+
+    /**
+     * Tells the adapter which notes were added, removed or changed since it last looked.
+     */
+    private void notesChanged() {
+        if (_recyclerView.getAdapter() == null) {
+            return;
+        }
+        if (_notes instanceof MergedNoteList) {
+            ((MergedNoteList) _notes).rebuild();
         }
+        NotesDiff.Snapshot before = _notesSnapshot;
+        _notesSnapshot = NotesDiff.snapshot(_notes);
+        NotesDiff.dispatch(before, _notesSnapshot, _recyclerView.getAdapter());
     }
 }
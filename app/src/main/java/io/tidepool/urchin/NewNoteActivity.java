@@ -12,7 +12,6 @@ import android.os.Bundle;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.text.Editable;
-import android.text.SpannableString;
 import android.text.TextWatcher;
 
 import io.tidepool.urchin.util.Log;
@@ -23,28 +22,24 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.DatePicker;
 import android.widget.EditText;
 import android.widget.LinearLayout;
+import android.widget.ListPopupWindow;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 
 import io.realm.Realm;
@@ -56,18 +51,25 @@ import io.tidepool.urchin.data.Hashtag;
 import io.tidepool.urchin.data.Note;
 import io.tidepool.urchin.data.User;
 import io.tidepool.urchin.ui.HashtagAdapter;
+import io.tidepool.urchin.ui.HashtagHighlighter;
 import io.tidepool.urchin.ui.UserFilterAdapter;
+import io.tidepool.urchin.storage.HashtagIndex;
+import io.tidepool.urchin.storage.NoteStore;
+import io.tidepool.urchin.util.DateCodec;
+import io.tidepool.urchin.util.HashtagScanner;
 import io.tidepool.urchin.util.HashtagUtils;
 import io.tidepool.urchin.util.MiscUtils;
 
-public class NewNoteActivity extends AppCompatActivity implements RealmChangeListener {
+public class NewNoteActivity extends AppCompatActivity {
     private static final String LOG_TAG = "NewNote";
 
     // Arguments we can take to edit instead of create a new note
     public static final String ARG_EDIT_NOTE_ID = "EditNoteId";         // The ID of the note to edit
+    public static final String ARG_EDIT_NOTE_GROUP_ID = "EditNoteGroupId"; // Who the note was written to
 
     private static final int MAX_TAGS = 50;         // Most tags we will show in the scrolling list
-    private static final int FORMAT_TIMEOUT = 1000; // Delay we wait to see if the user has stopped typing
+    private static final int REFRESH_DELAY = 500;   // Quiet time we wait for before refreshing users and hashtags
+    private static final int MAX_SUGGESTIONS = 5;   // Most tags we suggest for the one being typed
 
     private EditText _noteEditText;
     private TextView _dateTimeTextView;
@@ -76,12 +78,25 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
     private ListView _dropDownListView;
 
     private Realm _realm;
+    private Realm _notesRealm;                      // Holds the note we're editing, if any
     private User _currentUser;
+    private RealmResults<User> _writableUsers;      // Users that notes can be written to
+    private String _writableUsersKey;               // What the drop-down list last showed
 
-    private Date _noteTime;
-    private Handler _formatTextHandler;
+    private List<String> _shownTags = Collections.emptyList();   // What the hashtag bar shows
+
+    // Database changes are gathered up and acted on once they stop for REFRESH_DELAY
+    private Handler _refreshHandler;
+    private boolean _usersChanged;
+    private boolean _hashtagsChanged;
+
+    // Suggestions for the hashtag being typed
+    private ListPopupWindow _suggestionPopup;
+    private ArrayAdapter<String> _suggestionAdapter;
+    private final HashtagScanner _suggestionScanner = new HashtagScanner();
+    private int _suggestionStart;                   // Where the tag being typed starts
 
-    private boolean _updatingText;                  // So we don't update text recursively
+    private Date _noteTime;
 
     private Note _editingNote;                      // Null for a new note
 
@@ -106,7 +121,7 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
             }
         });
 
-        _formatTextHandler = new Handler();
+        _refreshHandler = new Handler();
 
         // Show a context menu for the date / time bar
         View dateTimeLayout = findViewById(R.id.date_time_layout);
@@ -124,20 +139,31 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         _noteTime = new Date();
         setDateTimeText(_noteTime);
 
-        // Populate the hashtags
-        setupHashtags();
-
-        // Make the hashtags look good in the note
-        // TODO: Better hashtag formatting in edit text.
-        // This seems kind of clunky having the delay. Without the delay it's almost unusable,
-        // though, as formatting the tags seems to take a long time. There's probably a more efficient
-        // way to make this work...
+        // Populate the hashtags. The index ranks them as notes come and go, and is read in the
+        // background the first time.
+        _hashtagView.setLayoutManager(new LinearLayoutManager(this, LinearLayoutManager.HORIZONTAL, false));
+        loadHashtags();
+        HashtagIndex.getInstance().addIndexListener(_hashtagIndexListener);
+
+        // Highlight hashtags as they're typed. Only the words each edit touches are rescanned.
+        _noteEditText.addTextChangedListener(new HashtagHighlighter(getResources().getColor(R.color.hashtag_text)));
+
+        // Suggest tags as one is typed
+        _suggestionAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<String>());
+        _suggestionPopup = new ListPopupWindow(this);
+        _suggestionPopup.setAnchorView(_hashtagView);
+        _suggestionPopup.setAdapter(_suggestionAdapter);
+        _suggestionPopup.setModal(false);
+        _suggestionPopup.setInputMethodMode(ListPopupWindow.INPUT_METHOD_NEEDED);
+        _suggestionPopup.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                completeHashtag(_suggestionAdapter.getItem(position));
+            }
+        });
         _noteEditText.addTextChangedListener(new TextWatcher() {
-            boolean _isChanging;
-
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-
             }
 
             @Override
@@ -146,33 +172,24 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
 
             @Override
             public void afterTextChanged(Editable s) {
-                if (!_updatingText) {
-                    // Format the text once the user has stopped typing
-                    _formatTextHandler.removeCallbacksAndMessages(null);
-                    _formatTextHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            formatText();
-                        }
-                    }, FORMAT_TIMEOUT);
-                }
+                updateSuggestions();
             }
         });
 
-        _realm.addChangeListener(this);
+        // Only changes to these users matter to the drop-down list
+        _writableUsers = _realm.where(User.class)
+                .equalTo("viewable", true)
+                .equalTo("patient", true)
+                .findAllSorted("sortName");
+        _writableUsersKey = getUsersKey(_writableUsers);
+        _writableUsers.addChangeListener(_usersChangeListener);
 
         CurrentUser currentUser = _realm.where(CurrentUser.class).findFirst();
         if (currentUser != null) {
             setCurrentUser(currentUser.getCurrentUser());
-        } else {
-            // Find a user that has a profile
-            RealmResults<User> users = _realm.where(User.class).findAllSorted("fullName");
-            for (User user : users) {
-                if (user.getProfile() != null && user.getProfile().getPatient() != null) {
-                    setCurrentUser(user);
-                    break;
-                }
-            }
+        } else if (_writableUsers.size() > 0) {
+            // Write to the first user we can
+            setCurrentUser(_writableUsers.first());
         }
 
         // See if we were launched to create a new note, or to edit an existing one
@@ -180,7 +197,7 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         if (args != null) {
             String messageId = args.getString(ARG_EDIT_NOTE_ID);
             if (messageId != null) {
-                setEditing(messageId);
+                setEditing(messageId, args.getString(ARG_EDIT_NOTE_GROUP_ID));
             }
         }
     }
@@ -189,19 +206,25 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
     protected void onDestroy() {
         super.onDestroy();
 
-        _realm.removeChangeListener(this);
+        _refreshHandler.removeCallbacksAndMessages(null);
+        _suggestionPopup.dismiss();
+        HashtagIndex.getInstance().removeIndexListener(_hashtagIndexListener);
+        _writableUsers.removeChangeListener(_usersChangeListener);
         _realm.close();
+        if (_notesRealm != null) {
+            _notesRealm.close();
+        }
     }
 
-    private void setEditing(String messageId) {
-        Note note = _realm.where(Note.class).equalTo("id", messageId).findFirst();
+    private void setEditing(String messageId, String groupId) {
+        _notesRealm = NoteStore.getInstance().openNotes(groupId);
+        Note note = _notesRealm.where(Note.class).equalTo("id", messageId).findFirst();
         User author = _realm.where(User.class).equalTo("userid", note.getUserid()).findFirst();
         setCurrentUser(author);
-        _noteTime = note.getTimestamp();
+        _noteTime = new Date(note.getTimestamp());
         setDateTimeText(_noteTime);
-        SpannableString ss = new SpannableString(note.getMessagetext());
-        HashtagUtils.formatHashtags(ss, getResources().getColor(R.color.hashtag_text), true);
-        _noteEditText.setText(ss);
+        // The highlighter styles the hashtags
+        _noteEditText.setText(note.getMessagetext());
         _editingNote = note;
     }
 
@@ -209,6 +232,14 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         _currentUser = user;
         if (user != null) {
             setTitle(MiscUtils.getPrintableNameForUser(_currentUser));
+
+            // Don't write (and wake every listener) if it's already the current user
+            CurrentUser current = _realm.where(CurrentUser.class).findFirst();
+            if (current != null && current.getCurrentUser() != null
+                    && user.getUserid().equals(current.getCurrentUser().getUserid())) {
+                return;
+            }
+
             _realm.beginTransaction();
             RealmResults<CurrentUser> results = _realm.where(CurrentUser.class).findAll();
             if (results.size() > 0) {
@@ -221,24 +252,6 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         }
     }
 
-    private void formatText() {
-        long startTime = System.nanoTime();
-
-        _updatingText = true;
-        int selectionStart = _noteEditText.getSelectionStart();
-        int selectionEnd = _noteEditText.getSelectionEnd();
-        String text = _noteEditText.getText().toString();
-        SpannableString ss = new SpannableString(text);
-        Log.d(LOG_TAG, "Text: " + text);
-        HashtagUtils.formatHashtags(ss, getResources().getColor(R.color.hashtag_text), true);
-        _noteEditText.setText(ss, EditText.BufferType.SPANNABLE);
-        _noteEditText.setSelection(selectionStart, selectionEnd);
-        _updatingText = false;
-
-        long totalTime = System.nanoTime() - startTime;
-        Log.d(LOG_TAG, "formatText took " + totalTime / 1000000L + "ms");
-    }
-
     private void postOrUpdate() {
         Log.d(LOG_TAG, "POST");
 
@@ -254,17 +267,21 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         pd.setIcon(getResources().getDrawable(R.mipmap.ic_launcher));
         pd.show();
 
-        APIClient api = MainActivity.getInstance().getAPIClient();
+        APIClient api = UrchinApplication.get(this).getAPIClient();
 
         Note note = new Note();
         note.setMessagetext(_noteEditText.getText().toString());
-        note.setTimestamp(_noteTime);
+        note.setTimestamp(_noteTime.getTime());
 
         if (_editingNote == null) {
             // We are creating a new note
+            User author = api.getUser();
             note.setGroupid(_currentUser.getUserid());
-            note.setUserid(api.getUser().getUserid());
-            note.setAuthorFullName(MiscUtils.getPrintableNameForUser(_currentUser));
+            note.setUserid(author.getUserid());
+            note.setAuthorFullName(MiscUtils.getPrintableNameForUser(author));
+            if (!_currentUser.getUserid().equals(author.getUserid())) {
+                note.setGroupFullName(MiscUtils.getPrintableNameForUser(_currentUser));
+            }
             note.setGuid(UUID.randomUUID().toString());
 
             api.postNote(note, new APIClient.PostNoteListener() {
@@ -282,10 +299,12 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
                 }
             });
         } else {
-            // We are updating an existing note. We only care about the ID, messagetext and timestamp.
+            // We are updating an existing note. We only send the ID, messagetext and timestamp;
+            // the group ID says which cached notes are out of date.
             note.setId(_editingNote.getId());
+            note.setGroupid(_editingNote.getGroupid());
 
-            api.updateNote(note, new APIClient.UpdateNoteListener() {
+            api.updateNote(note, _editingNote.getTimestamp(), new APIClient.UpdateNoteListener() {
                 @Override
                 public void noteUpdated(Note note, Exception error) {
                     pd.dismiss();
@@ -293,10 +312,33 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
                         // Note was posted. Update the note in the database.
                         Toast.makeText(NewNoteActivity.this, R.string.note_updated, Toast.LENGTH_LONG).show();
 
-                        _realm.beginTransaction();
+                        // Its hashtags are replaced too, so the tag rankings follow the edit
+                        List<String> oldTags = new ArrayList<>();
+                        String ownerId = _editingNote.getGroupid();
+                        for (Hashtag hashtag : _editingNote.getHashtags()) {
+                            oldTags.add(hashtag.getTag());
+                            ownerId = hashtag.getOwnerId();
+                        }
+                        long oldTimestamp = _editingNote.getTimestamp();
+                        int[] offsets = HashtagUtils.findHashtags(note.getMessagetext());
+                        List<Hashtag> hashtags = HashtagUtils.parseHashtags(note.getMessagetext(), offsets);
+                        List<String> newTags = new ArrayList<>(hashtags.size());
+
+                        _notesRealm.beginTransaction();
                         _editingNote.setMessagetext(note.getMessagetext());
+                        _editingNote.setHashtagOffsets(HashtagUtils.packOffsets(offsets));
                         _editingNote.setTimestamp(note.getTimestamp());
-                        _realm.commitTransaction();
+                        _editingNote.getHashtags().where().findAll().clear();
+                        for (Hashtag hashtag : hashtags) {
+                            hashtag.setOwnerId(ownerId);
+                            _editingNote.getHashtags().add(hashtag);
+                            newTags.add(hashtag.getTag());
+                        }
+                        _notesRealm.commitTransaction();
+
+                        HashtagIndex index = HashtagIndex.getInstance();
+                        index.updateNote(ownerId, oldTags, oldTimestamp, false);
+                        index.updateNote(ownerId, newTags, note.getTimestamp(), true);
 
                         finish();
                     } else {
@@ -393,7 +435,7 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
 
         // We are editing a note. Return true if the text or date has changed
         return !(_noteEditText.getText().toString().equals(_editingNote.getMessagetext()) &&
-                _noteTime.equals(_editingNote.getTimestamp()));
+                _noteTime.getTime() == _editingNote.getTimestamp());
     }
 
     private void showDropDownMenu(boolean show) {
@@ -532,7 +574,7 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
 
     private void deleteNote() {
         // We're deleting the note we are currently editing.
-        MainActivity.getInstance().getAPIClient().deleteNote(_editingNote, new APIClient.DeleteNoteListener() {
+        UrchinApplication.get(this).getAPIClient().deleteNote(_editingNote, new APIClient.DeleteNoteListener() {
             @Override
             public void noteDeleted(Exception error) {
                 if (error == null) {
@@ -546,8 +588,7 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
     }
 
     private void setDateTimeText(Date when) {
-        DateFormat df = new SimpleDateFormat("EEEE MM/dd/yy h:mm a", Locale.getDefault());
-        _dateTimeTextView.setText(df.format(when));
+        _dateTimeTextView.setText(DateCodec.formatDisplay(when.getTime()));
     }
 
     private void changeDate() {
@@ -581,63 +622,31 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
         }, cal.get(Calendar.HOUR_OF_DAY), cal.get(Calendar.MINUTE), false).show();
     }
 
-    private void setupHashtags() {
-        // TESTING
-
-        // Get the tags from the database
-        RealmResults<Hashtag> allTags = _realm.where(Hashtag.class).findAllSorted("tag");
-        Set<String> uniqueTags = new HashSet<>();
-        for (Hashtag tag : allTags) {
-            uniqueTags.add(tag.getTag());
-        }
-
-        // Add the defaults to unique tag list, just in case there aren't any tags
-        // defined yet.
-        String[] defaultTags = getResources().getStringArray(R.array.default_hashtags);
-        uniqueTags.addAll(Arrays.asList(defaultTags));
+    /**
+     * Shows the MAX_TAGS highest ranked hashtags, then the defaults in case there aren't many
+     * tags yet.
+     */
+    private void loadHashtags() {
+        List<String> tags = new ArrayList<>(HashtagIndex.getInstance().getTopTags(MAX_TAGS));
+        Set<String> defaultTags = new TreeSet<>(Arrays.asList(getResources().getStringArray(R.array.default_hashtags)));
+        defaultTags.removeAll(tags);
+        tags.addAll(defaultTags);
+        showHashtags(tags.size() > MAX_TAGS ? tags.subList(0, MAX_TAGS) : tags);
+    }
 
-        // Get the counts of each of the hashtags
-        final Map<String, Long> tagCounts = new HashMap<>();
-        for (String tag : uniqueTags) {
-            tagCounts.put(tag, _realm.where(Hashtag.class).equalTo("tag", tag).count());
-            // Log.d(LOG_TAG, "Tag: " + tag + " Count: " + tagCounts.get(tag));
+    private void showHashtags(List<String> tags) {
+        if (tags.equals(_shownTags)) {
+            // Nothing the user would notice changed
+            return;
         }
+        _shownTags = tags;
 
-        // Sort the tags by count
-        List<String> sortedTags = new ArrayList<String>(uniqueTags);
-        Collections.sort(sortedTags, new Comparator<String>() {
-            @Override
-            public int compare(String lhs, String rhs) {
-                Long l = tagCounts.get(lhs);
-                Long r = tagCounts.get(rhs);
-                // Sort by name if the counts are equal
-                if (l.equals(r)) {
-                    return lhs.compareTo(rhs);
-                }
-                // Reverse sort here- highest counts come first
-                return r.compareTo(l);
-            }
-        });
-
-        // Create the list of hashtags for the adapter in the same order as sortedTags
+        // These aren't in the database; they were counted on another thread
         List<Hashtag> hashtagList = new ArrayList<>();
-        for (String tagName : sortedTags) {
-            RealmResults<Hashtag> results = _realm.where(Hashtag.class).equalTo("tag", tagName).findAll();
-            Hashtag tag = null;
-            if (results.size() > 0) {
-                tag = results.first();
-            }
-            if (tag == null) {
-                // Probably one of our default tags- they're not in the database.
-                tag = new Hashtag(tagName);
-            }
-            hashtagList.add(tag);
-            if (hashtagList.size() >= MAX_TAGS) {
-                break;
-            }
+        for (String tagName : tags) {
+            hashtagList.add(new Hashtag(tagName));
         }
 
-        _hashtagView.setLayoutManager(new LinearLayoutManager(this, LinearLayoutManager.HORIZONTAL, false));
         _hashtagView.setAdapter(new HashtagAdapter(hashtagList, new HashtagAdapter.OnTagTappedListener() {
             @Override
             public void tagTapped(String tag) {
@@ -664,14 +673,138 @@ public class NewNoteActivity extends AppCompatActivity implements RealmChangeLis
                 tag, 0, tag.length());
     }
 
-    @Override
-    public void onChange() {
-        // Realm database has changed
-        _realm.removeChangeListener(this);
-        Log.d(LOG_TAG, "Realm database has changed- repopulating drop-down list and hashtag view");
-        populateDropDownList();
-        setupHashtags();
-        setCurrentUser(_currentUser);
-        _realm.addChangeListener(this);
+    /**
+     * Shows the most used tags starting with the one being typed, if the cursor is at the end
+     * of a tag (or just after a '#').
+     */
+    private void updateSuggestions() {
+        int cursor = _noteEditText.getSelectionEnd();
+        Editable text = _noteEditText.getText();
+        if (cursor <= 0 || cursor != _noteEditText.getSelectionStart() || _noteEditText.getWindowToken() == null) {
+            _suggestionPopup.dismiss();
+            return;
+        }
+
+        int wordStart = cursor;
+        while (wordStart > 0 && !Character.isWhitespace(text.charAt(wordStart - 1))) {
+            wordStart--;
+        }
+        int tagStart = -1;
+        int count = _suggestionScanner.scan(text, wordStart, cursor);
+        if (count > 0 && _suggestionScanner.getEnd(count - 1) == cursor) {
+            tagStart = _suggestionScanner.getStart(count - 1);
+        } else if (text.charAt(cursor - 1) == '#'
+                && (cursor - 1 == wordStart || !HashtagScanner.isTagChar(Character.codePointBefore(text, cursor - 1)))) {
+            tagStart = cursor - 1;
+        }
+
+        List<String> tags = tagStart >= 0
+                ? HashtagIndex.getInstance().suggest(text.subSequence(tagStart, cursor).toString(), MAX_SUGGESTIONS)
+                : Collections.<String>emptyList();
+        if (tags.isEmpty() || (tags.size() == 1 && tags.get(0).length() == cursor - tagStart)) {
+            // Nothing to suggest, or it's already typed
+            _suggestionPopup.dismiss();
+            return;
+        }
+
+        _suggestionStart = tagStart;
+        _suggestionAdapter.clear();
+        for (String tag : tags) {
+            _suggestionAdapter.add(tag);
+        }
+        if (!_suggestionPopup.isShowing()) {
+            _suggestionPopup.show();
+        }
+    }
+
+    /**
+     * Replaces the tag being typed with a suggestion.
+     */
+    private void completeHashtag(String tag) {
+        _suggestionPopup.dismiss();
+        Editable text = _noteEditText.getText();
+        int start = Math.min(_suggestionStart, text.length());
+        int end = Math.max(_noteEditText.getSelectionEnd(), start);
+
+        // Take in the rest of the tag if the cursor was in the middle of it
+        while (end < text.length()) {
+            int c = Character.codePointAt(text, end);
+            if (!HashtagScanner.isTagChar(c)) {
+                break;
+            }
+            end += Character.charCount(c);
+        }
+
+        tag += " ";
+        text.replace(start, end, tag, 0, tag.length());
+    }
+
+    private final RealmChangeListener _usersChangeListener = new RealmChangeListener() {
+        @Override
+        public void onChange() {
+            _usersChanged = true;
+            scheduleRefresh();
+        }
+    };
+
+    // Tags were used, or stopped being used
+    private final HashtagIndex.IndexListener _hashtagIndexListener = new HashtagIndex.IndexListener() {
+        @Override
+        public void indexChanged() {
+            _hashtagsChanged = true;
+            scheduleRefresh();
+        }
+    };
+
+    private final Runnable _refresh = new Runnable() {
+        @Override
+        public void run() {
+            if (_usersChanged) {
+                _usersChanged = false;
+                refreshUsers();
+            }
+            if (_hashtagsChanged) {
+                _hashtagsChanged = false;
+                loadHashtags();
+            }
+        }
+    };
+
+    /**
+     * Refreshes from the database once REFRESH_DELAY has passed. A sync writes many times in
+     * a row, and the user may be typing, so we don't refresh on every write.
+     */
+    private void scheduleRefresh() {
+        _refreshHandler.removeCallbacks(_refresh);
+        _refreshHandler.postDelayed(_refresh, REFRESH_DELAY);
+    }
+
+    private void refreshUsers() {
+        String key = getUsersKey(_writableUsers);
+        if (key.equals(_writableUsersKey)) {
+            // Something else was written
+            return;
+        }
+        _writableUsersKey = key;
+        Log.d(LOG_TAG, "Users have changed- repopulating drop-down list");
+
+        if (_dropDownLayout.getVisibility() == View.VISIBLE) {
+            populateDropDownList();
+        }
+        if (_currentUser != null && _currentUser.isValid()) {
+            setTitle(MiscUtils.getPrintableNameForUser(_currentUser));
+        }
+    }
+
+    /**
+     * Returns a string that changes whenever anything the drop-down list shows does.
+     */
+    private static String getUsersKey(RealmResults<User> users) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < users.size(); i++) {
+            User user = users.get(i);
+            sb.append(user.getUserid()).append('\n').append(MiscUtils.getPrintableNameForUser(user)).append('\n');
+        }
+        return sb.toString();
     }
 }
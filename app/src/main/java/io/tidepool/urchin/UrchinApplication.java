@@ -0,0 +1,197 @@
+package io.tidepool.urchin;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.api.APIClient;
+import io.tidepool.urchin.storage.AccountStore;
+import io.tidepool.urchin.storage.Partitions;
+import io.tidepool.urchin.storage.StoreMaintenance;
+import io.tidepool.urchin.util.DateCodec;
+import io.tidepool.urchin.util.Log;
+import io.tidepool.urchin.util.StartupTrace;
+import io.tidepool.urchin.util.Trace;
+
+/**
+ * Owns what lives as long as the process: the selected server, its APIClient (and so its one
+ * request queue) and the default database. Activities come and go, on rotation or otherwise,
+ * without reopening any of it, and requests in flight keep going.
+ */
+public class UrchinApplication extends Application {
+    private static final String LOG_TAG = "UrchinApplication";
+
+    private static final String DEFAULT_SERVER = APIClient.PRODUCTION;
+
+    // Preferences used to belong to MainActivity, so they keep its file name
+    private static final String PREFS_NAME = "MainActivity";
+    private static final String PREFS_KEY_SERVER = "Server";
+
+    // Key into preferences for the ID of the user filter
+    public static final String PREFS_KEY_USERID = "PrefsUserId";
+
+    private APIClient _apiClient;
+    private Realm _realm;               // Kept open on the main thread for as long as the database is current
+    private final List<AccountStore.DatabaseChangedListener> _listeners = new ArrayList<>();
+    private boolean _sessionRefreshed;  // The session has been refreshed and synced since the server was opened
+
+    /**
+     * Returns the application from any of its contexts.
+     */
+    public static UrchinApplication get(Context context) {
+        return (UrchinApplication) context.getApplicationContext();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Trace.setEnabled(BuildConfig.DEBUG);
+        StartupTrace.begin();
+
+        // Note times are shown in the device's time zone, which changes when the user travels
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                DateCodec.resetTimeZone();
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+
+        // Each server has its own database. The one from before that belongs to the server
+        // that was selected then.
+        String server = getSelectedServer();
+        Partitions.adoptLegacyDatabase(getFilesDir(), server);
+        Trace.begin("UrchinApplication.openServer");
+        openServer(server);
+        Trace.end();
+        StartupTrace.mark("databaseOpened");
+    }
+
+    public APIClient getAPIClient() {
+        return _apiClient;
+    }
+
+    /**
+     * Returns the main thread's instance of the default database. It's closed and replaced
+     * when the database changes, so don't close it, and don't hold on to it past a
+     * DatabaseChangedListener call.
+     */
+    public Realm getRealm() {
+        return _realm;
+    }
+
+    public SharedPreferences getPreferences() {
+        return getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public String getSelectedServer() {
+        return getPreferences().getString(PREFS_KEY_SERVER, DEFAULT_SERVER);
+    }
+
+    /**
+     * Switches servers: to the server's own database (whatever we had from it last time is
+     * still there) and a new APIClient.
+     */
+    public void setSelectedServer(String server) {
+        // Clear out our user preferences - everything is different on a different server
+        clearUserPreferences();
+
+        // Save the selected server
+        getPreferences().edit().putString(PREFS_KEY_SERVER, server).apply();
+
+        openServer(server);
+    }
+
+    /**
+     * Removes preferences related to a specific user. Will not remove saved preferences for
+     * the application, such as the selected server to use.
+     */
+    public void clearUserPreferences() {
+        getPreferences().edit().remove(PREFS_KEY_USERID).apply();
+    }
+
+    /**
+     * Returns true if MainActivity has refreshed the session and synced since this server was
+     * opened, so an activity recreated for a configuration change needn't do it again.
+     */
+    public boolean isSessionRefreshed() {
+        return _sessionRefreshed;
+    }
+
+    public void setSessionRefreshed(boolean sessionRefreshed) {
+        _sessionRefreshed = sessionRefreshed;
+    }
+
+    /**
+     * Listens for the default database being switched, by signing in or out or changing
+     * servers. Must be called on the main thread.
+     */
+    public void addDatabaseChangedListener(AccountStore.DatabaseChangedListener listener) {
+        _listeners.add(listener);
+    }
+
+    public void removeDatabaseChangedListener(AccountStore.DatabaseChangedListener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Opens the database for a server and makes it the default: the signed-in account's, or
+     * the server's own if nobody is signed in. Then sets up an APIClient for it.
+     */
+    private void openServer(String server) {
+        AccountStore.initialize(this, server);
+        AccountStore.getInstance().setDatabaseChangedListener(_databaseChangedListener);
+        AccountStore.getInstance().setCurrent(AccountStore.getInstance().restore());
+
+        _apiClient = new APIClient(this, server);
+        _sessionRefreshed = false;
+    }
+
+    // Signing in or out switches to another database
+    private final AccountStore.DatabaseChangedListener _databaseChangedListener = new AccountStore.DatabaseChangedListener() {
+        @Override
+        public void databaseChanged(RealmConfiguration configuration) {
+            // The old one stays open until the listeners have let go of what they got from it
+            Realm oldRealm = _realm;
+            openRealm(configuration);
+            for (AccountStore.DatabaseChangedListener listener : new ArrayList<>(_listeners)) {
+                listener.databaseChanged(configuration);
+            }
+            if (oldRealm != null) {
+                oldRealm.close();
+            }
+        }
+    };
+
+    private void openRealm(RealmConfiguration realmConfiguration) {
+        // Compacting needs the files closed, so the maintenance job leaves it for us to do here
+        StoreMaintenance.compactIfPending(this);
+        Trace.begin("realm.open");
+        try {
+            _realm = Realm.getDefaultInstance();
+        } catch (RuntimeException e) {
+            // Only happens if the file is damaged or from a newer version we can't migrate from
+            Log.e(LOG_TAG, "Failed to load realm database. Blowing away and trying anew: " + e);
+            boolean deleted = Realm.deleteRealm(realmConfiguration);
+            Log.e(LOG_TAG, "dbFile: " + realmConfiguration.getPath() + " deleted: " + deleted);
+
+            // Try again, this time we'll just blow up if it doesn't work
+            try {
+                _realm = Realm.getDefaultInstance();
+            } catch (RuntimeException eInner) {
+                Log.e(LOG_TAG, "Failed to open / update the Realm database. Re-throwing.");
+                e.printStackTrace();
+                throw (eInner);
+            }
+        } finally {
+            Trace.end();
+        }
+    }
+}
@@ -9,12 +9,12 @@ import com.android.volley.AuthFailureError;
 import com.android.volley.Cache;
 import com.android.volley.Network;
 import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.toolbox.BasicNetwork;
-import com.android.volley.toolbox.DiskBasedCache;
 import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.StringRequest;
@@ -33,20 +33,24 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Type;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 import io.realm.Realm;
 import io.realm.RealmConfiguration;
@@ -61,9 +65,17 @@ import io.tidepool.urchin.data.Profile;
 import io.tidepool.urchin.data.EmailAddress;
 import io.tidepool.urchin.data.Session;
 import io.tidepool.urchin.data.SharedUserId;
+import io.tidepool.urchin.data.SyncState;
 import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.storage.AccountStore;
+import io.tidepool.urchin.storage.HashtagIndex;
+import io.tidepool.urchin.storage.NoteStore;
+import io.tidepool.urchin.storage.WriteCoalescer;
+import io.tidepool.urchin.util.DateCodec;
 import io.tidepool.urchin.util.HashtagUtils;
 import io.tidepool.urchin.util.MiscUtils;
+import io.tidepool.urchin.util.NoteRanges;
+import io.tidepool.urchin.util.Trace;
 
 public class APIClient {
 
@@ -82,6 +94,20 @@ public class APIClient {
     // Header label for the session token
     private static final String HEADER_SESSION_ID = "x-tidepool-session-token";
 
+    // Response cache, in its own directory so nothing else in the cache directory is evicted.
+    // A response has to fit in a quarter of it. A quarter of notes from someone who writes a
+    // lot, a couple of thousand notes, is about 2MB, so that leaves room for the biggest page
+    // as well as every profile and groups list.
+    private static final String CACHE_DIRECTORY = "responses";
+    private static final int CACHE_BYTES = 16 * 1024 * 1024;
+
+    // Shared by every APIClient, since it maps the same files. Keys are full URLs, so servers
+    // don't collide.
+    private static MappedCache __cache;
+
+    // Notes range URLs are built in UTC, so their cache keys don't change with the time zone
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
     // Key into the shared preferences database for our own preferences
     private static final String PREFS_KEY = "APIClient";
 
@@ -97,6 +123,9 @@ public class APIClient {
     // Context used to create us
     private Context _context;
 
+    // Trace spans of the requests in the queue
+    private final Map<Request<?>, Integer> _requestSpans = new IdentityHashMap<>();
+
     // Realm instance
     private Realm _realm;
 
@@ -123,16 +152,62 @@ public class APIClient {
         setServer(server);
 
         // Set up the disk cache for caching responses
-        Cache cache = new DiskBasedCache(context.getCacheDir(), 1024 * 1024);
+        if (__cache == null) {
+            __cache = new MappedCache(new File(context.getCacheDir(), CACHE_DIRECTORY), CACHE_BYTES);
+        }
+        Cache cache = __cache;
 
         // Set up the HTTPURLConnection network stack
         Network network = new BasicNetwork(new HurlStack());
 
         // Create the request queue using the cache and network we just created
         _requestQueue = new RequestQueue(cache, network);
+        _requestQueue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                Integer span;
+                synchronized (_requestSpans) {
+                    span = _requestSpans.remove(request);
+                }
+                if (span != null) {
+                    Trace.endAsync(span);
+                }
+            }
+        });
         _requestQueue.start();
     }
 
+    /**
+     * Makes a request go to the server even if its cached response is still fresh. The cached
+     * response is kept, so the server can still answer with a 304.
+     */
+    private void expire(Request<?> request) {
+        // Does nothing if the cache has been read already, which it usually has
+        Cache cache = _requestQueue.getCache();
+        cache.initialize();
+        cache.invalidate(request.getCacheKey(), true);
+    }
+
+    /**
+     * Queues a request, timed in Trace from now until its listener has been called.
+     */
+    private void enqueue(Request<?> request, String name) {
+        enqueue(request, name, request instanceof CachedStringRequest);
+    }
+
+    private void enqueue(Request<?> request, String name, boolean cached) {
+        // Only responses with a CachePolicy are kept; everything else goes to the server each time
+        request.setShouldCache(cached);
+
+        int span = Trace.beginAsync("api." + name);
+        if (span != 0) {
+            synchronized (_requestSpans) {
+                _requestSpans.put(request, span);
+            }
+        }
+        _requestQueue.add(request);
+    }
+
     /**
      * Sets the server the API client will connect to. Valid servers are:
      * <ul>
@@ -152,6 +227,15 @@ public class APIClient {
         }
     }
 
+    /**
+     * Returns the names of the servers we can connect to. Each one has its own database.
+     *
+     * @return the server names
+     */
+    public static Set<String> getServerNames() {
+        return Collections.unmodifiableSet(__servers.keySet());
+    }
+
     /**
      * Returns the current user. Only valid if authenticated.
      *
@@ -218,7 +302,7 @@ public class APIClient {
      * @param listener Listener to receive the result
      * @return a Request object, which may be canceled.
      */
-    public Request signIn(String username, String password, final SignInListener listener) {
+    public Request signIn(final String username, final String password, final SignInListener listener) {
         // Clear out the database, just in case there is anything left over
         Realm realm = Realm.getDefaultInstance();
         try {
@@ -244,6 +328,9 @@ public class APIClient {
             return null;
         }
 
+        // The account's own database, once we know the password was right
+        final RealmConfiguration[] accountDatabase = new RealmConfiguration[1];
+
         // Create the request. We want to set and get the headers, so need to override
         // parseNetworkResponse and getHeaders in the request object.
         StringRequest req = new StringRequest(Request.Method.POST, url, new Response.Listener<String>() {
@@ -251,7 +338,11 @@ public class APIClient {
             // Listener overrides
             @Override
             public void onResponse(String response) {
-                Log.d(LOG_TAG, "Login success: " + response);
+                Log.payload(LOG_TAG, "Login success", response);
+
+                if (accountDatabase[0] != null) {
+                    AccountStore.getInstance().setCurrent(accountDatabase[0]);
+                }
 
                 Realm realm = Realm.getDefaultInstance();
                 try {
@@ -279,7 +370,7 @@ public class APIClient {
         }, new Response.ErrorListener() {
             @Override
             public void onErrorResponse(VolleyError error) {
-                Log.d(LOG_TAG, "Login failure: " + error);
+                Log.d(LOG_TAG, "Login failure: %s", error);
                 listener.signInComplete(null, error);
             }
         }) {
@@ -289,7 +380,10 @@ public class APIClient {
             protected Response<String> parseNetworkResponse(NetworkResponse response) {
                 String sessionId = response.headers.get(HEADER_SESSION_ID);
                 if (sessionId != null) {
-                    Realm realm = Realm.getDefaultInstance();
+                    // Open the account's cached database, which takes a while to unlock, here
+                    // on the network thread. The session is kept there.
+                    accountDatabase[0] = AccountStore.getInstance().unlock(username, password);
+                    Realm realm = Realm.getInstance(accountDatabase[0]);
                     try {
                         realm.beginTransaction();
 
@@ -318,7 +412,7 @@ public class APIClient {
 
         // Tag the request with our context so they all can be removed if the activity goes away
         req.setTag(_context);
-        _requestQueue.add(req);
+        enqueue(req, "signIn");
         return req;
     }
 
@@ -386,7 +480,7 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(request);
+        enqueue(request, "refreshToken");
         return request;
     }
 
@@ -398,7 +492,28 @@ public class APIClient {
         // Get the headers before we get rid of the session, or we won't have a session ID!
         final Map<String, String> headers = getHeaders();
 
-        clearDatabase();
+        // Anything still waiting to be written belongs to this account
+        WriteCoalescer.getInstance().flush();
+
+        AccountStore accountStore = AccountStore.getInstance();
+        if (accountStore.isAccountOpen()) {
+            // Keep the account's data for next time, minus the session, and lock it
+            Realm realm = Realm.getDefaultInstance();
+            try {
+                realm.beginTransaction();
+                realm.where(Session.class).findAll().clear();
+                realm.where(CurrentUser.class).findAll().clear();
+                realm.commitTransaction();
+            } finally {
+                realm.close();
+            }
+            accountStore.lock();
+        } else {
+            clearDatabase();
+        }
+
+        // Cached responses would give away what the account had
+        _requestQueue.getCache().clear();
 
         String url;
         try {
@@ -431,7 +546,7 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(req);
+        enqueue(req, "signOut");
         return req;
     }
 
@@ -455,7 +570,7 @@ public class APIClient {
             @Override
             public void onResponse(String response) {
                 // Add the message to the database
-                Log.d(LOG_TAG, "Post note response data: " + response);
+                Log.payload(LOG_TAG, "Post note response data", response);
 
                 // The repsonse only contains the ID.
                 String noteId = null;
@@ -469,18 +584,25 @@ public class APIClient {
                     return;
                 }
 
-                Realm realm = Realm.getDefaultInstance();
+                int[] offsets = HashtagUtils.findHashtags(note.getMessagetext());
+                note.setHashtagOffsets(HashtagUtils.packOffsets(offsets));
+
+                Realm realm = NoteStore.getInstance().openNotes(note.getGroupid());
                 try {
                     realm.beginTransaction();
                     Note sentNote = realm.copyToRealmOrUpdate(note);
 
                     // Update the hashtags for this note.
-                    List<Hashtag> hashtags = HashtagUtils.parseHashtags(sentNote.getMessagetext());
+                    List<Hashtag> hashtags = HashtagUtils.parseHashtags(sentNote.getMessagetext(), offsets);
+                    List<String> tags = new ArrayList<>(hashtags.size());
                     for (Hashtag hash : hashtags) {
                         hash.setOwnerId(sentNote.getUserid());
                         sentNote.getHashtags().add(hash);
+                        tags.add(hash.getTag());
                     }
                     realm.commitTransaction();
+                    HashtagIndex.getInstance().updateNote(sentNote.getUserid(), tags, sentNote.getTimestamp(), true);
+                    forgetNotesRange(sentNote.getGroupid(), sentNote.getTimestamp());
 
                     listener.notePosted(sentNote, null);
                 } finally {
@@ -502,7 +624,7 @@ public class APIClient {
             @Override
             public byte[] getBody() throws AuthFailureError {
                 String bodyText = "{\"message\":" + noteJson + "}";
-                Log.d(LOG_TAG, "Message post text: " + bodyText);
+                Log.payload(LOG_TAG, "Message post text", bodyText);
                 return bodyText.getBytes();
             }
 
@@ -512,7 +634,7 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(request);
+        enqueue(request, "postNote");
         return request;
     }
 
@@ -520,7 +642,12 @@ public class APIClient {
         public abstract void noteUpdated(Note note, Exception error);
     }
 
-    public Request updateNote(final Note note, final UpdateNoteListener listener) {
+    /**
+     * @param note         The edited note, with the ID, group ID, text and time to save
+     * @param oldTimestamp The note's time before it was edited
+     * @param listener     Listener for the result
+     */
+    public Request updateNote(final Note note, final long oldTimestamp, final UpdateNoteListener listener) {
         // Build the URL
         String url = null;
         try {
@@ -534,7 +661,7 @@ public class APIClient {
         try {
             messageObject = new JSONObject();
             messageObject.put("messagetext", note.getMessagetext());
-            messageObject.put("timestamp", MiscUtils.dateToJSONString(note.getTimestamp()));
+            messageObject.put("timestamp", MiscUtils.dateToJSONString(new Date(note.getTimestamp())));
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Could not create edit message JSON: " + e.toString());
             listener.noteUpdated(null, e);
@@ -547,7 +674,9 @@ public class APIClient {
 
             @Override
             public void onResponse(String response) {
-                // Update was successful.
+                // Update was successful. It may have moved to another range.
+                forgetNotesRange(note.getGroupid(), oldTimestamp);
+                forgetNotesRange(note.getGroupid(), note.getTimestamp());
                 listener.noteUpdated(note, null);
             }
 
@@ -574,7 +703,7 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(request);
+        enqueue(request, "updateNote");
         return request;
     }
 
@@ -592,19 +721,29 @@ public class APIClient {
         }
 
         final String noteId = note.getId();
+        final String groupId = note.getGroupid();
+        final long timestamp = note.getTimestamp();
 
         StringRequest request = new StringRequest(Request.Method.DELETE, url, new Response.Listener<String>() {
             @Override
             public void onResponse(String response) {
-                // All is well. Delete the note from our database.
-                Realm realm = Realm.getDefaultInstance();
+                // All is well. Delete the note from our database, and its hashtags.
+                List<HashtagIndex.NoteTags> removed = new ArrayList<>();
+                Realm realm = NoteStore.getInstance().openNotes(groupId);
                 try {
                     realm.beginTransaction();
-                    realm.where(Note.class).equalTo("id", noteId).findAll().clear();
+                    RealmResults<Note> notes = realm.where(Note.class).equalTo("id", noteId).findAll();
+                    for (Note deleted : notes) {
+                        removed.add(new HashtagIndex.NoteTags(deleted));
+                        deleted.getHashtags().where().findAll().clear();
+                    }
+                    notes.clear();
                     realm.commitTransaction();
                 } finally {
                     realm.close();
                 }
+                HashtagIndex.getInstance().replaceNotes(removed, Collections.<HashtagIndex.NoteTags>emptyList());
+                forgetNotesRange(groupId, timestamp);
                 listener.noteDeleted(null);
             }
         }, new Response.ErrorListener() {
@@ -620,7 +759,7 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(request);
+        enqueue(request, "deleteNote");
         return request;
     }
 
@@ -631,8 +770,6 @@ public class APIClient {
             realm.beginTransaction();
             realm.where(CurrentUser.class).findAll().clear();
             realm.where(EmailAddress.class).findAll().clear();
-            realm.where(Hashtag.class).findAll().clear();
-            realm.where(Note.class).findAll().clear();
             realm.where(Patient.class).findAll().clear();
             realm.where(Profile.class).findAll().clear();
             realm.where(Session.class).findAll().clear();
@@ -642,6 +779,7 @@ public class APIClient {
         } finally {
             realm.close();
         }
+        NoteStore.getInstance().deleteAllNotes();
     }
 
     /**
@@ -706,6 +844,7 @@ public class APIClient {
                         return list;
                     }
                 })
+                .registerTypeAdapter(Note.class, new NoteTypeAdapter(dateFormat))
                 .setDateFormat(dateFormat)
                 .create();
 
@@ -717,6 +856,15 @@ public class APIClient {
     }
 
     public Request getViewableUserIds(final ViewableUserIdsListener listener) {
+        return getViewableUserIds(false, listener);
+    }
+
+    /**
+     * @param refresh  True to ask the server even if the cached groups are still fresh, as
+     *                 when the user pulls to refresh
+     * @param listener Listener for the groups
+     */
+    public Request getViewableUserIds(boolean refresh, final ViewableUserIdsListener listener) {
         StringRequest req = null;
 
         Realm realm = Realm.getDefaultInstance();
@@ -730,14 +878,14 @@ public class APIClient {
                 return null;
             }
 
-            req = new StringRequest(Request.Method.GET, url, new Response.Listener<String>() {
+            req = new CachedStringRequest(CachePolicy.GROUPS, url, new Response.Listener<String>() {
                 @Override
                 public void onResponse(String response) {
                     Realm realm = Realm.getDefaultInstance();
                     try {
                         JSONObject jsonObject = null;
                         try {
-                            Log.d(LOG_TAG, "Groups: " + response);
+                            Log.payload(LOG_TAG, "Groups", response);
                             jsonObject = new JSONObject(response);
                         } catch (JSONException e) {
                             listener.fetchComplete(null, e);
@@ -749,21 +897,53 @@ public class APIClient {
 
                         User user = getUser();
 
-                        realm.beginTransaction();
+                        // Users who stopped sharing with us
+                        List<String> unshared = new ArrayList<>();
 
-                        // Out with the old
-                        realm.where(SharedUserId.class).findAll().clear();
+                        Trace.begin("realm.viewableUserIds");
+                        try {
+                            realm.beginTransaction();
 
-                        while (iter.hasNext()) {
-                            String viewableId = (String) iter.next();
-                            userIds.add(new SharedUserId(viewableId));
-                        }
+                            // Out with the old
+                            realm.where(SharedUserId.class).findAll().clear();
+
+                            while (iter.hasNext()) {
+                                String viewableId = (String) iter.next();
+                                userIds.add(new SharedUserId(viewableId));
+                            }
 
-                        // Put the IDs into the database
-                        user.getViewableUserIds().removeAll(user.getViewableUserIds());
-                        user.getViewableUserIds().addAll(userIds);
+                            // Put the IDs into the database
+                            user.getViewableUserIds().removeAll(user.getViewableUserIds());
+                            user.getViewableUserIds().addAll(userIds);
 
-                        realm.commitTransaction();
+                            // Flag the users we already have, so the user list doesn't need to look
+                            // each ID up. Users we don't have yet are flagged when their profile arrives.
+                            List<User> wereViewable = new ArrayList<>(realm.where(User.class).equalTo("viewable", true).findAll());
+                            for (User wasViewable : wereViewable) {
+                                wasViewable.setViewable(false);
+                            }
+                            for (SharedUserId userId : userIds) {
+                                User viewable = realm.where(User.class).equalTo("userid", userId.getVal()).findFirst();
+                                if (viewable != null) {
+                                    viewable.setViewable(true);
+                                }
+                            }
+
+                            for (User wasViewable : wereViewable) {
+                                if (!wasViewable.isViewable()) {
+                                    unshared.add(wasViewable.getUserid());
+                                }
+                            }
+
+                            realm.commitTransaction();
+                        } finally {
+                            Trace.end();
+                        }
+
+                        // Their notes can go. With sharding this is just a file delete.
+                        for (String userId : unshared) {
+                            NoteStore.getInstance().deleteNotes(userId);
+                        }
 
                         listener.fetchComplete(userIds, null);
                     } finally {
@@ -783,7 +963,10 @@ public class APIClient {
                 }
             };
 
-            _requestQueue.add(req);
+            if (refresh) {
+                expire(req);
+            }
+            enqueue(req, "getViewableUserIds");
         } finally {
             realm.close();
         }
@@ -796,6 +979,15 @@ public class APIClient {
     }
 
     public Request getProfileForUserId(final String userId, final ProfileListener listener) {
+        return getProfileForUserId(userId, false, listener);
+    }
+
+    /**
+     * @param userId   The user whose profile to get
+     * @param refresh  True to ask the server even if the cached profile is still fresh
+     * @param listener Listener for the profile, or null
+     */
+    public Request getProfileForUserId(final String userId, boolean refresh, final ProfileListener listener) {
         // Build the URL
         String url = null;
         try {
@@ -807,33 +999,49 @@ public class APIClient {
             return null;
         }
 
-        StringRequest req = new StringRequest(url, new Response.Listener<String>() {
+        StringRequest req = new CachedStringRequest(CachePolicy.PROFILE, url, new Response.Listener<String>() {
             @Override
             public void onResponse(String response) {
                 Gson gson = getGson(DEFAULT_DATE_FORMAT);
-                Profile fakeProfile = gson.fromJson(response, Profile.class);
+                final Profile fakeProfile = gson.fromJson(response, Profile.class);
                 fakeProfile.setUserId(userId);
 
-                Log.d(LOG_TAG, "Profile response: " + response);
-                Realm realm = Realm.getDefaultInstance();
-                try {
-                    realm.beginTransaction();
-                    Profile profile = realm.copyToRealmOrUpdate(fakeProfile);
-                    // Create a user with this profile and add / update it
-                    User user = realm.where(User.class).equalTo("userid", userId).findFirst();
-                    if (user == null) {
-                        user = realm.createObject(User.class);
-                        user.setUserid(userId);
-                    }
-                    user.setProfile(profile);
-                    realm.commitTransaction();
-                    if (listener != null) {
-                        listener.profileReceived(profile, null);
+                Log.payload(LOG_TAG, "Profile response", response);
+                WriteCoalescer.getInstance().enqueue(new WriteCoalescer.Write() {
+                    private Profile _profile;
+
+                    @Override
+                    public void apply(WriteCoalescer.Batch batch) {
+                        Realm realm = batch.getDefaultRealm();
+
+                        // Create a user with this profile and add / update it
+                        User user = realm.where(User.class).equalTo("userid", userId).findFirst();
+                        String oldName = null;
+                        if (user == null) {
+                            user = realm.createObject(User.class);
+                            user.setUserid(userId);
+                        } else {
+                            oldName = MiscUtils.getPrintableNameForUser(user);
+                        }
+                        _profile = realm.copyToRealmOrUpdate(fakeProfile);
+                        user.setProfile(_profile);
+                        user.setPatient(_profile.getPatient() != null);
+                        user.setSortName(MiscUtils.getSortKey(_profile.getFullName()));
+                        user.setViewable(realm.where(SharedUserId.class).equalTo("val", userId).count() > 0);
+
+                        String name = MiscUtils.getPrintableNameForUser(user);
+                        if (!name.equals(oldName)) {
+                            updateGroupNames(batch.getNotesRealm(userId), userId, name);
+                        }
                     }
 
-                } finally {
-                    realm.close();
-                }
+                    @Override
+                    public void committed(Exception error) {
+                        if (listener != null) {
+                            listener.profileReceived(error == null ? _profile : null, error);
+                        }
+                    }
+                });
             }
         }, new Response.ErrorListener() {
             @Override
@@ -850,10 +1058,51 @@ public class APIClient {
             }
         };
 
-        _requestQueue.add(req);
+        if (refresh) {
+            expire(req);
+        }
+        enqueue(req, "getProfile");
         return req;
     }
 
+    /**
+     * Copies a user's display name onto the notes that were written to them by someone else.
+     * The realm must be in a transaction.
+     *
+     * @param realm  Realm holding the user's notes
+     * @param userId ID of the user whose name changed
+     * @param name   The user's new display name
+     */
+    private static void updateGroupNames(Realm realm, String userId, String name) {
+        RealmResults<Note> notes = realm.where(Note.class)
+                .equalTo("groupid", userId)
+                .notEqualTo("userid", userId)
+                .findAll();
+        for (int i = 0; i < notes.size(); i++) {
+            notes.get(i).setGroupFullName(name);
+        }
+    }
+
+    /**
+     * Moves a user's SyncState forward after a page of their notes arrives, as long as the
+     * page joins up with what we've already synced. The realm must be in a transaction.
+     *
+     * @param realm  Realm holding the sync state
+     * @param userId ID of the user whose notes we fetched
+     * @param from   Start of the page, in milliseconds since the epoch
+     * @param to     End of the page, in milliseconds since the epoch
+     */
+    private static void recordSync(Realm realm, String userId, long from, long to) {
+        SyncState state = realm.where(SyncState.class).equalTo("userId", userId).findFirst();
+        if (state == null) {
+            state = realm.createObject(SyncState.class);
+            state.setUserId(userId);
+            state.setSyncedTo(to);
+        } else if (from <= state.getSyncedTo() && to > state.getSyncedTo()) {
+            state.setSyncedTo(to);
+        }
+    }
+
     public static abstract class NotesListener {
         public abstract void notesReceived(RealmList<Note> notes, Exception error);
     }
@@ -861,13 +1110,7 @@ public class APIClient {
     public Request getNotes(final String userId, final Date fromDate, final Date toDate, final NotesListener listener) {
         String url = null;
         try {
-            DateFormat df = new SimpleDateFormat(DEFAULT_DATE_FORMAT, Locale.US);
-            String extension = "/message/notes/" + userId + "?starttime=" +
-                    URLEncoder.encode(df.format(fromDate), "utf-8") +
-                    "&endtime=" +
-                    URLEncoder.encode(df.format(toDate), "utf-8");
-
-            url = new URL(getBaseURL(), extension).toString();
+            url = getNotesURL(userId, fromDate.getTime(), toDate.getTime());
         } catch (MalformedURLException e) {
             listener.notesReceived(null, e);
             return null;
@@ -876,106 +1119,219 @@ public class APIClient {
             return null;
         }
 
-        StringRequest req = new StringRequest(url, new Response.Listener<String>() {
-            @Override
-            public void onResponse(String json) {
-                // Returned JSON is an object array called "messages"
-                Log.d(LOG_TAG, "Messages response:" + json);
+        // Whole ranges have URLs that come round again, so they're worth caching. The range
+        // we're in still changes, so it's revalidated every time; earlier ones aren't. An
+        // account's notes are only kept in its encrypted database, not in the clear in the
+        // response cache.
+        final long now = System.currentTimeMillis();
+        final CachePolicy policy;
+        if (AccountStore.getInstance().isAccountOpen()
+                || !NoteRanges.isRange(fromDate.getTime(), toDate.getTime())) {
+            policy = null;
+        } else if (toDate.getTime() <= now) {
+            policy = CachePolicy.NOTES_HISTORY;
+        } else {
+            policy = CachePolicy.NOTES_RECENT;
+        }
 
-                Realm realm = Realm.getDefaultInstance();
-                try {
-                    RealmList<Note> noteList = new RealmList<>();
-                    realm.beginTransaction();
+        // The range we're in ends in the future, but we've only synced up to now
+        final Date syncedTo = toDate.getTime() > now ? new Date(now) : toDate;
 
-                    // Get rid of all of the hashtags for this user. We'll add them in as we go
-                    // through the messages
-                    realm.where(Hashtag.class)
-                            .equalTo("ownerId", userId)
-                            .findAll().clear();
-
-                    // Also get rid of the messages for this user in the specified date range, in case some were deleted.
-                    realm.where(Note.class)
-                            .equalTo("groupid", userId)
-                            .greaterThan("timestamp", fromDate)
-                            .lessThanOrEqualTo("timestamp", toDate)
-                            .findAll().clear();
-
-                    // Odd date format in the messages
-                    Gson gson = getGson(MESSAGE_DATE_FORMAT);
+        // The notes are parsed on the network thread, and only copied into the database here
+        Request<List<Note>> req = new Request<List<Note>>(Request.Method.GET, url, new Response.ErrorListener() {
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                listener.notesReceived(null, error);
+            }
+        }) {
+            @Override
+            protected Response<List<Note>> parseNetworkResponse(NetworkResponse response) {
+                try {
+                    String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+                    // Returned JSON is an object array called "messages"
+                    Log.payload(LOG_TAG, "Messages response", json);
+                    Trace.begin("parseNotes");
                     try {
-                        JSONObject obj = new JSONObject(json);
-                        JSONArray messages = obj.getJSONArray("messages");
-
-                        for (int i = 0; i < messages.length(); i++) {
-                            String msgJson = messages.getString(i);
-
-                            Note note = gson.fromJson(msgJson, Note.class);
-
-                            // Get the fullName field from the "user" property and set it
-                            JSONObject jsonObject = new JSONObject(msgJson);
-                            JSONObject userObject = jsonObject.getJSONObject("user");
-                            note.setAuthorFullName(userObject.getString("fullName"));
-
-                            note = realm.copyToRealmOrUpdate(note);
-
-                            // Update the hashtags for this note.
-                            note.getHashtags().clear();
-                            List<Hashtag> hashtags = HashtagUtils.parseHashtags(note.getMessagetext());
-                            for (Hashtag hash : hashtags) {
-                                hash.setOwnerId(userId);
-                                note.getHashtags().add(hash);
-                            }
-
-                            // See if we're missing any users that are mentioned in the note
-                            // Check the note author (userid)
-                            RealmResults userSearch = realm.where(User.class).equalTo("userid", note.getUserid()).findAll();
-                            if (userSearch.size() == 0) {
-                                Log.d(LOG_TAG, "Getting profile for user: " + note.getUserid());
-                                getProfileForUserId(note.getUserid(), null);
-                            }
-
-                            // Also check the group (groupid)
-                            userSearch = realm.where(User.class).equalTo("userid", note.getGroupid()).findAll();
-                            if (userSearch.size() == 0) {
-                                Log.d(LOG_TAG, "Getting profile for group: " + note.getGroupid());
-                                getProfileForUserId(note.getGroupid(), null);
-                            }
-                            noteList.add(note);
-                        }
-                    } catch (JSONException e) {
-                        Log.e(LOG_TAG, "Error parsing notes: " + e);
-                        realm.cancelTransaction();
-                        listener.notesReceived(null, e);
-                        return;
-                    } catch (com.google.gson.JsonSyntaxException e) {
-                        Log.e(LOG_TAG, "Error parsing notes: " + e);
-                        realm.cancelTransaction();
-                        listener.notesReceived(null, e);
-                        return;
+                        return Response.success(parseNotes(json, userId), policy != null ? policy.createEntry(response) : null);
+                    } finally {
+                        Trace.end();
                     }
-
-                    realm.commitTransaction();
-                    listener.notesReceived(noteList, null);
-                } finally {
-                    realm.close();
+                } catch (UnsupportedEncodingException | JSONException | com.google.gson.JsonSyntaxException e) {
+                    Log.e(LOG_TAG, "Error parsing notes: " + e);
+                    return Response.error(new ParseError(e));
                 }
             }
-        }, new Response.ErrorListener() {
+
             @Override
-            public void onErrorResponse(VolleyError error) {
-                listener.notesReceived(null, error);
+            protected void deliverResponse(List<Note> notes) {
+                WriteCoalescer.getInstance().enqueue(new NotesWrite(userId, fromDate, syncedTo, notes, listener));
             }
-        }) {
+
             @Override
             public Map<String, String> getHeaders() throws AuthFailureError {
                 return APIClient.this.getHeaders();
             }
         };
 
-        _requestQueue.add(req);
+        enqueue(req, "getNotes", policy != null);
         return req;
     }
 
+    /**
+     * Parses a page of notes, with their hashtags, into objects that are not yet in Realm.
+     * Safe to call off the main thread.
+     *
+     * @param json   Response from the server
+     * @param userId ID of the user the notes were written to
+     * @return the notes
+     */
+    private static List<Note> parseNotes(String json, String userId) throws JSONException {
+        // Odd date format in the messages
+        Gson gson = getGson(MESSAGE_DATE_FORMAT);
+        JSONArray messages = new JSONObject(json).getJSONArray("messages");
+        List<Note> notes = new ArrayList<>(messages.length());
+        for (int i = 0; i < messages.length(); i++) {
+            // The author's fullName is read from the "user" property
+            Note note = gson.fromJson(messages.getString(i), Note.class);
+
+            // Find the hashtags once, for both the tag list and the note's card
+            int[] offsets = HashtagUtils.findHashtags(note.getMessagetext());
+            note.setHashtagOffsets(HashtagUtils.packOffsets(offsets));
+
+            RealmList<Hashtag> hashtags = new RealmList<>();
+            for (Hashtag hash : HashtagUtils.parseHashtags(note.getMessagetext(), offsets)) {
+                hash.setOwnerId(userId);
+                hashtags.add(hash);
+            }
+            note.setHashtags(hashtags);
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    /**
+     * Returns the URL for a user's notes between two times.
+     */
+    private String getNotesURL(String userId, long from, long to) throws MalformedURLException, UnsupportedEncodingException {
+        String extension = "/message/notes/" + userId + "?starttime=" +
+                URLEncoder.encode(DateCodec.format(from, UTC, ' ', true), "utf-8") +
+                "&endtime=" +
+                URLEncoder.encode(DateCodec.format(to, UTC, ' ', true), "utf-8");
+        return new URL(getBaseURL(), extension).toString();
+    }
+
+    /**
+     * Drops the cached page of notes a note is in, after it was posted, edited or deleted.
+     * Otherwise scrolling back to it would put back the page as it was before.
+     *
+     * @param userId    Whose notes the note is in (its groupid)
+     * @param timestamp The note's time
+     */
+    private void forgetNotesRange(String userId, long timestamp) {
+        Cache cache = _requestQueue.getCache();
+        cache.initialize();
+
+        // NotesWrite counts a note right on a range's start as in the range before, so drop
+        // that one too
+        long[] times = {timestamp, timestamp - 1};
+        for (long time : times) {
+            long from = NoteRanges.getRangeStart(time);
+            try {
+                cache.remove(Request.Method.GET + ":" + getNotesURL(userId, from, NoteRanges.getRangeEnd(from)));
+            } catch (MalformedURLException | UnsupportedEncodingException e) {
+                Log.e(LOG_TAG, "Could not build notes URL: " + e);
+            }
+        }
+    }
+
+    /**
+     * Stores a page of parsed notes, replacing what we had for that user and time range.
+     */
+    private class NotesWrite extends WriteCoalescer.Write {
+        private final String _userId;
+        private final Date _fromDate;
+        private final Date _toDate;
+        private final List<Note> _parsed;
+        private final NotesListener _listener;
+
+        // Filled in by apply(), which runs again if its batch fails
+        private RealmList<Note> _notes;
+        private List<HashtagIndex.NoteTags> _removedTags;
+        private List<HashtagIndex.NoteTags> _addedTags;
+        private Set<String> _missingUserIds;
+
+        NotesWrite(String userId, Date fromDate, Date toDate, List<Note> parsed, NotesListener listener) {
+            _userId = userId;
+            _fromDate = fromDate;
+            _toDate = toDate;
+            _parsed = parsed;
+            _listener = listener;
+        }
+
+        @Override
+        public void apply(WriteCoalescer.Batch batch) {
+            // Users are in the default database; the notes may be in a shard of their own
+            Realm usersRealm = batch.getDefaultRealm();
+            Realm realm = batch.getNotesRealm(_userId);
+
+            // Start afresh, in case this is a retry after the batch failed
+            _notes = new RealmList<>();
+            _removedTags = new ArrayList<>();
+            _addedTags = new ArrayList<>();
+            _missingUserIds = new LinkedHashSet<>();
+
+            // Get rid of the messages for this user in the specified date range, in case some
+            // were deleted, and their hashtags with them. Notes outside the range keep theirs.
+            RealmResults<Note> replaced = realm.where(Note.class)
+                    .equalTo("groupid", _userId)
+                    .greaterThan("timestamp", _fromDate.getTime())
+                    .lessThanOrEqualTo("timestamp", _toDate.getTime())
+                    .findAll();
+            for (Note note : replaced) {
+                _removedTags.add(new HashtagIndex.NoteTags(note));
+                note.getHashtags().where().findAll().clear();
+            }
+            replaced.clear();
+
+            for (Note parsed : _parsed) {
+                _addedTags.add(new HashtagIndex.NoteTags(parsed));
+                Note note = realm.copyToRealmOrUpdate(parsed);
+
+                // See if we're missing any users that are mentioned in the note. Their profiles
+                // are fetched once this is committed. Check the note author (userid)
+                if (usersRealm.where(User.class).equalTo("userid", note.getUserid()).count() == 0) {
+                    _missingUserIds.add(note.getUserid());
+                }
+
+                // Also check the group (groupid). If we already have it, store its name
+                // with the note; otherwise the name is filled in when the profile arrives.
+                User group = usersRealm.where(User.class).equalTo("userid", note.getGroupid()).findFirst();
+                if (group == null) {
+                    _missingUserIds.add(note.getGroupid());
+                } else if (!note.getGroupid().equals(note.getUserid())) {
+                    note.setGroupFullName(MiscUtils.getPrintableNameForUser(group));
+                }
+                _notes.add(note);
+            }
+
+            recordSync(usersRealm, _userId, _fromDate.getTime(), _toDate.getTime());
+        }
+
+        @Override
+        public void committed(Exception error) {
+            if (error == null) {
+                // The replaced notes' hashtags were swapped for these notes'
+                HashtagIndex.getInstance().replaceNotes(_removedTags, _addedTags);
+
+                for (String userId : _missingUserIds) {
+                    Log.d(LOG_TAG, "Getting profile for user: %s", userId);
+                    getProfileForUserId(userId, null);
+                }
+            }
+            _listener.notesReceived(error == null ? _notes : null, error);
+        }
+    }
+
     protected URL getBaseURL() {
         return _baseURL;
     }
@@ -992,7 +1348,7 @@ public class APIClient {
             headers.put(HEADER_SESSION_ID, sessionId);
         }
 
-        Log.d(LOG_TAG, "Headers: " + headers);
+        Log.d(LOG_TAG, "Headers: %s", headers);
         return headers;
     }
 }
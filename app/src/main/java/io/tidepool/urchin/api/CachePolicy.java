@@ -0,0 +1,75 @@
+package io.tidepool.urchin.api;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.util.Map;
+
+/**
+ * How long we keep using a cached response from one endpoint before asking the server again,
+ * whatever the server's own cache headers say. Past that, the request goes to the server with
+ * the response's ETag and Last-Modified, so an unchanged response costs a 304 rather than the
+ * whole body.
+ *
+ * A cached response is never shown while it's being revalidated: Volley would call the
+ * listener twice, and our listeners write to the database and start more requests.
+ */
+public final class CachePolicy {
+    private static final long MINUTE = 60 * 1000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    // Profiles rarely change
+    public static final CachePolicy PROFILE = new CachePolicy(4 * HOUR);
+
+    // Who shares with us changes more often, and decides whose notes we fetch
+    public static final CachePolicy GROUPS = new CachePolicy(5 * MINUTE);
+
+    // Notes from a range that's over (see NoteRanges) only change when an old note is edited.
+    // Our own posts, edits and deletes drop the page they're in, so only others' wait a week.
+    public static final CachePolicy NOTES_HISTORY = new CachePolicy(7 * DAY);
+
+    // Notes from the range we're in are asked for again every time, but usually cost a 304
+    public static final CachePolicy NOTES_RECENT = new CachePolicy(0);
+
+    private final long _freshMillis;
+
+    private CachePolicy(long freshMillis) {
+        _freshMillis = freshMillis;
+    }
+
+    /**
+     * Returns how long a response is used without asking the server.
+     */
+    public long getFreshMillis() {
+        return _freshMillis;
+    }
+
+    /**
+     * Makes the cache entry for a response, or returns null if the server says it mustn't be
+     * stored.
+     */
+    public Cache.Entry createEntry(NetworkResponse response) {
+        Map<String, String> headers = response.headers;
+        String cacheControl = headers.get("Cache-Control");
+        if (cacheControl != null && cacheControl.contains("no-store")) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = response.data;
+        entry.etag = headers.get("ETag");
+        entry.serverDate = parseDate(headers.get("Date"));
+        entry.lastModified = parseDate(headers.get("Last-Modified"));
+        entry.softTtl = now + _freshMillis;
+        entry.ttl = entry.softTtl;
+        entry.responseHeaders = headers;
+        return entry;
+    }
+
+    private static long parseDate(String date) {
+        return date != null ? HttpHeaderParser.parseDateAsEpoch(date) : 0;
+    }
+}
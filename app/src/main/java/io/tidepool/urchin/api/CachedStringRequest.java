@@ -0,0 +1,32 @@
+package io.tidepool.urchin.api;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.android.volley.toolbox.StringRequest;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A GET whose response is cached for as long as its CachePolicy says.
+ */
+public class CachedStringRequest extends StringRequest {
+    private final CachePolicy _policy;
+
+    public CachedStringRequest(CachePolicy policy, String url, Response.Listener<String> listener,
+                               Response.ErrorListener errorListener) {
+        super(Method.GET, url, listener, errorListener);
+        _policy = policy;
+    }
+
+    @Override
+    protected Response<String> parseNetworkResponse(NetworkResponse response) {
+        String parsed;
+        try {
+            parsed = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            parsed = new String(response.data);
+        }
+        return Response.success(parsed, _policy.createEntry(response));
+    }
+}
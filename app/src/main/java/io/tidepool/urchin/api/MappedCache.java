@@ -0,0 +1,391 @@
+package io.tidepool.urchin.api;
+
+import com.android.volley.Cache;
+import com.android.volley.VolleyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A response cache kept in a few memory-mapped segment files, rather than a file per response
+ * like DiskBasedCache.
+ *
+ * Responses are appended to the current segment. When it's full, the oldest segment is emptied
+ * and written over. A response that's read while it's in that segment is first copied to the
+ * current one, so what's evicted is what hasn't been written or read for longest, much as
+ * with DiskBasedCache's LRU. A response has to fit in one segment. A map in memory says
+ * where each response is. It's rebuilt at startup by reading the segments' record headers in
+ * the order they were written, which is one pass over a few files instead of opening every
+ * file in a directory. Removals are written as tombstones so they stay removed. clear() writes
+ * zeros over the segments, so nothing that was cached can be read back out of the files.
+ *
+ * A hit is copied straight out of the mapping into the entry's data; nothing is opened or
+ * read through a stream.
+ */
+public class MappedCache implements Cache {
+    private static final int SEGMENT_COUNT = 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    // Segments from before clear() zeroed them start 0x55524353, and may still hold notes from
+    // an account that's since been locked, so they're wiped rather than reused
+    private static final int SEGMENT_MAGIC = 0x55524354;
+    private static final int RECORD_MAGIC = 0x55524352;
+
+    // Segment: magic, sequence (higher is newer), then records until one without the magic
+    private static final int SEQUENCE_OFFSET = 4;
+    private static final int SEGMENT_HEADER_BYTES = 16;
+
+    // Record: magic, length, ttl, softTtl, serverDate, lastModified, data length, then the key,
+    // etag, response headers and data
+    private static final int LENGTH_OFFSET = 4;
+    private static final int TTL_OFFSET = 8;
+    private static final int SOFT_TTL_OFFSET = 16;
+    private static final int DATA_LENGTH_OFFSET = 40;
+    private static final int RECORD_HEADER_BYTES = 44;
+
+    // Data length of a removal
+    private static final int TOMBSTONE = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final class Slot {
+        final int segment;
+        final int offset;
+
+        Slot(int segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private final File _directory;
+    private final int _segmentBytes;
+
+    // All guarded by this
+    private final MappedByteBuffer[] _segments = new MappedByteBuffer[SEGMENT_COUNT];
+    private final long[] _sequences = new long[SEGMENT_COUNT];
+    private final Map<String, Slot> _index = new HashMap<>();
+    private boolean _open;
+    private int _current;               // Segment being written to
+    private int _position;              // Where the next record goes in it
+
+    /**
+     * @param directory Where to keep the segment files
+     * @param maxBytes  Most space to use, split evenly between the segments
+     */
+    public MappedCache(File directory, int maxBytes) {
+        _directory = directory;
+        _segmentBytes = Math.max(maxBytes / SEGMENT_COUNT, SEGMENT_HEADER_BYTES + RECORD_HEADER_BYTES + 4);
+    }
+
+    @Override
+    public synchronized void initialize() {
+        if (_open) {
+            return;
+        }
+        if (!_directory.exists() && !_directory.mkdirs()) {
+            VolleyLog.e("Unable to create cache dir %s", _directory.getAbsolutePath());
+            return;
+        }
+        try {
+            for (int i = 0; i < SEGMENT_COUNT; i++) {
+                _segments[i] = map(new File(_directory, SEGMENT_PREFIX + i));
+                int magic = _segments[i].getInt(0);
+                if (magic != SEGMENT_MAGIC) {
+                    // A new file is zeros already
+                    if (magic != 0) {
+                        wipe(i);
+                    }
+                    format(i, 0);
+                }
+                _sequences[i] = _segments[i].getLong(SEQUENCE_OFFSET);
+            }
+        } catch (IOException e) {
+            VolleyLog.e("Unable to map cache segments: %s", e);
+            Arrays.fill(_segments, null);
+            return;
+        }
+
+        // Oldest first, so later writes replace earlier ones
+        Integer[] order = new Integer[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return _sequences[lhs] != _sequences[rhs] ? (_sequences[lhs] < _sequences[rhs] ? -1 : 1) : lhs - rhs;
+            }
+        });
+        for (int segment : order) {
+            _current = segment;
+            _position = replay(segment);
+        }
+        _open = true;
+    }
+
+    @Override
+    public synchronized Entry get(String key) {
+        Slot slot = _index.get(key);
+        if (slot == null) {
+            return null;
+        }
+        ByteBuffer in = _segments[slot.segment].duplicate();
+        in.position(slot.offset + TTL_OFFSET);
+        Entry entry = new Entry();
+        entry.ttl = in.getLong();
+        entry.softTtl = in.getLong();
+        entry.serverDate = in.getLong();
+        entry.lastModified = in.getLong();
+        int dataLength = in.getInt();
+        readString(in);
+        entry.etag = readString(in);
+        int headerCount = in.getInt();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(readString(in), readString(in));
+        }
+        entry.responseHeaders = headers;
+        entry.data = new byte[dataLength];
+        in.get(entry.data);
+
+        // Still being used, so don't let it go with the segment that's evicted next
+        if (slot.segment == (_current + 1) % SEGMENT_COUNT) {
+            write(key, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public synchronized void put(String key, Entry entry) {
+        if (_open) {
+            write(key, entry);
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(String key, boolean fullExpire) {
+        Slot slot = _index.get(key);
+        if (slot != null) {
+            MappedByteBuffer segment = _segments[slot.segment];
+            segment.putLong(slot.offset + SOFT_TTL_OFFSET, 0);
+            if (fullExpire) {
+                segment.putLong(slot.offset + TTL_OFFSET, 0);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        if (_index.remove(key) != null) {
+            write(key, null);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        // What's on disk has to go even if nothing's been read yet
+        initialize();
+        if (!_open) {
+            return;
+        }
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            wipe(i);
+            format(i, 0);
+            _segments[i].force();
+        }
+        _index.clear();
+        _current = 0;
+        _position = SEGMENT_HEADER_BYTES;
+    }
+
+    /**
+     * Returns how many responses are cached.
+     */
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     * Appends a response, or a tombstone if the entry is null, moving on to the next segment
+     * if this one is full.
+     */
+    private void write(String key, Entry entry) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] etagBytes = entry != null && entry.etag != null ? entry.etag.getBytes(UTF_8) : null;
+        int length = RECORD_HEADER_BYTES + 4 + keyBytes.length + 4 + (etagBytes != null ? etagBytes.length : 0) + 4;
+        byte[][] headerBytes = null;
+        if (entry != null) {
+            if (entry.responseHeaders != null) {
+                headerBytes = new byte[entry.responseHeaders.size() * 2][];
+                int i = 0;
+                for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                    headerBytes[i++] = header.getKey().getBytes(UTF_8);
+                    headerBytes[i++] = header.getValue() != null ? header.getValue().getBytes(UTF_8) : new byte[0];
+                }
+                for (byte[] bytes : headerBytes) {
+                    length += 4 + bytes.length;
+                }
+            }
+            length += entry.data.length;
+        }
+
+        // Room for the record, and the zero after it that ends the segment
+        if (SEGMENT_HEADER_BYTES + length + 4 > _segmentBytes) {
+            // Too big to cache; make sure an older copy isn't served instead
+            VolleyLog.d("Not caching %s: %d bytes is more than a segment holds", key, length);
+            if (_index.remove(key) != null) {
+                write(key, null);
+            }
+            return;
+        }
+        if (_position + length + 4 > _segmentBytes) {
+            advance();
+        }
+
+        ByteBuffer out = _segments[_current].duplicate();
+        out.position(_position + LENGTH_OFFSET);
+        out.putInt(length);
+        out.putLong(entry != null ? entry.ttl : 0);
+        out.putLong(entry != null ? entry.softTtl : 0);
+        out.putLong(entry != null ? entry.serverDate : 0);
+        out.putLong(entry != null ? entry.lastModified : 0);
+        out.putInt(entry != null ? entry.data.length : TOMBSTONE);
+        writeBytes(out, keyBytes);
+        writeBytes(out, etagBytes);
+        out.putInt(headerBytes != null ? headerBytes.length / 2 : 0);
+        if (headerBytes != null) {
+            for (byte[] bytes : headerBytes) {
+                writeBytes(out, bytes);
+            }
+        }
+        if (entry != null) {
+            out.put(entry.data);
+        }
+        out.putInt(0);
+
+        // Only now is it a record, so a write cut short is never read back
+        _segments[_current].putInt(_position, RECORD_MAGIC);
+        if (entry != null) {
+            _index.put(key, new Slot(_current, _position));
+        }
+        _position += length;
+    }
+
+    /**
+     * Empties the oldest segment, evicting everything in it, and starts writing there.
+     */
+    private void advance() {
+        int next = (_current + 1) % SEGMENT_COUNT;
+        Iterator<Slot> slots = _index.values().iterator();
+        while (slots.hasNext()) {
+            if (slots.next().segment == next) {
+                slots.remove();
+            }
+        }
+        format(next, _sequences[_current] + 1);
+        _current = next;
+        _position = SEGMENT_HEADER_BYTES;
+    }
+
+    /**
+     * Writes zeros over a whole segment, records and all.
+     */
+    private void wipe(int segment) {
+        ByteBuffer out = _segments[segment].duplicate();
+        out.clear();
+        byte[] zeros = new byte[8192];
+        while (out.hasRemaining()) {
+            out.put(zeros, 0, Math.min(zeros.length, out.remaining()));
+        }
+    }
+
+    private void format(int segment, long sequence) {
+        MappedByteBuffer buffer = _segments[segment];
+        buffer.putInt(0, SEGMENT_MAGIC);
+        buffer.putLong(SEQUENCE_OFFSET, sequence);
+        buffer.putInt(SEGMENT_HEADER_BYTES, 0);
+        _sequences[segment] = sequence;
+    }
+
+    /**
+     * Adds a segment's records to the index, and returns where the next record would go.
+     */
+    private int replay(int segment) {
+        MappedByteBuffer buffer = _segments[segment];
+        int position = SEGMENT_HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= _segmentBytes && buffer.getInt(position) == RECORD_MAGIC) {
+            int length = buffer.getInt(position + LENGTH_OFFSET);
+            if (length < RECORD_HEADER_BYTES || length > _segmentBytes - position) {
+                break;
+            }
+            String key;
+            try {
+                ByteBuffer in = buffer.duplicate();
+                in.position(position + RECORD_HEADER_BYTES);
+                in.limit(position + length);
+                key = readString(in);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                key = null;
+            }
+            if (key == null) {
+                // Not a record we wrote all of
+                break;
+            }
+            if (buffer.getInt(position + DATA_LENGTH_OFFSET) == TOMBSTONE) {
+                _index.remove(key);
+            } else {
+                _index.put(key, new Slot(segment, position));
+            }
+            position += length;
+        }
+        return position;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != _segmentBytes) {
+                raf.setLength(_segmentBytes);
+            }
+            // The mapping stays valid once the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, _segmentBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
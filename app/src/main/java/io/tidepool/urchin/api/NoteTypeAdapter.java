@@ -0,0 +1,137 @@
+package io.tidepool.urchin.api;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.util.DateCodec;
+
+/**
+ * Reads and writes notes in the message format used by the server. Notes store their times as
+ * milliseconds since the epoch, while the server sends formatted dates. The author's name is
+ * taken from the "user" object in the message, so the message only needs to be parsed once.
+ */
+class NoteTypeAdapter extends TypeAdapter<Note> {
+    // Dates are written with milliseconds in the default format. Either is read.
+    private final boolean _withMillis;
+
+    /**
+     * @param dateFormat APIClient.MESSAGE_DATE_FORMAT or DEFAULT_DATE_FORMAT, whichever the
+     *                   message dates are in
+     */
+    NoteTypeAdapter(String dateFormat) {
+        _withMillis = APIClient.DEFAULT_DATE_FORMAT.equals(dateFormat);
+    }
+
+    @Override
+    public void write(JsonWriter out, Note note) throws IOException {
+        if (note == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        writeString(out, "id", note.getId());
+        writeString(out, "parentmessage", note.getParentmessage());
+        writeString(out, "groupid", note.getGroupid());
+        writeString(out, "userid", note.getUserid());
+        writeString(out, "guid", note.getGuid());
+        writeString(out, "messagetext", note.getMessagetext());
+        writeDate(out, "timestamp", note.getTimestamp());
+        writeDate(out, "createdtime", note.getCreatedtime());
+        out.endObject();
+    }
+
+    @Override
+    public Note read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        Note note = new Note();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+
+            switch (name) {
+                case "id":
+                    note.setId(in.nextString());
+                    break;
+                case "parentmessage":
+                    note.setParentmessage(in.nextString());
+                    break;
+                case "groupid":
+                    note.setGroupid(in.nextString());
+                    break;
+                case "userid":
+                    note.setUserid(in.nextString());
+                    break;
+                case "guid":
+                    note.setGuid(in.nextString());
+                    break;
+                case "messagetext":
+                    note.setMessagetext(in.nextString());
+                    break;
+                case "timestamp":
+                    note.setTimestamp(parseDate(in.nextString()));
+                    break;
+                case "createdtime":
+                    note.setCreatedtime(parseDate(in.nextString()));
+                    break;
+                case "user":
+                    note.setAuthorFullName(readFullName(in));
+                    break;
+                default:
+                    in.skipValue();
+                    break;
+            }
+        }
+        in.endObject();
+        return note;
+    }
+
+    private static String readFullName(JsonReader in) throws IOException {
+        String fullName = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("fullName") && in.peek() == JsonToken.STRING) {
+                fullName = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return fullName;
+    }
+
+    private static long parseDate(String date) {
+        try {
+            return DateCodec.parse(date);
+        } catch (ParseException e) {
+            throw new JsonSyntaxException(date, e);
+        }
+    }
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private void writeDate(JsonWriter out, String name, long time) throws IOException {
+        if (time != 0) {
+            out.name(name).value(_withMillis ? DateCodec.formatDefaultDate(time) : DateCodec.formatMessageDate(time));
+        }
+    }
+}
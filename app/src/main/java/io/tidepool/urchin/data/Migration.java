@@ -0,0 +1,218 @@
+package io.tidepool.urchin.data;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import io.realm.DynamicRealm;
+import io.realm.DynamicRealmObject;
+import io.realm.FieldAttribute;
+import io.realm.RealmList;
+import io.realm.RealmMigration;
+import io.realm.RealmObjectSchema;
+import io.realm.RealmSchema;
+import io.tidepool.urchin.util.HashtagUtils;
+import io.tidepool.urchin.util.Log;
+import io.tidepool.urchin.util.MiscUtils;
+
+/**
+ * Migrates the Realm database from older versions of the schema, so app updates keep the data
+ * we've already downloaded. Version 0 is the schema from before we had migrations.
+ *
+ * Whenever a model class changes, bump SCHEMA_VERSION and add a step to migrate() that takes
+ * the previous version to the new one. Note shards (see NotesModule) use the same versions but
+ * only hold notes and hashtags, so steps that touch other classes must skip them.
+ */
+public class Migration implements RealmMigration {
+    private static final String LOG_TAG = "Migration";
+
+    // Current version of the schema
+    public static final long SCHEMA_VERSION = 5;
+
+    @Override
+    public void migrate(DynamicRealm realm, long oldVersion, long newVersion) {
+        Log.i(LOG_TAG, "Migrating database from version " + oldVersion + " to " + newVersion);
+        RealmSchema schema = realm.getSchema();
+
+        if (oldVersion == 0) {
+            migrateTo1(realm, schema);
+            oldVersion++;
+        }
+
+        if (oldVersion == 1) {
+            migrateTo2(schema);
+            oldVersion++;
+        }
+
+        if (oldVersion == 2) {
+            if (!isNotesShard(schema)) {
+                migrateTo3(schema);
+            }
+            oldVersion++;
+        }
+
+        if (oldVersion == 3) {
+            migrateTo4(schema);
+            oldVersion++;
+        }
+
+        if (oldVersion == 4) {
+            migrateTo5(realm, schema);
+            oldVersion++;
+        }
+    }
+
+    /**
+     * Version 1: denormalized group names on notes, and the patient list flags and sort key
+     * on users.
+     */
+    private void migrateTo1(final DynamicRealm realm, RealmSchema schema) {
+        schema.get("SharedUserId")
+                .addIndex("val");
+
+        schema.get("User")
+                .addField("patient", boolean.class, FieldAttribute.INDEXED)
+                .addField("viewable", boolean.class, FieldAttribute.INDEXED)
+                .addField("sortName", String.class)
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject user) {
+                        DynamicRealmObject profile = user.getObject("profile");
+                        if (profile != null) {
+                            user.setBoolean("patient", profile.getObject("patient") != null);
+                            user.setString("sortName", MiscUtils.getSortKey(profile.getString("fullName")));
+                        }
+                        user.setBoolean("viewable", realm.where("SharedUserId")
+                                .equalTo("val", user.getString("userid")).count() > 0);
+                    }
+                });
+
+        schema.get("Note")
+                .addField("groupFullName", String.class)
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject note) {
+                        String groupId = note.getString("groupid");
+                        if (groupId == null || groupId.equals(note.getString("userid"))) {
+                            return;
+                        }
+                        DynamicRealmObject group = realm.where("User").equalTo("userid", groupId).findFirst();
+                        if (group != null) {
+                            note.setString("groupFullName", getPrintableName(group));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Version 2: note times as milliseconds since the epoch, and indexes on the fields the notes
+     * feed queries on.
+     */
+    private void migrateTo2(RealmSchema schema) {
+        schema.get("Note")
+                .addField("timestampMillis", long.class)
+                .addField("createdtimeMillis", long.class)
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject note) {
+                        Date timestamp = note.getDate("timestamp");
+                        Date createdtime = note.getDate("createdtime");
+                        note.setLong("timestampMillis", timestamp != null ? timestamp.getTime() : 0);
+                        note.setLong("createdtimeMillis", createdtime != null ? createdtime.getTime() : 0);
+                    }
+                })
+                .removeField("timestamp")
+                .removeField("createdtime")
+                .renameField("timestampMillis", "timestamp")
+                .renameField("createdtimeMillis", "createdtime")
+                .addIndex("timestamp")
+                .addIndex("groupid")
+                .addIndex("userid");
+    }
+
+    /**
+     * Version 3: how far each user's notes have been synced, for delta syncs.
+     */
+    private void migrateTo3(RealmSchema schema) {
+        schema.create("SyncState")
+                .addField("userId", String.class, FieldAttribute.PRIMARY_KEY)
+                .addField("syncedTo", long.class);
+    }
+
+    /**
+     * Version 4: where the hashtags are in each note's text, so cards don't have to scan it.
+     */
+    private void migrateTo4(RealmSchema schema) {
+        schema.get("Note")
+                .addField("hashtagOffsets", byte[].class)
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject note) {
+                        int[] offsets = HashtagUtils.findHashtags(note.getString("messagetext"));
+                        note.setBlob("hashtagOffsets", HashtagUtils.packOffsets(offsets));
+                    }
+                });
+    }
+
+    /**
+     * Version 5: hashtags end at punctuation now, so find them again, and rebuild the Hashtag
+     * rows from them. The old rows were split on whitespace, so they could be "#that?", and
+     * notes that aren't downloaded again would keep them. The schema is the same.
+     */
+    private void migrateTo5(final DynamicRealm realm, RealmSchema schema) {
+        schema.get("Note")
+                .transform(new RealmObjectSchema.Function() {
+                    @Override
+                    public void apply(DynamicRealmObject note) {
+                        String text = note.getString("messagetext");
+                        int[] offsets = HashtagUtils.findHashtags(text);
+                        note.setBlob("hashtagOffsets", HashtagUtils.packOffsets(offsets));
+
+                        // Same owner as before; notes we downloaded use the group
+                        RealmList<DynamicRealmObject> hashtags = note.getList("hashtags");
+                        String ownerId = hashtags.isEmpty()
+                                ? note.getString("groupid") : hashtags.get(0).getString("ownerId");
+                        List<DynamicRealmObject> old = new ArrayList<>(hashtags);
+                        hashtags.clear();
+                        for (DynamicRealmObject hashtag : old) {
+                            hashtag.removeFromRealm();
+                        }
+                        for (int i = 0; i + 1 < offsets.length; i += 2) {
+                            DynamicRealmObject hashtag = realm.createObject("Hashtag");
+                            hashtag.setString("tag", text.substring(offsets[i], offsets[i + 1]));
+                            hashtag.setString("ownerId", ownerId);
+                            hashtags.add(hashtag);
+                        }
+                    }
+                });
+    }
+
+    private static boolean isNotesShard(RealmSchema schema) {
+        return !schema.contains("Session");
+    }
+
+    /**
+     * Same as MiscUtils.getPrintableNameForUser, for users we only have as dynamic objects.
+     */
+    private static String getPrintableName(DynamicRealmObject user) {
+        DynamicRealmObject profile = user.getObject("profile");
+        String name = null;
+        if (profile != null) {
+            name = profile.getString("fullName");
+            if (TextUtils.isEmpty(name)) {
+                name = profile.getString("firstName") + " " + profile.getString("lastName");
+            }
+        } else {
+            name = user.getString("fullName");
+            if (TextUtils.isEmpty(name)) {
+                name = user.getString("username");
+            }
+        }
+        if (TextUtils.isEmpty(name)) {
+            name = "[" + user.getString("userid") + "]";
+        }
+        return name;
+    }
+}
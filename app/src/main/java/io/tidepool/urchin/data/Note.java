@@ -1,39 +1,50 @@
 package io.tidepool.urchin.data;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-
 import io.realm.RealmList;
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /**
  * Created by Brian King on 8/26/15.
  */
 public class Note extends RealmObject {
-    private Date createdtime;
+    // Times are stored as milliseconds since the epoch. The notes feed filters on groupid and
+    // sorts and ranges on timestamp, so those are indexed, along with the author.
+    private long createdtime;
+    @Index
     private String groupid;
     private String guid;
     @PrimaryKey
     private String id;
     private String messagetext;
     private String parentmessage;
-    private Date timestamp;
+    @Index
+    private long timestamp;
+    @Index
     private String userid;
 
     // This is manually parsed and set from the User field in the message. We don't want
     // a real user object- just the display name.
     private String authorFullName;
 
+    // Display name of the group (the user the note was sent to), if it was sent to someone other
+    // than the author. Resolved when the note is stored and updated when that user's profile
+    // changes, so showing a note never needs to look up the group's user.
+    private String groupFullName;
+
     // Hashtags we parse when we get the Note from the server
     private RealmList<Hashtag> hashtags;
 
-    public Date getCreatedtime() {
+    // Where the hashtags are in messagetext, from HashtagUtils.findHashtags() and packed with
+    // HashtagUtils.packOffsets(), so showing the note doesn't need to look for them again
+    private byte[] hashtagOffsets;
+
+    public long getCreatedtime() {
         return createdtime;
     }
 
-    public void setCreatedtime(Date createdtime) {
+    public void setCreatedtime(long createdtime) {
         this.createdtime = createdtime;
     }
 
@@ -77,11 +88,11 @@ public class Note extends RealmObject {
         this.parentmessage = parentmessage;
     }
 
-    public Date getTimestamp() {
+    public long getTimestamp() {
         return timestamp;
     }
 
-    public void setTimestamp(Date timestamp) {
+    public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
     }
 
@@ -93,6 +104,14 @@ public class Note extends RealmObject {
         this.userid = userid;
     }
 
+    public byte[] getHashtagOffsets() {
+        return hashtagOffsets;
+    }
+
+    public void setHashtagOffsets(byte[] hashtagOffsets) {
+        this.hashtagOffsets = hashtagOffsets;
+    }
+
     public RealmList<Hashtag> getHashtags() {
         return hashtags;
     }
@@ -109,4 +128,12 @@ public class Note extends RealmObject {
         this.authorFullName = authorFullName;
     }
 
+    public String getGroupFullName() {
+        return groupFullName;
+    }
+
+    public void setGroupFullName(String groupFullName) {
+        this.groupFullName = groupFullName;
+    }
+
 }
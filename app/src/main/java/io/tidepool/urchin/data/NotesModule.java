@@ -0,0 +1,11 @@
+package io.tidepool.urchin.data;
+
+import io.realm.annotations.RealmModule;
+
+/**
+ * The classes stored in a per-user notes shard: notes and their hashtags. Users, profiles and
+ * the session stay in the default database.
+ */
+@RealmModule(classes = {Note.class, Hashtag.class})
+public class NotesModule {
+}
@@ -1,11 +1,13 @@
 package io.tidepool.urchin.data;
 
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 
 /**
  * Created by Brian King on 8/26/15.
  */
 public class SharedUserId extends RealmObject {
+    @Index
     private String val;
 
     public SharedUserId() {
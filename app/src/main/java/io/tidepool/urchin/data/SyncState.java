@@ -0,0 +1,30 @@
+package io.tidepool.urchin.data;
+
+import io.realm.RealmObject;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * How far we've downloaded a user's notes. Notes up to syncedTo were fetched in one unbroken
+ * run of pages, so a refresh only needs to fetch from a little before it.
+ */
+public class SyncState extends RealmObject {
+    @PrimaryKey
+    private String userId;
+    private long syncedTo;
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public long getSyncedTo() {
+        return syncedTo;
+    }
+
+    public void setSyncedTo(long syncedTo) {
+        this.syncedTo = syncedTo;
+    }
+}
@@ -4,6 +4,7 @@ import android.text.TextUtils;
 
 import io.realm.RealmList;
 import io.realm.RealmObject;
+import io.realm.annotations.Index;
 import io.realm.annotations.PrimaryKey;
 
 /**
@@ -19,6 +20,14 @@ public class User extends RealmObject {
 
     private RealmList<SharedUserId> viewableUserIds;
 
+    // Precomputed when profiles and groups arrive, so the list of users that notes can be
+    // written to comes from a single sorted query.
+    @Index
+    private boolean patient;        // Profile has a patient section
+    @Index
+    private boolean viewable;       // One of the signed-in user's viewable users
+    private String sortName;        // Collation key for the profile's full name
+
     public String getUserid() {
         return userid;
     }
@@ -66,4 +75,28 @@ public class User extends RealmObject {
     public void setProfile(Profile profile) {
         this.profile = profile;
     }
+
+    public boolean isPatient() {
+        return patient;
+    }
+
+    public void setPatient(boolean patient) {
+        this.patient = patient;
+    }
+
+    public boolean isViewable() {
+        return viewable;
+    }
+
+    public void setViewable(boolean viewable) {
+        this.viewable = viewable;
+    }
+
+    public String getSortName() {
+        return sortName;
+    }
+
+    public void setSortName(String sortName) {
+        this.sortName = sortName;
+    }
 }
@@ -0,0 +1,395 @@
+package io.tidepool.urchin.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.tidepool.urchin.api.APIClient;
+import io.tidepool.urchin.data.Migration;
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Keeps a separate, encrypted database for each account that signs in on a server, so
+ * signing back in to the same account only needs a delta sync.
+ *
+ * An account's database is encrypted with a key derived from its password. The key is never
+ * saved as it is. While the account is signed in it's kept in memory, and saved wrapped with
+ * a key from the Android Keystore (see KeyWrapper), so the account reopens after a restart.
+ * Without a keystore the user signs in again after a restart instead. Signing out forgets the
+ * key, which locks the database until the same account signs in again. Locked databases are
+ * deleted once they're older than the budget's age, or, oldest first, when together they
+ * take up more than its size.
+ *
+ * When nobody is signed in the server's own database (see Partitions) is the default.
+ */
+public class AccountStore {
+    private static final String LOG_TAG = "AccountStore";
+
+    private static final String PREFS_NAME = "AccountStore";
+    private static final String PREFS_KEY_ACTIVE_ACCOUNT = "ActiveAccount.";     // + server
+    private static final String PREFS_KEY_SAVED_KEY = "ActiveKey.";              // + server, no longer written
+    private static final String PREFS_KEY_WRAPPED_KEY = "WrappedKey.";           // + server
+    private static final String PREFS_KEY_SALT = "Salt.";                        // + account
+    private static final String PREFS_KEY_MAX_BYTES = "MaxBytes";
+    private static final String PREFS_KEY_MAX_AGE = "MaxAgeMillis";
+
+    private static final String ACCOUNT_INFIX = "-account-";
+    private static final int ACCOUNT_ID_LENGTH = 16;
+    private static final String REALM_SUFFIX = ".realm";
+
+    // Realm wants a 512 bit key
+    private static final int KEY_BITS = 512;
+    private static final int KEY_ITERATIONS = 10000;
+    private static final int SALT_BYTES = 16;
+
+    // Default budget for locked databases
+    public static final long DEFAULT_MAX_BYTES = 100L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    public static abstract class DatabaseChangedListener {
+        public abstract void databaseChanged(RealmConfiguration configuration);
+    }
+
+    private static AccountStore __instance;
+
+    // Keys of the unlocked accounts, by server. Only ever saved wrapped.
+    private static final Map<String, byte[]> __keys = new ConcurrentHashMap<>();
+
+    private final Context _context;
+    private final SharedPreferences _prefs;
+    private final String _server;
+    private RealmConfiguration _current;
+    private DatabaseChangedListener _listener;
+
+    private AccountStore(Context context, String server) {
+        _context = context.getApplicationContext();
+        _prefs = _context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        _server = server;
+    }
+
+    /**
+     * Sets up the account store for a server. Must be called on the main thread before
+     * getInstance(), and again whenever the server changes.
+     *
+     * @param context Context, for the shared preferences and the database folder
+     * @param server  The selected server
+     */
+    public static void initialize(Context context, String server) {
+        __instance = new AccountStore(context, server);
+    }
+
+    public static AccountStore getInstance() {
+        return __instance;
+    }
+
+    public void setDatabaseChangedListener(DatabaseChangedListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * Returns the configuration of the database to open at startup: the signed-in account's,
+     * if there is one, or the server's own.
+     */
+    public RealmConfiguration restore() {
+        // Earlier versions saved the key, which let anyone who could read it open the database
+        if (_prefs.contains(PREFS_KEY_SAVED_KEY + _server)) {
+            _prefs.edit().remove(PREFS_KEY_SAVED_KEY + _server).apply();
+        }
+
+        String accountId = _prefs.getString(PREFS_KEY_ACTIVE_ACCOUNT + _server, null);
+        byte[] key = __keys.get(_server);
+        if (accountId != null && key == null) {
+            // The key went with the last process; the keystore can give it back
+            key = KeyWrapper.unwrap(_prefs.getString(PREFS_KEY_WRAPPED_KEY + _server, null));
+            if (key != null) {
+                __keys.put(_server, key);
+            }
+        }
+        if (accountId != null && key != null) {
+            _current = buildConfiguration(getAccountName(accountId), key);
+        } else {
+            if (accountId != null) {
+                // No way to get the key back, so the account is locked until it signs in
+                _prefs.edit()
+                        .remove(PREFS_KEY_ACTIVE_ACCOUNT + _server)
+                        .remove(PREFS_KEY_WRAPPED_KEY + _server)
+                        .apply();
+            }
+            _current = buildConfiguration(getServerName(), null);
+        }
+        return _current;
+    }
+
+    public RealmConfiguration getCurrent() {
+        return _current;
+    }
+
+    public boolean isAccountOpen() {
+        return _prefs.contains(PREFS_KEY_ACTIVE_ACCOUNT + _server) && __keys.containsKey(_server);
+    }
+
+    /**
+     * Derives an account's key and opens its database, creating it if need be. If the
+     * database can't be opened with the key, e.g. because the password changed, it's deleted
+     * and started again. This is slow, so call it off the main thread.
+     *
+     * @param username The account's user name
+     * @param password The account's password
+     * @return the configuration of the account's database
+     */
+    public RealmConfiguration unlock(String username, String password) {
+        String accountId = getAccountId(username);
+        byte[] key = deriveKey(password, getSalt(accountId));
+        RealmConfiguration configuration = buildConfiguration(getAccountName(accountId), key);
+
+        try {
+            Realm.getInstance(configuration).close();
+        } catch (RuntimeException e) {
+            Log.i(LOG_TAG, "Could not unlock the cached database, starting again: " + e);
+            deleteFiles(getAccountName(accountId));
+            Realm.getInstance(configuration).close();
+        }
+
+        __keys.put(_server, key);
+        SharedPreferences.Editor editor = _prefs.edit().putString(PREFS_KEY_ACTIVE_ACCOUNT + _server, accountId);
+        String wrapped = KeyWrapper.wrap(_context, key);
+        if (wrapped != null) {
+            editor.putString(PREFS_KEY_WRAPPED_KEY + _server, wrapped);
+        } else {
+            editor.remove(PREFS_KEY_WRAPPED_KEY + _server);
+        }
+        editor.apply();
+        return configuration;
+    }
+
+    /**
+     * Makes a database the default, and tells the listener so it can reopen its Realm. Must
+     * be called on the main thread.
+     */
+    public void setCurrent(RealmConfiguration configuration) {
+        // Pending writes were meant for the database we're leaving
+        WriteCoalescer.getInstance().flush();
+        HashtagIndex.getInstance().reset();
+
+        _current = configuration;
+        Realm.setDefaultConfiguration(configuration);
+        NoteStore.initialize(_context, configuration);
+        if (_listener != null) {
+            _listener.databaseChanged(configuration);
+        }
+    }
+
+    /**
+     * Locks the signed-in account's database by forgetting its key, and goes back to the
+     * server's own database. Then deletes locked databases that are over the budget. Must be
+     * called on the main thread.
+     */
+    public void lock() {
+        String accountId = _prefs.getString(PREFS_KEY_ACTIVE_ACCOUNT + _server, null);
+        __keys.remove(_server);
+        _prefs.edit()
+                .remove(PREFS_KEY_ACTIVE_ACCOUNT + _server)
+                .remove(PREFS_KEY_WRAPPED_KEY + _server)
+                .apply();
+
+        setCurrent(buildConfiguration(getServerName(), null));
+
+        if (accountId != null) {
+            // Its age counts from when it was last used
+            File file = new File(_context.getFilesDir(), getAccountName(accountId) + REALM_SUFFIX);
+            file.setLastModified(System.currentTimeMillis());
+        }
+        enforceBudget();
+    }
+
+    /**
+     * Sets how much space and time locked databases may take up.
+     *
+     * @param maxBytes     Most bytes all of the locked databases may use together
+     * @param maxAgeMillis Longest a locked database is kept after it was last used
+     */
+    public void setBudget(long maxBytes, long maxAgeMillis) {
+        _prefs.edit()
+                .putLong(PREFS_KEY_MAX_BYTES, maxBytes)
+                .putLong(PREFS_KEY_MAX_AGE, maxAgeMillis)
+                .apply();
+        enforceBudget();
+    }
+
+    /**
+     * Deletes locked databases older than the budget's age, then the least recently used
+     * ones until the rest fit in its size.
+     */
+    public void enforceBudget() {
+        long maxBytes = _prefs.getLong(PREFS_KEY_MAX_BYTES, DEFAULT_MAX_BYTES);
+        long maxAge = _prefs.getLong(PREFS_KEY_MAX_AGE, DEFAULT_MAX_AGE_MILLIS);
+
+        // Accounts still signed in on any server aren't locked
+        Set<String> active = new HashSet<>();
+        for (String server : APIClient.getServerNames()) {
+            String accountId = _prefs.getString(PREFS_KEY_ACTIVE_ACCOUNT + server, null);
+            if (accountId != null) {
+                active.add(Partitions.getPartitionName(server) + ACCOUNT_INFIX + accountId);
+            }
+        }
+
+        // Add up the files of each locked database, including its note shards
+        final Map<String, Long> sizes = new HashMap<>();
+        final Map<String, Long> lastUsed = new HashMap<>();
+        String[] files = _context.getFilesDir().list();
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            String name = getAccountNameFromFile(file);
+            if (name == null || active.contains(name)) {
+                continue;
+            }
+            File f = new File(_context.getFilesDir(), file);
+            Long size = sizes.get(name);
+            sizes.put(name, (size != null ? size : 0) + f.length());
+            if (file.equals(name + REALM_SUFFIX)) {
+                lastUsed.put(name, f.lastModified());
+            }
+        }
+
+        List<String> names = new ArrayList<>(sizes.keySet());
+        Collections.sort(names, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                Long l = lastUsed.containsKey(lhs) ? lastUsed.get(lhs) : 0L;
+                Long r = lastUsed.containsKey(rhs) ? lastUsed.get(rhs) : 0L;
+                return l.compareTo(r);
+            }
+        });
+
+        long total = 0;
+        for (String name : names) {
+            total += sizes.get(name);
+        }
+
+        long now = System.currentTimeMillis();
+        for (String name : names) {
+            Long used = lastUsed.get(name);
+            boolean tooOld = used == null || now - used > maxAge;
+            if (tooOld || total > maxBytes) {
+                Log.i(LOG_TAG, "Deleting locked database " + name + (tooOld ? ": too old" : ": over budget"));
+                deleteFiles(name);
+                _prefs.edit().remove(PREFS_KEY_SALT + name.substring(name.length() - ACCOUNT_ID_LENGTH)).apply();
+                total -= sizes.get(name);
+            }
+        }
+    }
+
+    private RealmConfiguration buildConfiguration(String name, byte[] key) {
+        RealmConfiguration.Builder builder = new RealmConfiguration.Builder(_context)
+                .name(name + REALM_SUFFIX)
+                .schemaVersion(Migration.SCHEMA_VERSION)
+                .migration(new Migration());
+        if (key != null) {
+            builder.encryptionKey(key);
+        }
+        return builder.build();
+    }
+
+    private String getServerName() {
+        return Partitions.getPartitionName(_server);
+    }
+
+    private String getAccountName(String accountId) {
+        return getServerName() + ACCOUNT_INFIX + accountId;
+    }
+
+    /**
+     * Returns the database name an account file belongs to, e.g. staging-account-0123abcd...
+     * for its note shards and lock files, or null if it isn't an account file.
+     */
+    private static String getAccountNameFromFile(String file) {
+        int infix = file.indexOf(ACCOUNT_INFIX);
+        int end = infix + ACCOUNT_INFIX.length() + ACCOUNT_ID_LENGTH;
+        if (infix < 0 || file.length() < end) {
+            return null;
+        }
+        return file.substring(0, end);
+    }
+
+    /**
+     * Deletes a database, its note shards and Realm's own files for them. None may be open.
+     */
+    private void deleteFiles(String name) {
+        String[] files = _context.getFilesDir().list();
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            if (file.startsWith(name + ".") || file.startsWith(name + "-")) {
+                new File(_context.getFilesDir(), file).delete();
+            }
+        }
+    }
+
+    /**
+     * Account IDs are a hash of the server and user name, so the files don't give away who
+     * has used the device.
+     */
+    private String getAccountId(String username) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((_server + "\n" + username.toLowerCase(Locale.US)).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ACCOUNT_ID_LENGTH / 2; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            // Every Android device has SHA-256 and UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] getSalt(String accountId) {
+        String saved = _prefs.getString(PREFS_KEY_SALT + accountId, null);
+        if (saved != null) {
+            return Base64.decode(saved, Base64.NO_WRAP);
+        }
+
+        // A new salt makes any old database for this account unreadable, so clear it out
+        deleteFiles(getAccountName(accountId));
+        byte[] salt = new byte[SALT_BYTES];
+        new SecureRandom().nextBytes(salt);
+        _prefs.edit().putString(PREFS_KEY_SALT + accountId, Base64.encodeToString(salt, Base64.NO_WRAP)).apply();
+        return salt;
+    }
+
+    private static byte[] deriveKey(String password, byte[] salt) {
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, KEY_ITERATIONS, KEY_BITS);
+            return factory.generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // PBKDF2WithHmacSHA1 has been there since API level 10
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package io.tidepool.urchin.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.realm.Realm;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.util.HashtagTrie;
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Every hashtag in the notes databases, scored and ready to list or suggest by prefix. It's
+ * read from the databases once, on a background thread, then kept up to date as notes are
+ * posted, edited, deleted and downloaded, so listing tags never touches the database.
+ *
+ * Recent uses count for more: a use is worth half as much every HALF_LIFE_MILLIS. Rather than
+ * decay every score as time passes, each use is weighted by how long after EPOCH_MILLIS it
+ * was, which ranks tags the same way. So adding or removing a note only touches its own tags.
+ *
+ * Safe to use from any thread. Listeners are called on the main thread.
+ */
+public class HashtagIndex {
+    private static final String LOG_TAG = "HashtagIndex";
+
+    // How long it takes a use of a tag to count half as much
+    public static final long HALF_LIFE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    // Uses are weighed from here. Weights double every half life, so this is good for 80 years.
+    private static final long EPOCH_MILLIS = 1420070400000L;     // 2015-01-01 UTC
+
+    // Most half lives a weight is doubled or halved by. A double overflows past 2^1023, and
+    // this leaves room to add up a lot of them; later uses all count the same.
+    private static final double MAX_HALF_LIVES = 960;
+
+    // Most tags kept for the hashtag bar
+    public static final int MAX_TOP_TAGS = 50;
+
+    public static abstract class IndexListener {
+        public abstract void indexChanged();
+    }
+
+    /**
+     * A note's hashtags and time, read while the note is still there, so they can be taken
+     * out of the index once it's been deleted or replaced.
+     */
+    public static class NoteTags {
+        final long timestamp;
+        final List<String> ownerIds = new ArrayList<>();
+        final List<String> tags = new ArrayList<>();
+
+        public NoteTags(Note note) {
+            timestamp = note.getTimestamp();
+            for (Hashtag hashtag : note.getHashtags()) {
+                ownerIds.add(hashtag.getOwnerId());
+                tags.add(hashtag.getTag());
+            }
+        }
+    }
+
+    /**
+     * One owner's uses of one tag.
+     */
+    private static class Score {
+        int count;
+        double weight;
+    }
+
+    private static HashtagIndex __instance;
+
+    private final Object _lock = new Object();
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private final List<IndexListener> _listeners = new ArrayList<>();
+
+    // Guarded by _lock
+    private HashtagTrie _trie = new HashtagTrie(MAX_TOP_TAGS);
+    private Map<String, Map<String, Score>> _ownerScores = new HashMap<>();    // Tags by Hashtag.ownerId
+    private boolean _loaded;
+    private boolean _loading;
+    private boolean _stale;                 // Changed while loading, so load again
+    private int _generation;                // Bumped by reset(), so an old load is dropped
+
+    private final Runnable _notifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            for (IndexListener listener : new ArrayList<>(_listeners)) {
+                listener.indexChanged();
+            }
+        }
+    };
+
+    public static HashtagIndex getInstance() {
+        if (__instance == null) {
+            __instance = new HashtagIndex();
+        }
+        return __instance;
+    }
+
+    /**
+     * Returns how much one use of a tag at a time counts for.
+     */
+    public static double getWeight(long timestamp) {
+        double halfLives = (double) (timestamp - EPOCH_MILLIS) / HALF_LIFE_MILLIS;
+        return Math.pow(2, Math.max(-MAX_HALF_LIVES, Math.min(halfLives, MAX_HALF_LIVES)));
+    }
+
+    /**
+     * Listens for changes to the index. Must be called on the main thread. Adding the first
+     * listener loads the index.
+     */
+    public void addIndexListener(IndexListener listener) {
+        _listeners.add(listener);
+        load();
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void removeIndexListener(IndexListener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Reads the hashtags from the databases on a background thread, unless they've been read
+     * already. The index is empty until it's done.
+     */
+    public void load() {
+        final int generation;
+        synchronized (_lock) {
+            if (_loaded || _loading) {
+                return;
+            }
+            _loading = true;
+            _stale = false;
+            generation = _generation;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long startTime = System.nanoTime();
+                Map<String, Map<String, Score>> ownerScores = readOwnerScores();
+                HashtagTrie trie = new HashtagTrie(MAX_TOP_TAGS);
+                for (Map<String, Score> scores : ownerScores.values()) {
+                    for (Map.Entry<String, Score> entry : scores.entrySet()) {
+                        trie.add(entry.getKey(), entry.getValue().count, entry.getValue().weight);
+                    }
+                }
+
+                synchronized (_lock) {
+                    if (generation != _generation) {
+                        // The databases were changed out from under us
+                        return;
+                    }
+                    _trie = trie;
+                    _ownerScores = ownerScores;
+                    _loading = false;
+                    _loaded = !_stale;
+                }
+                Log.d(LOG_TAG, "Indexed " + trie.size() + " hashtags in "
+                        + (System.nanoTime() - startTime) / 1000000L + "ms");
+                notifyListeners();
+
+                // If notes came in while we were reading, read them again to be sure
+                load();
+            }
+        }).start();
+    }
+
+    /**
+     * Forgets everything, for when the databases are deleted or switched. They're read again
+     * straight away if anyone's listening, or else on the next load().
+     */
+    public void reset() {
+        synchronized (_lock) {
+            _generation++;
+            _trie = new HashtagTrie(MAX_TOP_TAGS);
+            _ownerScores = new HashMap<>();
+            _loaded = false;
+            _loading = false;
+        }
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!_listeners.isEmpty()) {
+                    load();
+                }
+                notifyListeners();
+            }
+        });
+    }
+
+    /**
+     * Returns the highest scoring hashtags starting with a prefix, highest first.
+     *
+     * @param prefix What's been typed so far, including the '#'
+     * @param limit  Most tags to return, up to HashtagTrie.TOP_K
+     */
+    public List<String> suggest(String prefix, int limit) {
+        synchronized (_lock) {
+            return _trie.suggest(prefix, limit);
+        }
+    }
+
+    /**
+     * Returns the highest scoring hashtags, highest first.
+     *
+     * @param limit Most tags to return, up to MAX_TOP_TAGS
+     */
+    public List<String> getTopTags(int limit) {
+        return suggest("", limit);
+    }
+
+    /**
+     * Takes away the hashtags of notes that were deleted or replaced, and adds those of the
+     * notes that replaced them. Only these notes' tags change; the rest of the owner's stay as
+     * they are. Must be called on the main thread.
+     *
+     * @param removed The notes as they were before they were deleted
+     * @param added   The new notes, which needn't be in Realm
+     */
+    public void replaceNotes(Collection<NoteTags> removed, Collection<NoteTags> added) {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        synchronized (_lock) {
+            if (!isCurrent()) {
+                return;
+            }
+            for (NoteTags note : removed) {
+                apply(note, -1);
+            }
+            for (NoteTags note : added) {
+                apply(note, 1);
+            }
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Adds or takes away one note's hashtags, after Hashtag rows were added for a posted note
+     * or replaced for an edited one. Must be called on the main thread.
+     *
+     * @param ownerId   Owner of the Hashtag rows
+     * @param tags      The note's tags, once per use
+     * @param timestamp The note's time
+     * @param add       True to add the tags, false to take them away
+     */
+    public void updateNote(String ownerId, Collection<String> tags, long timestamp, boolean add) {
+        if (tags.isEmpty()) {
+            return;
+        }
+        int sign = add ? 1 : -1;
+        double weight = getWeight(timestamp);
+        synchronized (_lock) {
+            if (!isCurrent()) {
+                return;
+            }
+            Map<String, Score> scores = _ownerScores.get(ownerId);
+            if (scores == null) {
+                scores = new HashMap<>();
+                _ownerScores.put(ownerId, scores);
+            }
+            for (String tag : tags) {
+                addTo(scores, tag, sign, sign * weight);
+                _trie.add(tag, sign, sign * weight);
+            }
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Adds (sign 1) or takes away (sign -1) one note's uses of its tags. Must hold _lock.
+     */
+    private void apply(NoteTags note, int sign) {
+        double weight = sign * getWeight(note.timestamp);
+        for (int i = 0; i < note.tags.size(); i++) {
+            String ownerId = note.ownerIds.get(i);
+            Map<String, Score> scores = _ownerScores.get(ownerId);
+            if (scores == null) {
+                scores = new HashMap<>();
+                _ownerScores.put(ownerId, scores);
+            }
+            addTo(scores, note.tags.get(i), sign, weight);
+            _trie.add(note.tags.get(i), sign, weight);
+        }
+    }
+
+    /**
+     * Returns true if the index can be updated in place. If it's loading, the load may have
+     * missed the change, so it's marked to load again instead. Must hold _lock.
+     */
+    private boolean isCurrent() {
+        if (_loading) {
+            _stale = true;
+        }
+        return _loaded;
+    }
+
+    private void notifyListeners() {
+        _handler.removeCallbacks(_notifyListeners);
+        _handler.post(_notifyListeners);
+    }
+
+    /**
+     * Reads every note's hashtags. Hashtags no note refers to are left for StoreMaintenance
+     * to delete.
+     */
+    private static Map<String, Map<String, Score>> readOwnerScores() {
+        Map<String, Map<String, Score>> ownerScores = new HashMap<>();
+        for (Realm realm : NoteStore.getInstance().openAllNotes()) {
+            try {
+                for (Note note : realm.where(Note.class).findAll()) {
+                    double weight = getWeight(note.getTimestamp());
+                    for (Hashtag hashtag : note.getHashtags()) {
+                        Map<String, Score> scores = ownerScores.get(hashtag.getOwnerId());
+                        if (scores == null) {
+                            scores = new HashMap<>();
+                            ownerScores.put(hashtag.getOwnerId(), scores);
+                        }
+                        addTo(scores, hashtag.getTag(), 1, weight);
+                    }
+                }
+            } finally {
+                realm.close();
+            }
+        }
+        return ownerScores;
+    }
+
+    private static void addTo(Map<String, Score> scores, String tag, int count, double weight) {
+        Score score = scores.get(tag);
+        if (score == null) {
+            score = new Score();
+            scores.put(tag, score);
+        }
+        score.count += count;
+        score.weight += weight;
+        if (score.count <= 0) {
+            scores.remove(tag);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.tidepool.urchin.storage;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.KeyPairGeneratorSpec;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.util.Calendar;
+
+import javax.crypto.Cipher;
+import javax.security.auth.x500.X500Principal;
+
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Wraps account keys with an RSA key pair kept in the Android Keystore, so they can be saved
+ * and unwrapped again after a restart. The private key never leaves the keystore, so a wrapped
+ * key read out of the preferences is no use anywhere else.
+ *
+ * Apps can only use the keystore from Android 4.3. Before that nothing is wrapped, and an
+ * account stays unlocked only until the process ends.
+ */
+final class KeyWrapper {
+    private static final String LOG_TAG = "KeyWrapper";
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String ALIAS = "AccountKeys";
+    private static final String TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+    private static final int VALID_YEARS = 30;
+
+    private KeyWrapper() {
+    }
+
+    static boolean isAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * Returns a key wrapped for saving, or null if it can't be wrapped on this device.
+     */
+    static String wrap(Context context, byte[] key) {
+        if (!isAvailable()) {
+            return null;
+        }
+        try {
+            KeyStore keyStore = loadKeyStore();
+            if (!keyStore.containsAlias(ALIAS)) {
+                generateKeyPair(context);
+            }
+            PublicKey publicKey = keyStore.getCertificate(ALIAS).getPublicKey();
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+            return Base64.encodeToString(cipher.doFinal(key), Base64.NO_WRAP);
+        } catch (GeneralSecurityException | IOException e) {
+            Log.w(LOG_TAG, "Could not wrap key: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key wrap() wrapped, or null if it can't be unwrapped, e.g. because the
+     * keystore was reset.
+     */
+    static byte[] unwrap(String wrapped) {
+        if (!isAvailable() || wrapped == null) {
+            return null;
+        }
+        try {
+            Key privateKey = loadKeyStore().getKey(ALIAS, null);
+            if (privateKey == null) {
+                return null;
+            }
+            Cipher cipher = getCipher();
+            cipher.init(Cipher.DECRYPT_MODE, privateKey);
+            return cipher.doFinal(Base64.decode(wrapped, Base64.NO_WRAP));
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Could not unwrap key: " + e);
+            return null;
+        }
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        return keyStore;
+    }
+
+    private static void generateKeyPair(Context context) throws GeneralSecurityException {
+        Calendar start = Calendar.getInstance();
+        Calendar end = Calendar.getInstance();
+        end.add(Calendar.YEAR, VALID_YEARS);
+        KeyPairGeneratorSpec spec = new KeyPairGeneratorSpec.Builder(context.getApplicationContext())
+                .setAlias(ALIAS)
+                .setSubject(new X500Principal("CN=" + ALIAS))
+                .setSerialNumber(BigInteger.ONE)
+                .setStartDate(start.getTime())
+                .setEndDate(end.getTime())
+                .build();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA", KEYSTORE);
+        generator.initialize(spec);
+        generator.generateKeyPair();
+    }
+
+    private static Cipher getCipher() throws GeneralSecurityException {
+        // Keystore keys only work with these providers' RSA, which changed in Android 6
+        if (Build.VERSION.SDK_INT < 23) {
+            return Cipher.getInstance(TRANSFORMATION, "AndroidOpenSSL");
+        }
+        return Cipher.getInstance(TRANSFORMATION, "AndroidKeyStoreBCWorkaround");
+    }
+}
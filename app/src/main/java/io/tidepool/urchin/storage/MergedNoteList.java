@@ -0,0 +1,85 @@
+package io.tidepool.urchin.storage;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.realm.RealmResults;
+import io.tidepool.urchin.data.Note;
+
+/**
+ * A read-only view of several lists of notes, each sorted by timestamp, as one list sorted by
+ * timestamp. This is the "All notes" feed when notes are sharded per user.
+ *
+ * The merge order is worked out once, from the timestamps, and kept as two int arrays, so
+ * get() is as cheap as it is on a single RealmResults. Call rebuild() when any of the sources
+ * change.
+ */
+public class MergedNoteList extends AbstractList<Note> {
+    private final List<RealmResults<Note>> _sources;
+
+    // For each position in the merged list, which source it comes from and where in it
+    private int[] _source = new int[0];
+    private int[] _index = new int[0];
+
+    /**
+     * @param sources Notes to merge, each sorted by ascending timestamp
+     */
+    public MergedNoteList(List<RealmResults<Note>> sources) {
+        _sources = new ArrayList<>(sources);
+        rebuild();
+    }
+
+    /**
+     * Works out the merge order again, after any of the sources have changed.
+     */
+    public void rebuild() {
+        int count = _sources.size();
+        long[][] timestamps = new long[count][];
+        int total = 0;
+        for (int s = 0; s < count; s++) {
+            RealmResults<Note> source = _sources.get(s);
+            int size = source.size();
+            long[] times = new long[size];
+            for (int i = 0; i < size; i++) {
+                times[i] = source.get(i).getTimestamp();
+            }
+            timestamps[s] = times;
+            total += size;
+        }
+
+        int[] sourceOrder = new int[total];
+        int[] indexOrder = new int[total];
+        int[] next = new int[count];
+
+        // With a handful of sources a linear scan for the smallest head beats a heap
+        for (int i = 0; i < total; i++) {
+            int best = -1;
+            long bestTime = 0;
+            for (int s = 0; s < count; s++) {
+                if (next[s] < timestamps[s].length) {
+                    long time = timestamps[s][next[s]];
+                    if (best < 0 || time < bestTime) {
+                        best = s;
+                        bestTime = time;
+                    }
+                }
+            }
+            sourceOrder[i] = best;
+            indexOrder[i] = next[best]++;
+        }
+
+        _source = sourceOrder;
+        _index = indexOrder;
+    }
+
+    @Override
+    public Note get(int location) {
+        return _sources.get(_source[location]).get(_index[location]);
+    }
+
+    @Override
+    public int size() {
+        return _source.length;
+    }
+}
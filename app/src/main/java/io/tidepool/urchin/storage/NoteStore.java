@@ -0,0 +1,391 @@
+package io.tidepool.urchin.storage;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmQuery;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.data.Migration;
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.data.NotesModule;
+import io.tidepool.urchin.data.SyncState;
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Decides which Realm file holds a user's notes and hashtags.
+ *
+ * By default everything is in the default database. With sharding turned on, each user's
+ * notes live in their own file next to it, so per-user queries only see that user's notes
+ * and dropping a user's data is a file delete. Users, profiles and the session always stay in
+ * the default database.
+ *
+ * Shards are opened on demand. Ones opened on the main thread are kept open for
+ * SHARD_IDLE_MILLIS after their last use, so a burst of note pages doesn't reopen the file
+ * for every response.
+ */
+public class NoteStore {
+    private static final String LOG_TAG = "NoteStore";
+
+    private static final String PREFS_NAME = "NoteStore";
+    private static final String PREFS_KEY_SHARDED = "Sharded";
+
+    private static final String SHARD_INFIX = "-notes-";
+    private static final String REALM_SUFFIX = ".realm";
+
+    // How long an unused shard stays open on the main thread
+    public static final long SHARD_IDLE_MILLIS = 60 * 1000;
+
+    public static abstract class ShardsChangedListener {
+        public abstract void shardsChanged();
+    }
+
+    private static NoteStore __instance;
+
+    private final Context _context;
+    private RealmConfiguration _defaultConfiguration;
+    private boolean _sharded;
+
+    // Shards kept open on the main thread, and when each was last used
+    private final Map<String, Realm> _openShards = new HashMap<>();
+    private final Map<String, Long> _lastUsed = new HashMap<>();
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private final List<ShardsChangedListener> _listeners = new ArrayList<>();
+
+    private final Runnable _closeIdleShards = new Runnable() {
+        @Override
+        public void run() {
+            closeIdleShards();
+        }
+    };
+
+    private NoteStore(Context context, RealmConfiguration defaultConfiguration) {
+        _context = context.getApplicationContext();
+        _defaultConfiguration = defaultConfiguration;
+        _sharded = _context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getBoolean(PREFS_KEY_SHARDED, false);
+    }
+
+    /**
+     * Sets up the note store. Must be called on the main thread before getInstance().
+     *
+     * @param context              Context, for the shared preferences
+     * @param defaultConfiguration Configuration of the default database. Shards are stored
+     *                             in the same folder, named after it.
+     */
+    public static void initialize(Context context, RealmConfiguration defaultConfiguration) {
+        if (__instance != null) {
+            __instance.closeAllShards();
+        }
+        __instance = new NoteStore(context, defaultConfiguration);
+    }
+
+    public static NoteStore getInstance() {
+        return __instance;
+    }
+
+    public boolean isSharded() {
+        return _sharded;
+    }
+
+    /**
+     * Turns sharding on or off. Notes in the old layout are deleted and will be downloaded
+     * again into the new one on the next refresh.
+     */
+    public void setSharded(boolean sharded) {
+        if (sharded == _sharded) {
+            return;
+        }
+        deleteAllNotes();
+        _sharded = sharded;
+        _context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREFS_KEY_SHARDED, sharded)
+                .apply();
+        notifyShardsChanged();
+    }
+
+    public RealmConfiguration getDefaultConfiguration() {
+        return _defaultConfiguration;
+    }
+
+    /**
+     * Returns the configuration of the database holding a user's notes.
+     *
+     * @param groupId ID of the user the notes were written to
+     */
+    public RealmConfiguration getConfiguration(String groupId) {
+        if (!_sharded) {
+            return _defaultConfiguration;
+        }
+        RealmConfiguration.Builder builder = new RealmConfiguration.Builder(_defaultConfiguration.getRealmFolder())
+                .name(getShardPrefix() + toFileName(groupId) + REALM_SUFFIX)
+                .schemaVersion(Migration.SCHEMA_VERSION)
+                .migration(new Migration())
+                .setModules(new NotesModule());
+
+        // Shards are locked with the same key as the database they belong to
+        if (_defaultConfiguration.getEncryptionKey() != null) {
+            builder.encryptionKey(_defaultConfiguration.getEncryptionKey());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Opens the database holding a user's notes. The caller must close it.
+     *
+     * @param groupId ID of the user the notes were written to
+     * @return an open Realm
+     */
+    public Realm openNotes(String groupId) {
+        RealmConfiguration configuration = getConfiguration(groupId);
+        if (!_sharded) {
+            return Realm.getInstance(configuration);
+        }
+
+        boolean created = !new File(configuration.getPath()).exists();
+        Realm realm = Realm.getInstance(configuration);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            keepOpen(groupId, configuration);
+        }
+        if (created) {
+            Log.d(LOG_TAG, "Created notes shard for " + groupId);
+            notifyShardsChanged();
+        }
+        return realm;
+    }
+
+    /**
+     * Opens every database that holds notes: the default database, or each of the shards.
+     * The caller must close them.
+     *
+     * @return the open Realms
+     */
+    public List<Realm> openAllNotes() {
+        List<Realm> realms = new ArrayList<>();
+        if (!_sharded) {
+            realms.add(Realm.getInstance(_defaultConfiguration));
+        } else {
+            for (String groupId : getShardGroupIds()) {
+                realms.add(openNotes(groupId));
+            }
+        }
+        return realms;
+    }
+
+    /**
+     * Returns the configurations of every database: the default database and any shards.
+     */
+    public List<RealmConfiguration> getAllConfigurations() {
+        List<RealmConfiguration> configurations = new ArrayList<>();
+        configurations.add(_defaultConfiguration);
+        if (_sharded) {
+            for (String groupId : getShardGroupIds()) {
+                configurations.add(getConfiguration(groupId));
+            }
+        }
+        return configurations;
+    }
+
+    /**
+     * Returns the IDs of the users we have a notes shard for.
+     */
+    public List<String> getShardGroupIds() {
+        List<String> groupIds = new ArrayList<>();
+        String prefix = getShardPrefix();
+        String[] names = _defaultConfiguration.getRealmFolder().list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix) && name.endsWith(REALM_SUFFIX)) {
+                    groupIds.add(name.substring(prefix.length(), name.length() - REALM_SUFFIX.length()));
+                }
+            }
+        }
+        return groupIds;
+    }
+
+    /**
+     * Deletes all of the notes written to a user. With sharding on this deletes the user's
+     * shard file.
+     *
+     * @param groupId ID of the user the notes were written to
+     */
+    public void deleteNotes(String groupId) {
+        clearSyncState(groupId);
+        HashtagIndex.getInstance().reset();
+        if (_sharded) {
+            closeShard(groupId);
+            if (deleteShard(getConfiguration(groupId))) {
+                notifyShardsChanged();
+                return;
+            }
+        }
+
+        // Not sharded, or the shard is still open somewhere: delete the rows instead
+        Realm realm = Realm.getInstance(getConfiguration(groupId));
+        try {
+            realm.beginTransaction();
+            realm.where(Hashtag.class).equalTo("ownerId", groupId).findAll().clear();
+            realm.where(Note.class).equalTo("groupid", groupId).findAll().clear();
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+    }
+
+    /**
+     * Deletes every note and hashtag, in either layout.
+     */
+    public void deleteAllNotes() {
+        clearSyncState(null);
+        HashtagIndex.getInstance().reset();
+        closeAllShards();
+        boolean shardsDeleted = false;
+        for (String groupId : getShardGroupIds()) {
+            RealmConfiguration configuration = new RealmConfiguration.Builder(_defaultConfiguration.getRealmFolder())
+                    .name(getShardPrefix() + groupId + REALM_SUFFIX)
+                    .setModules(new NotesModule())
+                    .build();
+            if (!deleteShard(configuration)) {
+                Log.e(LOG_TAG, "Could not delete notes shard " + configuration.getPath());
+            }
+            shardsDeleted = true;
+        }
+
+        Realm realm = Realm.getInstance(_defaultConfiguration);
+        try {
+            realm.beginTransaction();
+            realm.where(Hashtag.class).findAll().clear();
+            realm.where(Note.class).findAll().clear();
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+
+        if (shardsDeleted) {
+            notifyShardsChanged();
+        }
+    }
+
+    /**
+     * Forgets how far we've synced a user's notes, or everyone's if groupId is null, so the
+     * next refresh fetches them all again.
+     */
+    private void clearSyncState(String groupId) {
+        Realm realm = Realm.getInstance(_defaultConfiguration);
+        try {
+            realm.beginTransaction();
+            RealmQuery<SyncState> query = realm.where(SyncState.class);
+            if (groupId != null) {
+                query.equalTo("userId", groupId);
+            }
+            query.findAll().clear();
+            realm.commitTransaction();
+        } finally {
+            realm.close();
+        }
+    }
+
+    public void addShardsChangedListener(ShardsChangedListener listener) {
+        _listeners.add(listener);
+    }
+
+    public void removeShardsChangedListener(ShardsChangedListener listener) {
+        _listeners.remove(listener);
+    }
+
+    private void notifyShardsChanged() {
+        // Listeners are UI, so always tell them on the main thread
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ShardsChangedListener listener : new ArrayList<>(_listeners)) {
+                    listener.shardsChanged();
+                }
+            }
+        });
+    }
+
+    private String getShardPrefix() {
+        String name = _defaultConfiguration.getRealmFileName();
+        if (name.endsWith(REALM_SUFFIX)) {
+            name = name.substring(0, name.length() - REALM_SUFFIX.length());
+        }
+        return name + SHARD_INFIX;
+    }
+
+    private void keepOpen(String groupId, RealmConfiguration configuration) {
+        if (!_openShards.containsKey(groupId)) {
+            _openShards.put(groupId, Realm.getInstance(configuration));
+        }
+        _lastUsed.put(groupId, SystemClock.uptimeMillis());
+        _handler.removeCallbacks(_closeIdleShards);
+        _handler.postDelayed(_closeIdleShards, SHARD_IDLE_MILLIS);
+    }
+
+    private void closeIdleShards() {
+        long now = SystemClock.uptimeMillis();
+        Iterator<Map.Entry<String, Long>> iter = _lastUsed.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (now - entry.getValue() >= SHARD_IDLE_MILLIS) {
+                Realm realm = _openShards.remove(entry.getKey());
+                if (realm != null) {
+                    realm.close();
+                }
+                iter.remove();
+            }
+        }
+        if (!_lastUsed.isEmpty()) {
+            _handler.postDelayed(_closeIdleShards, SHARD_IDLE_MILLIS);
+        }
+    }
+
+    private void closeShard(String groupId) {
+        Realm realm = _openShards.remove(groupId);
+        if (realm != null) {
+            realm.close();
+        }
+        _lastUsed.remove(groupId);
+    }
+
+    private void closeAllShards() {
+        _handler.removeCallbacks(_closeIdleShards);
+        for (Realm realm : _openShards.values()) {
+            realm.close();
+        }
+        _openShards.clear();
+        _lastUsed.clear();
+    }
+
+    private static boolean deleteShard(RealmConfiguration configuration) {
+        try {
+            return Realm.deleteRealm(configuration);
+        } catch (IllegalStateException e) {
+            // Still open somewhere else
+            return false;
+        }
+    }
+
+    /**
+     * User IDs are hex strings, but don't trust them with the file system.
+     */
+    private static String toFileName(String groupId) {
+        StringBuilder sb = new StringBuilder(groupId.length());
+        for (int i = 0; i < groupId.length(); i++) {
+            char c = groupId.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+            sb.append(safe ? c : '_');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,73 @@
+package io.tidepool.urchin.storage;
+
+import java.io.File;
+import java.util.Locale;
+
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Each server gets its own database, so switching servers doesn't throw away what we've
+ * downloaded from the other ones. Partitions are named after the server, e.g. staging.realm,
+ * and note shards follow the name of their partition.
+ */
+public class Partitions {
+    private static final String LOG_TAG = "Partitions";
+
+    // Before partitions, everything was in the default Realm file
+    private static final String LEGACY_NAME = "default";
+    private static final String REALM_SUFFIX = ".realm";
+
+    /**
+     * Returns the name of a server's partition. Files belonging to it start with this.
+     *
+     * @param server One of the server names known to APIClient
+     */
+    public static String getPartitionName(String server) {
+        return server.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the file name of the database for a server.
+     *
+     * @param server One of the server names known to APIClient
+     */
+    public static String getDatabaseName(String server) {
+        return getPartitionName(server) + REALM_SUFFIX;
+    }
+
+    /**
+     * Hands the pre-partition database, which held data for whichever server was selected, to
+     * that server's partition. Must be called before any database is opened.
+     *
+     * @param folder Folder the databases are in
+     * @param server The server that was selected
+     */
+    public static void adoptLegacyDatabase(File folder, String server) {
+        File legacy = new File(folder, LEGACY_NAME + REALM_SUFFIX);
+        if (!legacy.exists()) {
+            return;
+        }
+
+        String name = getPartitionName(server);
+        boolean keep = !new File(folder, name + REALM_SUFFIX).exists();
+        Log.i(LOG_TAG, (keep ? "Moving " : "Deleting ") + legacy + " to the " + server + " partition");
+
+        String[] files = folder.list();
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            if (!file.startsWith(LEGACY_NAME + ".") && !file.startsWith(LEGACY_NAME + "-")) {
+                continue;
+            }
+            File from = new File(folder, file);
+            if (keep && file.endsWith(REALM_SUFFIX)) {
+                // The database itself and its note shards
+                from.renameTo(new File(folder, name + file.substring(LEGACY_NAME.length())));
+            } else {
+                // Lock and log files, which Realm makes again
+                from.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.tidepool.urchin.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * How much note history we keep in the local database. Notes older than the policy's number of
+ * months are pruned by StoreMaintenance, except for pinned users, whose notes are kept forever.
+ * The policy is saved in shared preferences.
+ */
+public class RetentionPolicy {
+    private static final String PREFS_NAME = "RetentionPolicy";
+    private static final String PREFS_KEY_MONTHS = "KeepMonths";
+    private static final String PREFS_KEY_PINNED = "PinnedUserIds";
+
+    // Default number of months of notes to keep for each user
+    public static final int DEFAULT_KEEP_MONTHS = 12;
+
+    private int _keepMonths;
+    private Set<String> _pinnedUserIds;
+
+    public RetentionPolicy(int keepMonths, Set<String> pinnedUserIds) {
+        _keepMonths = keepMonths;
+        _pinnedUserIds = new HashSet<>(pinnedUserIds);
+    }
+
+    /**
+     * Loads the saved policy, or the default policy if none has been saved.
+     *
+     * @param context Context, for the shared preferences
+     * @return the retention policy
+     */
+    public static RetentionPolicy load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return new RetentionPolicy(prefs.getInt(PREFS_KEY_MONTHS, DEFAULT_KEEP_MONTHS),
+                prefs.getStringSet(PREFS_KEY_PINNED, Collections.<String>emptySet()));
+    }
+
+    public void save(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(PREFS_KEY_MONTHS, _keepMonths)
+                .putStringSet(PREFS_KEY_PINNED, _pinnedUserIds)
+                .apply();
+    }
+
+    public int getKeepMonths() {
+        return _keepMonths;
+    }
+
+    public void setKeepMonths(int keepMonths) {
+        _keepMonths = keepMonths;
+    }
+
+    public Set<String> getPinnedUserIds() {
+        return Collections.unmodifiableSet(_pinnedUserIds);
+    }
+
+    public boolean isPinned(String userId) {
+        return _pinnedUserIds.contains(userId);
+    }
+
+    public void setPinned(String userId, boolean pinned) {
+        if (pinned) {
+            _pinnedUserIds.add(userId);
+        } else {
+            _pinnedUserIds.remove(userId);
+        }
+    }
+
+    /**
+     * Returns the time before which notes for users that aren't pinned are pruned.
+     *
+     * @param now Current time, in milliseconds since the epoch
+     * @return the cutoff time, in milliseconds since the epoch
+     */
+    public long getCutoff(long now) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(now);
+        c.add(Calendar.MONTH, -_keepMonths);
+        return c.getTimeInMillis();
+    }
+}
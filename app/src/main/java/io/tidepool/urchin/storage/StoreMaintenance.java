@@ -0,0 +1,372 @@
+package io.tidepool.urchin.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.realm.Realm;
+import io.realm.RealmConfiguration;
+import io.realm.RealmQuery;
+import io.realm.RealmResults;
+import io.tidepool.urchin.data.CurrentUser;
+import io.tidepool.urchin.data.Hashtag;
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.data.Profile;
+import io.tidepool.urchin.data.Session;
+import io.tidepool.urchin.data.SharedUserId;
+import io.tidepool.urchin.data.User;
+import io.tidepool.urchin.util.Log;
+
+/**
+ * Keeps the Realm database from growing forever. A background job prunes notes the
+ * RetentionPolicy no longer keeps, along with hashtags and users nothing refers to any more,
+ * then measures how much of the files are free space. The files are the default database and
+ * any note shards from the NoteStore.
+ *
+ * Realm can only compact a file that nothing has open, so when fragmentation is over
+ * COMPACT_THRESHOLD the job just flags the files, and compactIfPending() compacts them the
+ * next time the app starts, before the database is opened.
+ */
+public class StoreMaintenance {
+    private static final String LOG_TAG = "StoreMaintenance";
+
+    private static final String PREFS_NAME = "StoreMaintenance";
+    private static final String PREFS_KEY_LAST_RUN = "LastRun";
+    private static final String PREFS_KEY_COMPACT_PENDING = "CompactPending";
+    private static final String PREFS_KEY_COMPACTED_BEFORE = "CompactedBefore";
+    private static final String PREFS_KEY_COMPACTED_AFTER = "CompactedAfter";
+
+    // Run the job at most this often
+    public static final long RUN_INTERVAL_MILLIS = 24L * 60 * 60 * 1000;
+
+    // Compact once at least this fraction of the file is free space
+    public static final double COMPACT_THRESHOLD = 0.5;
+
+    /**
+     * What the maintenance job did. Sizes are in bytes.
+     *
+     * Pruning frees space inside the files without making them smaller, so sizeAfter is
+     * usually the same as sizeBefore. Files only shrink when they're compacted, at a later
+     * start; compactedBefore and compactedAfter are the sizes from the last time that happened.
+     */
+    public static class Result {
+        public long sizeBefore;
+        public long sizeAfter;              // After pruning, before any compaction
+        public long liveSize;
+        public int notesPruned;
+        public int hashtagsPruned;          // Including those of the pruned notes
+        public int usersPruned;
+        public boolean compactPending;
+        public long compactedBefore;        // 0 if the files have never been compacted
+        public long compactedAfter;
+
+        public double getFragmentation() {
+            return sizeAfter > 0 ? 1.0 - (double) liveSize / sizeAfter : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "pruned " + notesPruned + " notes, " + hashtagsPruned + " hashtags, " + usersPruned + " users; "
+                    + "file " + sizeBefore + " -> " + sizeAfter + " bytes, live data " + liveSize + " bytes"
+                    + (compactPending ? ", compacting on next start" : "")
+                    + (compactedBefore > 0 ? "; last compacted " + compactedBefore + " -> " + compactedAfter + " bytes" : "");
+        }
+    }
+
+    public static abstract class MaintenanceListener {
+        public abstract void maintenanceComplete(Result result, Exception error);
+    }
+
+    /**
+     * Compacts the database files if the last maintenance run asked for it. Must be called
+     * after NoteStore.initialize(), before any of the files are opened.
+     *
+     * @param context Context, for the shared preferences
+     * @return true if the files were compacted
+     */
+    public static boolean compactIfPending(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!prefs.getBoolean(PREFS_KEY_COMPACT_PENDING, false)) {
+            return false;
+        }
+        prefs.edit().putBoolean(PREFS_KEY_COMPACT_PENDING, false).apply();
+
+        List<RealmConfiguration> configurations = NoteStore.getInstance().getAllConfigurations();
+        long sizeBefore = getSize(configurations);
+        boolean compacted = true;
+        for (RealmConfiguration configuration : configurations) {
+            try {
+                compacted &= Realm.compactRealm(configuration);
+            } catch (RuntimeException e) {
+                // Not fatal, we'll just carry on with the file as it is
+                Log.e(LOG_TAG, "Failed to compact " + configuration.getPath() + ": " + e);
+                compacted = false;
+            }
+        }
+        long sizeAfter = getSize(configurations);
+        Log.i(LOG_TAG, "Compacted database: " + compacted + ", files " + sizeBefore + " -> " + sizeAfter + " bytes");
+
+        // For the next maintenance run to report
+        prefs.edit()
+                .putLong(PREFS_KEY_COMPACTED_BEFORE, sizeBefore)
+                .putLong(PREFS_KEY_COMPACTED_AFTER, sizeAfter)
+                .apply();
+        return compacted;
+    }
+
+    /**
+     * Starts the maintenance job on a background thread, unless it has already run in the last
+     * RUN_INTERVAL_MILLIS.
+     *
+     * @param context  Context, for the shared preferences and cache directory
+     * @param policy   Which notes to keep
+     * @param listener Called on the main thread when the job finishes. May be null.
+     * @return true if the job was started
+     */
+    public static boolean runIfDue(Context context, RetentionPolicy policy, MaintenanceListener listener) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        long lastRun = prefs.getLong(PREFS_KEY_LAST_RUN, 0);
+        if (now - lastRun < RUN_INTERVAL_MILLIS && now >= lastRun) {
+            return false;
+        }
+        prefs.edit().putLong(PREFS_KEY_LAST_RUN, now).apply();
+        run(context, policy, listener);
+        return true;
+    }
+
+    /**
+     * Starts the maintenance job on a background thread.
+     *
+     * @param context  Context, for the shared preferences and cache directory
+     * @param policy   Which notes to keep
+     * @param listener Called on the main thread when the job finishes. May be null.
+     */
+    public static void run(Context context, final RetentionPolicy policy, final MaintenanceListener listener) {
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                Result result = null;
+                Exception error = null;
+                try {
+                    result = runNow(appContext, policy);
+                    Log.i(LOG_TAG, "Maintenance complete: " + result);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Maintenance failed: " + e);
+                    error = e;
+                }
+
+                if (listener != null) {
+                    final Result finalResult = result;
+                    final Exception finalError = error;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.maintenanceComplete(finalResult, finalError);
+                        }
+                    });
+                }
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Runs the maintenance job on the calling thread.
+     */
+    public static Result runNow(Context context, RetentionPolicy policy) {
+        NoteStore noteStore = NoteStore.getInstance();
+        Result result = new Result();
+        result.sizeBefore = getSize(noteStore.getAllConfigurations());
+
+        // Prune the notes first, then see which users they still refer to
+        Set<String> referencedUserIds = new HashSet<>();
+        for (Realm realm : noteStore.openAllNotes()) {
+            try {
+                realm.beginTransaction();
+                try {
+                    pruneNotes(realm, policy, result);
+                    result.hashtagsPruned += pruneHashtags(realm);
+                    realm.commitTransaction();
+                } catch (RuntimeException e) {
+                    realm.cancelTransaction();
+                    throw e;
+                }
+                for (Note note : realm.where(Note.class).findAll()) {
+                    referencedUserIds.add(note.getGroupid());
+                    referencedUserIds.add(note.getUserid());
+                }
+            } finally {
+                realm.close();
+            }
+        }
+
+        if (result.notesPruned > 0 || result.hashtagsPruned > 0) {
+            HashtagIndex.getInstance().reset();
+        }
+
+        Realm realm = Realm.getInstance(noteStore.getDefaultConfiguration());
+        try {
+            realm.beginTransaction();
+            try {
+                result.usersPruned = pruneUsers(realm, referencedUserIds);
+                realm.commitTransaction();
+            } catch (RuntimeException e) {
+                realm.cancelTransaction();
+                throw e;
+            }
+        } finally {
+            realm.close();
+        }
+
+        List<RealmConfiguration> configurations = noteStore.getAllConfigurations();
+        result.sizeAfter = getSize(configurations);
+        for (RealmConfiguration configuration : configurations) {
+            result.liveSize += measureLiveSize(context, configuration);
+        }
+
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (result.liveSize > 0 && result.getFragmentation() > COMPACT_THRESHOLD) {
+            result.compactPending = true;
+            prefs.edit().putBoolean(PREFS_KEY_COMPACT_PENDING, true).apply();
+        }
+        result.compactedBefore = prefs.getLong(PREFS_KEY_COMPACTED_BEFORE, 0);
+        result.compactedAfter = prefs.getLong(PREFS_KEY_COMPACTED_AFTER, 0);
+
+        return result;
+    }
+
+    /**
+     * Deletes notes older than the policy's cutoff, except those in pinned users' groups, and
+     * their hashtags. Adds both to the result's counts.
+     */
+    private static void pruneNotes(Realm realm, RetentionPolicy policy, Result result) {
+        RealmQuery<Note> query = realm.where(Note.class)
+                .lessThan("timestamp", policy.getCutoff(System.currentTimeMillis()));
+        for (String userId : policy.getPinnedUserIds()) {
+            query.notEqualTo("groupid", userId);
+        }
+        RealmResults<Note> notes = query.findAll();
+        result.notesPruned += notes.size();
+
+        // A note's hashtags belong to it alone
+        for (Note note : notes) {
+            RealmResults<Hashtag> hashtags = note.getHashtags().where().findAll();
+            result.hashtagsPruned += hashtags.size();
+            hashtags.clear();
+        }
+        notes.clear();
+    }
+
+    /**
+     * Deletes hashtags no note refers to, e.g. those left behind by deleted notes.
+     */
+    private static int pruneHashtags(Realm realm) {
+        Set<Hashtag> referenced = new HashSet<>();
+        for (Note note : realm.where(Note.class).findAll()) {
+            referenced.addAll(note.getHashtags());
+        }
+
+        List<Hashtag> orphans = new ArrayList<>();
+        for (Hashtag hashtag : realm.where(Hashtag.class).findAll()) {
+            if (!referenced.contains(hashtag)) {
+                orphans.add(hashtag);
+            }
+        }
+        for (Hashtag hashtag : orphans) {
+            hashtag.removeFromRealm();
+        }
+        return orphans.size();
+    }
+
+    /**
+     * Deletes users and profiles we no longer need: ones that aren't the signed-in user, aren't
+     * viewable by them, and didn't write or receive any of the notes we still have.
+     */
+    private static int pruneUsers(Realm realm, Set<String> referencedUserIds) {
+        Set<String> keep = new HashSet<>(referencedUserIds);
+        for (SharedUserId sharedUserId : realm.where(SharedUserId.class).findAll()) {
+            keep.add(sharedUserId.getVal());
+        }
+        for (Session session : realm.where(Session.class).findAll()) {
+            if (session.getUser() != null) {
+                keep.add(session.getUser().getUserid());
+            }
+        }
+        for (CurrentUser currentUser : realm.where(CurrentUser.class).findAll()) {
+            if (currentUser.getCurrentUser() != null) {
+                keep.add(currentUser.getCurrentUser().getUserid());
+            }
+        }
+
+        List<User> orphans = new ArrayList<>();
+        for (User user : realm.where(User.class).findAll()) {
+            if (!keep.contains(user.getUserid())) {
+                orphans.add(user);
+            }
+        }
+        for (User user : orphans) {
+            user.getEmails().where().findAll().clear();
+            user.getViewableUserIds().where().findAll().clear();
+            user.removeFromRealm();
+        }
+
+        List<Profile> orphanProfiles = new ArrayList<>();
+        for (Profile profile : realm.where(Profile.class).findAll()) {
+            if (!keep.contains(profile.getUserId())) {
+                orphanProfiles.add(profile);
+            }
+        }
+        for (Profile profile : orphanProfiles) {
+            if (profile.getPatient() != null) {
+                profile.getPatient().removeFromRealm();
+            }
+            profile.removeFromRealm();
+        }
+
+        return orphans.size();
+    }
+
+    /**
+     * Returns how many bytes the data in a database actually needs, by writing a compacted
+     * copy of it and measuring that.
+     */
+    private static long measureLiveSize(Context context, RealmConfiguration configuration) {
+        File copy = new File(context.getCacheDir(), "maintenance-copy.realm");
+        copy.delete();
+        Realm realm = Realm.getInstance(configuration);
+        try {
+            // Never write a plain copy of a locked account's data
+            if (configuration.getEncryptionKey() != null) {
+                realm.writeEncryptedCopyTo(copy, configuration.getEncryptionKey());
+            } else {
+                realm.writeCopyTo(copy);
+            }
+            return copy.length();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Failed to measure live data size: " + e);
+            return 0;
+        } finally {
+            realm.close();
+            copy.delete();
+        }
+    }
+
+    private static long getSize(List<RealmConfiguration> configurations) {
+        long size = 0;
+        for (RealmConfiguration configuration : configurations) {
+            size += new File(configuration.getPath()).length();
+        }
+        return size;
+    }
+}
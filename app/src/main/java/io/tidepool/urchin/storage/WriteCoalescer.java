@@ -0,0 +1,263 @@
+package io.tidepool.urchin.storage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.realm.Realm;
+import io.tidepool.urchin.util.Log;
+import io.tidepool.urchin.util.Trace;
+
+/**
+ * Gathers database writes that arrive close together and commits them in one transaction per
+ * database, so a refresh across many users commits (and notifies Realm's change listeners)
+ * once per batch instead of once per response.
+ *
+ * A batch is committed WINDOW_MILLIS after its first write arrives, or as soon as it holds
+ * MAX_BATCH_SIZE writes. Everything happens on the main thread, so the writes should do as
+ * little work as possible: parse responses on the network thread and only copy the results
+ * into Realm here.
+ */
+public class WriteCoalescer {
+    private static final String LOG_TAG = "WriteCoalescer";
+
+    // How long to wait for more writes after the first one in a batch
+    public static final long WINDOW_MILLIS = 100;
+
+    // Commit straight away once a batch holds this many writes
+    public static final int MAX_BATCH_SIZE = 32;
+
+    /**
+     * A change to make as part of a batch.
+     */
+    public static abstract class Write {
+        /**
+         * Makes the change. Realms from the batch are already in a transaction; don't begin,
+         * commit or close them. If the batch fails this is called again in a batch of its own,
+         * so anything it collects for committed() has to start afresh each time.
+         */
+        public abstract void apply(Batch batch);
+
+        /**
+         * Called on the main thread after the batch is committed, or with the error if this
+         * write failed. The batch's Realms are still open, so objects from them may be used.
+         */
+        public void committed(Exception error) {
+        }
+    }
+
+    /**
+     * The Realms written to by one batch. Each is opened and put in a transaction the first
+     * time a write asks for it.
+     */
+    public static class Batch {
+        private final Realm _defaultRealm;
+        private final Map<String, Realm> _notesRealms = new LinkedHashMap<>();
+        private final List<Realm> _open = new ArrayList<>();
+
+        private Batch() {
+            _defaultRealm = Realm.getInstance(NoteStore.getInstance().getDefaultConfiguration());
+            _defaultRealm.beginTransaction();
+            _open.add(_defaultRealm);
+        }
+
+        /**
+         * Returns the default database, which holds users, profiles and sync state.
+         */
+        public Realm getDefaultRealm() {
+            return _defaultRealm;
+        }
+
+        /**
+         * Returns the database holding a user's notes.
+         *
+         * @param groupId ID of the user the notes were written to
+         */
+        public Realm getNotesRealm(String groupId) {
+            NoteStore store = NoteStore.getInstance();
+            if (!store.isSharded()) {
+                return _defaultRealm;
+            }
+            String path = store.getConfiguration(groupId).getPath();
+            Realm realm = _notesRealms.get(path);
+            if (realm == null) {
+                realm = store.openNotes(groupId);
+                realm.beginTransaction();
+                _notesRealms.put(path, realm);
+                _open.add(realm);
+            }
+            return realm;
+        }
+
+        private int getRealmCount() {
+            return 1 + _notesRealms.size();
+        }
+
+        private void commit() {
+            // Notes first, so the sync state never claims notes that weren't written
+            for (Realm realm : _notesRealms.values()) {
+                realm.commitTransaction();
+                _open.remove(realm);
+            }
+            _defaultRealm.commitTransaction();
+            _open.remove(_defaultRealm);
+        }
+
+        private void cancel() {
+            // Only the ones that weren't committed before the failure
+            for (Realm realm : _open) {
+                realm.cancelTransaction();
+            }
+            _open.clear();
+        }
+
+        private void close() {
+            for (Realm realm : _notesRealms.values()) {
+                realm.close();
+            }
+            _defaultRealm.close();
+        }
+    }
+
+    /**
+     * Counts of what's been committed, for seeing how well writes are being batched.
+     */
+    public static class Stats {
+        public int batches;
+        public int writes;
+        public int largestBatch;
+        public int failedBatches;
+        public long commitMillis;
+
+        public double getAverageBatchSize() {
+            return batches > 0 ? (double) writes / batches : 0;
+        }
+
+        @Override
+        public String toString() {
+            return writes + " writes in " + batches + " batches (average " + String.format("%.1f", getAverageBatchSize())
+                    + ", largest " + largestBatch + ", " + failedBatches + " retried), " + commitMillis + " ms committing";
+        }
+    }
+
+    private static WriteCoalescer __instance;
+
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private List<Write> _pending = new ArrayList<>();
+    private final Stats _stats = new Stats();
+
+    private final Runnable _flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static WriteCoalescer getInstance() {
+        if (__instance == null) {
+            __instance = new WriteCoalescer();
+        }
+        return __instance;
+    }
+
+    /**
+     * Adds a write to the current batch. Must be called on the main thread.
+     */
+    public void enqueue(Write write) {
+        _pending.add(write);
+        if (_pending.size() >= MAX_BATCH_SIZE) {
+            flush();
+        } else if (_pending.size() == 1) {
+            _handler.postDelayed(_flush, WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Commits the current batch now. Call this before switching databases so the writes go to
+     * the one they were meant for.
+     */
+    public void flush() {
+        _handler.removeCallbacks(_flush);
+        if (_pending.isEmpty()) {
+            return;
+        }
+        List<Write> writes = _pending;
+        _pending = new ArrayList<>();
+
+        Trace.begin("realm.writeBatch");
+        try {
+            commit(writes);
+        } finally {
+            Trace.end();
+        }
+    }
+
+    private void commit(List<Write> writes) {
+        long start = SystemClock.uptimeMillis();
+        Batch batch = new Batch();
+        try {
+            for (Write write : writes) {
+                write.apply(batch);
+            }
+            batch.commit();
+        } catch (RuntimeException e) {
+            // Don't let one bad write lose the rest: try each one on its own
+            Log.e(LOG_TAG, "Batch of " + writes.size() + " writes failed, retrying one at a time: " + e);
+            batch.cancel();
+            batch.close();
+            _stats.failedBatches++;
+            for (Write write : writes) {
+                commitAlone(write);
+            }
+            return;
+        }
+
+        long elapsed = SystemClock.uptimeMillis() - start;
+        recordBatch(writes.size(), elapsed);
+        Log.d(LOG_TAG, "Committed %d writes to %d databases in %d ms; %s",
+                writes.size(), batch.getRealmCount(), elapsed, _stats);
+        try {
+            for (Write write : writes) {
+                write.committed(null);
+            }
+        } finally {
+            batch.close();
+        }
+    }
+
+    public Stats getStats() {
+        return _stats;
+    }
+
+    private void commitAlone(Write write) {
+        long start = SystemClock.uptimeMillis();
+        Batch batch = new Batch();
+        try {
+            try {
+                write.apply(batch);
+                batch.commit();
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Write failed: " + e);
+                batch.cancel();
+                write.committed(e);
+                return;
+            }
+            recordBatch(1, SystemClock.uptimeMillis() - start);
+            write.committed(null);
+        } finally {
+            batch.close();
+        }
+    }
+
+    private void recordBatch(int size, long elapsed) {
+        _stats.batches++;
+        _stats.writes += size;
+        _stats.largestBatch = Math.max(_stats.largestBatch, size);
+        _stats.commitMillis += elapsed;
+    }
+}
@@ -0,0 +1,171 @@
+package io.tidepool.urchin.ui;
+
+import android.content.ComponentCallbacks2;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.text.SpannableString;
+import android.text.TextUtils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.tidepool.urchin.data.Note;
+import io.tidepool.urchin.util.DateCodec;
+import io.tidepool.urchin.util.HashtagUtils;
+
+/**
+ * Styled text for note cards, so scrolling back over a card doesn't scan its hashtags and
+ * format its date again. Entries are keyed by note ID and content hash, so an edited note
+ * gets new text. Cards just ahead of the scroll position are styled on a background thread
+ * before they're needed. Text whose date was formatted in another time zone is styled again.
+ */
+public class CardTextCache {
+    // Most cards we keep text for
+    public static final int MAX_ENTRIES = 300;
+
+    /**
+     * Everything a note card shows as text.
+     */
+    public static class CardText {
+        public final CharSequence body;
+        public final String author;
+        public final String date;
+        private final TimeZone _zone;     // DateCodec's time zone when the date was formatted
+
+        private CardText(CharSequence body, String author, String date, TimeZone zone) {
+            this.body = body;
+            this.author = author;
+            this.date = date;
+            _zone = zone;
+        }
+
+        private boolean isCurrent() {
+            return _zone == DateCodec.getTimeZone();
+        }
+    }
+
+    private final LruCache<String, CardText> _cache = new LruCache<>(MAX_ENTRIES);
+    private final int _hashtagColor;
+
+    // Keys being styled in the background, so we don't queue them twice
+    private final Set<String> _pending = Collections.synchronizedSet(new HashSet<String>());
+
+    private final ExecutorService _executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "CardTextCache");
+        }
+    });
+
+    /**
+     * @param hashtagColor Color to show hashtags in
+     */
+    public CardTextCache(int hashtagColor) {
+        _hashtagColor = hashtagColor;
+    }
+
+    /**
+     * Returns the text for a note's card, styling it now if it isn't cached. Must be called on
+     * the main thread.
+     *
+     * @param note        The note
+     * @param contentHash Hash of the note's content, from NotesDiff.Snapshot
+     */
+    public CardText get(Note note, int contentHash) {
+        String key = getKey(note.getId(), contentHash);
+        CardText text = _cache.get(key);
+        if (text == null || !text.isCurrent()) {
+            text = build(note.getMessagetext(), note.getHashtagOffsets(), note.getAuthorFullName(),
+                    note.getGroupFullName(), note.getTimestamp());
+            _cache.put(key, text);
+        }
+        return text;
+    }
+
+    /**
+     * Styles the text for some cards on the background thread, if they aren't cached already.
+     * Must be called on the main thread; the notes' fields are read here.
+     *
+     * @param notes    Notes in the feed
+     * @param snapshot Snapshot of the same notes
+     * @param from     First position to style
+     * @param to       Position after the last one to style
+     */
+    public void prefetch(List<Note> notes, NotesDiff.Snapshot snapshot, int from, int to) {
+        if (_executor.isShutdown()) {
+            return;
+        }
+        from = Math.max(from, 0);
+        to = Math.min(to, Math.min(notes.size(), snapshot.size()));
+        for (int i = from; i < to; i++) {
+            Note note = notes.get(i);
+            final String key = getKey(note.getId(), snapshot.getContentHash(i));
+            CardText cached = _cache.get(key);
+            if ((cached != null && cached.isCurrent()) || !_pending.add(key)) {
+                continue;
+            }
+
+            final String message = note.getMessagetext();
+            final byte[] offsets = note.getHashtagOffsets();
+            final String author = note.getAuthorFullName();
+            final String group = note.getGroupFullName();
+            final long timestamp = note.getTimestamp();
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _cache.put(key, build(message, offsets, author, group, timestamp));
+                    _pending.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gives memory back when the system asks for it.
+     *
+     * @param level Level from ComponentCallbacks2.onTrimMemory()
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            _cache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            _cache.trimToSize(_cache.size() / 2);
+        }
+    }
+
+    /**
+     * Stops the background thread. The cache can't prefetch after this.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        _cache.evictAll();
+    }
+
+    private CardText build(String message, byte[] offsets, String author, String group, long timestamp) {
+        // The hashtags were found when the note was stored; only notes we haven't stored yet
+        // need scanning
+        SpannableString body = new SpannableString(message);
+        HashtagUtils.formatHashtags(body, offsets, _hashtagColor, true);
+
+        String authorLine = TextUtils.isEmpty(group) ? author : author + " to " + group;
+        TimeZone zone = DateCodec.getTimeZone();
+        return new CardText(body, authorLine, DateCodec.formatDisplay(timestamp), zone);
+    }
+
+    private static String getKey(String noteId, int contentHash) {
+        return noteId + ":" + contentHash;
+    }
+}
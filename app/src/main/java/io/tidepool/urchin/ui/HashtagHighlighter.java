@@ -0,0 +1,96 @@
+package io.tidepool.urchin.ui;
+
+import android.graphics.Typeface;
+import android.text.Editable;
+import android.text.Spannable;
+import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+
+import io.tidepool.urchin.util.HashtagScanner;
+
+/**
+ * Highlights hashtags in an editor as they're typed. Each edit only rescans the words it
+ * touched: whether something is a hashtag never depends on text past the whitespace around
+ * it, so the rest of the note keeps its spans.
+ */
+public class HashtagHighlighter implements TextWatcher {
+    // Our own span types, so we only ever remove what we added (and not the IME's spans)
+    private static class HashtagColorSpan extends ForegroundColorSpan {
+        HashtagColorSpan(int color) {
+            super(color);
+        }
+    }
+
+    private static class HashtagStyleSpan extends StyleSpan {
+        HashtagStyleSpan() {
+            super(Typeface.BOLD);
+        }
+    }
+
+    private final HashtagScanner _scanner = new HashtagScanner();
+    private final int _color;
+
+    // What changed since the last afterTextChanged(), or -1 if nothing has
+    private int _changeStart = -1;
+    private int _changeEnd = -1;
+
+    /**
+     * @param color Color to show hashtags in. They're bold as well.
+     */
+    public HashtagHighlighter(int color) {
+        _color = color;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        // We can't touch the text from here, so just remember where it changed
+        int end = start + count;
+        if (_changeStart < 0) {
+            _changeStart = start;
+            _changeEnd = end;
+        } else {
+            _changeStart = Math.min(_changeStart, start);
+            _changeEnd = Math.max(_changeEnd, end);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        if (_changeStart < 0) {
+            return;
+        }
+        int length = s.length();
+        int start = Math.min(_changeStart, length);
+        int end = Math.min(_changeEnd, length);
+        _changeStart = -1;
+        _changeEnd = -1;
+
+        // Widen to the whole words either side of the edit
+        while (start > 0 && !Character.isWhitespace(s.charAt(start - 1))) {
+            start--;
+        }
+        while (end < length && !Character.isWhitespace(s.charAt(end))) {
+            end++;
+        }
+
+        for (HashtagColorSpan span : s.getSpans(start, end, HashtagColorSpan.class)) {
+            s.removeSpan(span);
+        }
+        for (HashtagStyleSpan span : s.getSpans(start, end, HashtagStyleSpan.class)) {
+            s.removeSpan(span);
+        }
+
+        int count = _scanner.scan(s, start, end);
+        for (int i = 0; i < count; i++) {
+            int tagStart = _scanner.getStart(i);
+            int tagEnd = _scanner.getEnd(i);
+            s.setSpan(new HashtagColorSpan(_color), tagStart, tagEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            s.setSpan(new HashtagStyleSpan(), tagStart, tagEnd, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+}
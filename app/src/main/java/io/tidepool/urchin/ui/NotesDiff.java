@@ -0,0 +1,191 @@
+package io.tidepool.urchin.ui;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.tidepool.urchin.data.Note;
+
+/**
+ * Works out what changed in a list of notes between two snapshots, and tells a RecyclerView
+ * adapter about just those items. The snapshot keeps each note's ID and a hash of what the
+ * card shows, so unrelated database writes don't rebind anything.
+ */
+public class NotesDiff {
+    // Payload for items that only need their alternating background updated
+    public static final Object PAYLOAD_BACKGROUND = new Object();
+
+    /**
+     * What a list of notes looked like at one point in time.
+     */
+    public static class Snapshot {
+        private final String[] _ids;
+        private final long[] _itemIds;
+        private final int[] _hashes;
+
+        private Snapshot(int size) {
+            _ids = new String[size];
+            _itemIds = new long[size];
+            _hashes = new int[size];
+        }
+
+        public int size() {
+            return _ids.length;
+        }
+
+        /**
+         * Returns a stable ID for the note at a position, for RecyclerView.Adapter.getItemId().
+         */
+        public long getItemId(int position) {
+            return _itemIds[position];
+        }
+
+        /**
+         * Returns a hash of what the card for the note at a position shows. It changes when
+         * the note is edited.
+         */
+        public int getContentHash(int position) {
+            return _hashes[position];
+        }
+    }
+
+    public static final Snapshot EMPTY = new Snapshot(0);
+
+    /**
+     * Reads the IDs and content of a list of notes.
+     */
+    public static Snapshot snapshot(List<Note> notes) {
+        int size = notes.size();
+        Snapshot snapshot = new Snapshot(size);
+        for (int i = 0; i < size; i++) {
+            Note note = notes.get(i);
+            snapshot._ids[i] = note.getId();
+            snapshot._itemIds[i] = toItemId(note.getId());
+            snapshot._hashes[i] = contentHash(note);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Notifies an adapter of the differences between two snapshots of its list.
+     *
+     * @param before  The list as the adapter last saw it
+     * @param after   The list as it is now
+     * @param adapter Adapter to notify
+     */
+    public static void dispatch(Snapshot before, Snapshot after, RecyclerView.Adapter adapter) {
+        Map<String, Integer> beforeIndex = index(before);
+        Map<String, Integer> afterIndex = index(after);
+
+        // Notes still there must be in the same order, or we'd need moves. Editing a note's
+        // time is rare enough that we just rebind everything then.
+        int lastPosition = -1;
+        for (int i = 0; i < before.size(); i++) {
+            Integer position = afterIndex.get(before._ids[i]);
+            if (position != null) {
+                if (position < lastPosition) {
+                    adapter.notifyDataSetChanged();
+                    return;
+                }
+                lastPosition = position;
+            }
+        }
+
+        // Removals from the end, so the positions of earlier ones still hold
+        int end = before.size() - 1;
+        while (end >= 0) {
+            if (afterIndex.containsKey(before._ids[end])) {
+                end--;
+                continue;
+            }
+            int start = end;
+            while (start > 0 && !afterIndex.containsKey(before._ids[start - 1])) {
+                start--;
+            }
+            adapter.notifyItemRangeRemoved(start, end - start + 1);
+            end = start - 1;
+        }
+
+        // Insertions from the start, so everything before each one is already in place
+        int position = 0;
+        while (position < after.size()) {
+            if (beforeIndex.containsKey(after._ids[position])) {
+                position++;
+                continue;
+            }
+            int start = position;
+            while (position < after.size() && !beforeIndex.containsKey(after._ids[position])) {
+                position++;
+            }
+            adapter.notifyItemRangeInserted(start, position - start);
+        }
+
+        // Notes whose content changed get a full rebind; ones that only moved by an odd number
+        // of places just need their background swapped
+        int changedStart = -1;
+        int backgroundStart = -1;
+        for (int i = 0; i <= after.size(); i++) {
+            boolean changed = false;
+            boolean background = false;
+            if (i < after.size()) {
+                Integer old = beforeIndex.get(after._ids[i]);
+                if (old != null) {
+                    changed = before._hashes[old] != after._hashes[i];
+                    background = !changed && (old % 2) != (i % 2);
+                }
+            }
+            if (changedStart >= 0 && !changed) {
+                adapter.notifyItemRangeChanged(changedStart, i - changedStart);
+                changedStart = -1;
+            } else if (changedStart < 0 && changed) {
+                changedStart = i;
+            }
+            if (backgroundStart >= 0 && !background) {
+                adapter.notifyItemRangeChanged(backgroundStart, i - backgroundStart, PAYLOAD_BACKGROUND);
+                backgroundStart = -1;
+            } else if (backgroundStart < 0 && background) {
+                backgroundStart = i;
+            }
+        }
+    }
+
+    private static Map<String, Integer> index(Snapshot snapshot) {
+        Map<String, Integer> index = new HashMap<>(snapshot.size() * 2);
+        for (int i = 0; i < snapshot.size(); i++) {
+            index.put(snapshot._ids[i], i);
+        }
+        return index;
+    }
+
+    /**
+     * Hashes the fields a note's card shows.
+     */
+    private static int contentHash(Note note) {
+        int hash = hashOf(note.getMessagetext());
+        hash = 31 * hash + (int) (note.getTimestamp() ^ (note.getTimestamp() >>> 32));
+        hash = 31 * hash + hashOf(note.getAuthorFullName());
+        hash = 31 * hash + hashOf(note.getGroupFullName());
+        hash = 31 * hash + hashOf(note.getUserid());
+        return hash;
+    }
+
+    private static int hashOf(String s) {
+        return s != null ? s.hashCode() : 0;
+    }
+
+    /**
+     * Turns a note ID into a 64 bit FNV-1a hash, which is unlikely to collide in one feed.
+     */
+    private static long toItemId(String id) {
+        long hash = 0xcbf29ce484222325L;
+        if (id != null) {
+            for (int i = 0; i < id.length(); i++) {
+                hash ^= id.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+}
@@ -10,14 +10,11 @@ import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import io.realm.Realm;
 import io.realm.RealmResults;
 import io.tidepool.urchin.R;
-import io.tidepool.urchin.data.SharedUserId;
 import io.tidepool.urchin.data.User;
 
 /**
@@ -51,36 +48,20 @@ public class UserFilterAdapter extends ArrayAdapter<User> {
      * @return a list of User objects to be passed to this adapter's constructor
      */
     public static List<User> createUserList() {
-        List<User> users = new ArrayList<>();
+        List<User> users;
 
         Realm realm = Realm.getDefaultInstance();
         try {
-            // Unfortunately Realm does not support nested or joined queries, so we'll have to a bit
-            // of manual labor here.
-
-            // Get all of the profiles that do not have a null patient field. These are the only users
-            // who can post a message.
-            RealmResults<SharedUserId> sharedUserIds = realm.where(SharedUserId.class).findAll();
-
-            // Create a set of users from this list that have patient fields in their profiles
-            users = new ArrayList<>();
-            for (SharedUserId sharedUserId : sharedUserIds) {
-                User user = realm.where(User.class).equalTo("userid", sharedUserId.getVal()).findFirst();
-                if (user != null && user.getProfile() != null && user.getProfile().getPatient() != null) {
-                    // Copy from realm since callers don't necessarily have a reference count for the realm
-                    // guaranteeing the liftime of this object.
-                    // user = realm.copyFromRealm(user); // TODO: my - 0 - revisit this
-                    users.add(user);
-                }
-            }
-
-            // Sort alphabetically by fullname, as that seems to be the only field guaranteed to be set
-            Collections.sort(users, new Comparator<User>() {
-                @Override
-                public int compare(User lhs, User rhs) {
-                    return lhs.getProfile().getFullName().compareTo(rhs.getProfile().getFullName());
-                }
-            });
+            // Only viewable users with a patient field in their profile can have notes written to
+            // them. Both flags and the sort key are kept up to date as the data arrives, so this
+            // is a single indexed query, sorted alphabetically by full name.
+            RealmResults<User> results = realm.where(User.class)
+                    .equalTo("viewable", true)
+                    .equalTo("patient", true)
+                    .findAllSorted("sortName");
+
+            // Callers hold their own reference to the realm, so these stay valid after we close ours
+            users = new ArrayList<>(results);
         } finally {
             realm.close();
         }
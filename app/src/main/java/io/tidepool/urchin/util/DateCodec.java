@@ -0,0 +1,285 @@
+package io.tidepool.urchin.util;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Reads and writes the two timestamp formats the Tidepool API uses, and formats times for
+ * display. Safe to use from any thread.
+ *
+ * API dates are parsed and formatted by hand, which is much cheaper than SimpleDateFormat and
+ * needs no locking. Display strings still come from SimpleDateFormat, for the locale's day
+ * names, but are cached by minute.
+ *
+ * Like a SimpleDateFormat, times are formatted in the time zone that was the default when
+ * this class was loaded, until resetTimeZone() is called. UrchinApplication calls it when the
+ * device's time zone changes.
+ */
+public final class DateCodec {
+    // How the app shows a note's time
+    public static final String DISPLAY_FORMAT = "EEEE MM/dd/yy h:mm a";
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+
+    // Display strings by minute. Direct mapped, so a lookup is one array read.
+    private static final int DISPLAY_CACHE_SIZE = 256;
+
+    private static final class DisplayEntry {
+        final long minute;
+        final String text;
+
+        DisplayEntry(long minute, String text) {
+            this.minute = minute;
+            this.text = text;
+        }
+    }
+
+    private static volatile TimeZone __timeZone = TimeZone.getDefault();
+    private static volatile DisplayEntry[] __displayCache = new DisplayEntry[DISPLAY_CACHE_SIZE];
+
+    // SimpleDateFormat isn't thread safe, so each thread has its own
+    private static final ThreadLocal<DateFormat> __displayFormat = new ThreadLocal<>();
+
+    private DateCodec() {
+    }
+
+    /**
+     * Picks up a new default time zone, e.g. after the user travels.
+     */
+    public static void resetTimeZone() {
+        __timeZone = TimeZone.getDefault();
+        __displayCache = new DisplayEntry[DISPLAY_CACHE_SIZE];
+    }
+
+    /**
+     * Returns the time zone times are formatted in. It's a new instance after each
+     * resetTimeZone(), so callers can compare it by identity to tell their strings are stale.
+     */
+    public static TimeZone getTimeZone() {
+        return __timeZone;
+    }
+
+    /**
+     * Formats a time like APIClient.MESSAGE_DATE_FORMAT: 2015-08-31T10:48:00-07:00.
+     */
+    public static String formatMessageDate(long millis) {
+        return format(millis, __timeZone, 'T', false);
+    }
+
+    /**
+     * Formats a time like APIClient.DEFAULT_DATE_FORMAT: 2015-08-31 10:48:00.000-07:00.
+     */
+    public static String formatDefaultDate(long millis) {
+        return format(millis, __timeZone, ' ', true);
+    }
+
+    /**
+     * Formats a time for the API in a given time zone.
+     *
+     * @param millis     The time
+     * @param zone       Time zone to show it in
+     * @param separator  'T' between the date and time, or ' '
+     * @param withMillis True to include milliseconds
+     */
+    public static String format(long millis, TimeZone zone, char separator, boolean withMillis) {
+        int offset = zone.getOffset(millis);
+        long local = millis + offset;
+        long days = floorDiv(local, MILLIS_PER_DAY);
+        int timeOfDay = (int) (local - days * MILLIS_PER_DAY);
+
+        // Days since 1970-01-01 to year, month and day, from Howard Hinnant's civil_from_days
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        char[] out = new char[29];
+        int i = 0;
+        i = putDigits(out, i, (int) year, 4);
+        out[i++] = '-';
+        i = putDigits(out, i, month, 2);
+        out[i++] = '-';
+        i = putDigits(out, i, day, 2);
+        out[i++] = separator;
+        i = putDigits(out, i, timeOfDay / 3600000, 2);
+        out[i++] = ':';
+        i = putDigits(out, i, timeOfDay / 60000 % 60, 2);
+        out[i++] = ':';
+        i = putDigits(out, i, timeOfDay / 1000 % 60, 2);
+        if (withMillis) {
+            out[i++] = '.';
+            i = putDigits(out, i, timeOfDay % 1000, 3);
+        }
+        if (offset == 0) {
+            out[i++] = 'Z';
+        } else {
+            int offsetMinutes = Math.abs(offset) / 60000;
+            out[i++] = offset < 0 ? '-' : '+';
+            i = putDigits(out, i, offsetMinutes / 60, 2);
+            out[i++] = ':';
+            i = putDigits(out, i, offsetMinutes % 60, 2);
+        }
+        return new String(out, 0, i);
+    }
+
+    /**
+     * Parses a date in either API format. Also takes a 'Z' or an offset without a colon,
+     * and any number of fractional digits.
+     *
+     * @param text The date
+     * @return milliseconds since the epoch
+     * @throws ParseException if it isn't a date we understand
+     */
+    public static long parse(CharSequence text) throws ParseException {
+        int length = text.length();
+        int year = readNumber(text, 0, 4);
+        expect(text, 4, '-');
+        int month = readNumber(text, 5, 2);
+        expect(text, 7, '-');
+        int day = readNumber(text, 8, 2);
+        if (length <= 10 || (text.charAt(10) != 'T' && text.charAt(10) != ' ')) {
+            throw new ParseException("Expected 'T' in " + text, 10);
+        }
+        int hour = readNumber(text, 11, 2);
+        expect(text, 13, ':');
+        int minute = readNumber(text, 14, 2);
+        expect(text, 16, ':');
+        int second = readNumber(text, 17, 2);
+        int i = 19;
+
+        int millis = 0;
+        if (i < length && text.charAt(i) == '.') {
+            i++;
+            int digits = 0;
+            while (i < length && isDigit(text.charAt(i))) {
+                // Anything past milliseconds is dropped, as SimpleDateFormat would
+                if (digits < 3) {
+                    millis = millis * 10 + (text.charAt(i) - '0');
+                }
+                digits++;
+                i++;
+            }
+            if (digits == 0) {
+                throw new ParseException("Expected fraction in " + text, i);
+            }
+            for (; digits < 3; digits++) {
+                millis *= 10;
+            }
+        }
+
+        if (i >= length) {
+            throw new ParseException("Expected time zone in " + text, i);
+        }
+        int offsetMinutes;
+        char sign = text.charAt(i);
+        if (sign == 'Z') {
+            offsetMinutes = 0;
+            i++;
+        } else if (sign == '+' || sign == '-') {
+            int offsetHours = readNumber(text, i + 1, 2);
+            i += 3;
+            int offsetMins = 0;
+            if (i < length) {
+                if (text.charAt(i) == ':') {
+                    i++;
+                }
+                offsetMins = readNumber(text, i, 2);
+                i += 2;
+            }
+            offsetMinutes = offsetHours * 60 + offsetMins;
+            if (sign == '-') {
+                offsetMinutes = -offsetMinutes;
+            }
+        } else {
+            throw new ParseException("Expected time zone in " + text, i);
+        }
+        if (i != length) {
+            throw new ParseException("Unexpected text after date in " + text, i);
+        }
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+            throw new ParseException("Date out of range: " + text, 0);
+        }
+
+        // Year, month and day to days since 1970-01-01, from Howard Hinnant's days_from_civil
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        return days * MILLIS_PER_DAY + ((hour * 60L + minute - offsetMinutes) * 60 + second) * 1000 + millis;
+    }
+
+    /**
+     * Formats a time the way the app shows it, e.g. "Monday 08/31/15 10:48 AM". Times in the
+     * same minute share one string.
+     */
+    public static String formatDisplay(long millis) {
+        long minute = floorDiv(millis, MILLIS_PER_MINUTE);
+        DisplayEntry[] cache = __displayCache;
+        int slot = (int) (minute & (DISPLAY_CACHE_SIZE - 1));
+        DisplayEntry entry = cache[slot];
+        if (entry != null && entry.minute == minute) {
+            return entry.text;
+        }
+        TimeZone zone = __timeZone;
+        DateFormat format = __displayFormat.get();
+        if (format == null || !zone.equals(format.getTimeZone())) {
+            format = new SimpleDateFormat(DISPLAY_FORMAT, Locale.getDefault());
+            format.setTimeZone(zone);
+            __displayFormat.set(format);
+        }
+        String text = format.format(new Date(minute * MILLIS_PER_MINUTE));
+        cache[slot] = new DisplayEntry(minute, text);
+        return text;
+    }
+
+    private static int putDigits(char[] out, int i, int value, int digits) {
+        for (int d = digits - 1; d >= 0; d--) {
+            out[i + d] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return i + digits;
+    }
+
+    private static int readNumber(CharSequence text, int start, int digits) throws ParseException {
+        if (start + digits > text.length()) {
+            throw new ParseException("Date too short: " + text, text.length());
+        }
+        int value = 0;
+        for (int i = start; i < start + digits; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) {
+                throw new ParseException("Expected a digit in " + text, i);
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void expect(CharSequence text, int index, char c) throws ParseException {
+        if (index >= text.length() || text.charAt(index) != c) {
+            throw new ParseException("Expected '" + c + "' in " + text, index);
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x < 0) != (y < 0))) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,145 @@
+package io.tidepool.urchin.util;
+
+/**
+ * Finds hashtags in text in a single pass, without allocating anything per hashtag.
+ *
+ * A hashtag is a '#' that doesn't follow a word character, then one or more word characters.
+ * Word characters are letters, digits, combining marks and '_', in any script; anything else,
+ * including punctuation, ends the hashtag. Supplementary characters are handled as whole code
+ * points.
+ *
+ * Plain Java, so it can be tested and benchmarked off the device. A scanner reuses its buffer
+ * from one scan to the next; it isn't thread safe.
+ */
+public final class HashtagScanner {
+    /**
+     * Receives each hashtag as it's found.
+     */
+    public static abstract class Callback {
+        public abstract void hashtag(int start, int end);
+    }
+
+    private int[] _offsets = new int[16];
+    private int _count;
+
+    /**
+     * Finds the hashtags in some text. Afterwards getCount(), getStart() and getEnd() say
+     * where they are.
+     *
+     * @param text Text to scan. May be null.
+     * @return the number of hashtags found
+     */
+    public int scan(CharSequence text) {
+        return scan(text, 0, text != null ? text.length() : 0);
+    }
+
+    /**
+     * Finds the hashtags in part of some text, as if that part were all there was. Offsets
+     * are still into the whole text. Useful for rescanning just the words an edit touched.
+     *
+     * @param text  Text to scan. May be null.
+     * @param start Where to start scanning
+     * @param end   Where to stop scanning
+     * @return the number of hashtags found
+     */
+    public int scan(CharSequence text, int start, int end) {
+        _count = 0;
+        if (text == null) {
+            return 0;
+        }
+        int i = start;
+        boolean afterWord = false;
+        while (i < end) {
+            int c = Character.codePointAt(text, i);
+            int next = i + Character.charCount(c);
+            if (c == '#' && !afterWord) {
+                int tagEnd = next;
+                while (tagEnd < end) {
+                    int tagChar = Character.codePointAt(text, tagEnd);
+                    if (!isTagChar(tagChar)) {
+                        break;
+                    }
+                    tagEnd += Character.charCount(tagChar);
+                }
+                if (tagEnd > next) {
+                    add(i, tagEnd);
+                    i = tagEnd;
+                    afterWord = true;
+                    continue;
+                }
+            }
+            afterWord = isTagChar(c);
+            i = next;
+        }
+        return _count;
+    }
+
+    /**
+     * Finds the hashtags in some text and tells a callback about each, in order.
+     *
+     * @param text     Text to scan. May be null.
+     * @param callback Called with the start and end of each hashtag
+     * @return the number of hashtags found
+     */
+    public int scan(CharSequence text, Callback callback) {
+        int count = scan(text);
+        for (int i = 0; i < count; i++) {
+            callback.hashtag(_offsets[i * 2], _offsets[i * 2 + 1]);
+        }
+        return count;
+    }
+
+    public int getCount() {
+        return _count;
+    }
+
+    /**
+     * Returns where a hashtag from the last scan starts, at its '#'.
+     */
+    public int getStart(int index) {
+        return _offsets[index * 2];
+    }
+
+    /**
+     * Returns where a hashtag from the last scan ends, just after its last character.
+     */
+    public int getEnd(int index) {
+        return _offsets[index * 2 + 1];
+    }
+
+    /**
+     * Copies the hashtags from the last scan into a new array of start and end pairs.
+     */
+    public int[] toArray() {
+        int[] offsets = new int[_count * 2];
+        System.arraycopy(_offsets, 0, offsets, 0, offsets.length);
+        return offsets;
+    }
+
+    private void add(int start, int end) {
+        if (_count * 2 + 2 > _offsets.length) {
+            int[] grown = new int[_offsets.length * 2];
+            System.arraycopy(_offsets, 0, grown, 0, _count * 2);
+            _offsets = grown;
+        }
+        _offsets[_count * 2] = start;
+        _offsets[_count * 2 + 1] = end;
+        _count++;
+    }
+
+    /**
+     * Returns true if a code point can be part of a hashtag after its '#'.
+     */
+    public static boolean isTagChar(int c) {
+        if (c < 0x80) {
+            // Quick path for ASCII
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+        }
+        if (Character.isLetterOrDigit(c)) {
+            return true;
+        }
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+                || type == Character.ENCLOSING_MARK;
+    }
+}
@@ -0,0 +1,276 @@
+package io.tidepool.urchin.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Hashtags by prefix, for suggesting tags as they're typed. Every node keeps its highest
+ * scoring tags, so a lookup is a walk down the prefix and a copy of that node's list, however
+ * many tags there are. Scores are kept up to date as tags are added and removed; a tag's score
+ * is the sum of the weights of its uses, so it's its count if every use weighs 1.
+ *
+ * Prefixes match without regard to case; a tag is shown the way it was first spelled.
+ *
+ * Plain Java, so it can be tested off the device. Not thread safe.
+ */
+public final class HashtagTrie {
+    // Most tags each node remembers, and so the most a lookup can return
+    public static final int TOP_K = 8;
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final class Entry {
+        final String tag;
+        int count;
+        double score;
+
+        Entry(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private static final class Node {
+        // Children, sorted by key so they can be binary searched
+        char[] keys = NO_KEYS;
+        Node[] children = NO_CHILDREN;
+        int childCount;
+
+        Entry entry;                // Tag ending here, if any
+
+        // Highest scoring tags at or below this node, highest first
+        Entry[] top = NO_ENTRIES;
+        int topCount;
+    }
+
+    // Highest score first, then by name, as the hashtag bar sorts them
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.score != rhs.score) {
+                return lhs.score > rhs.score ? -1 : 1;
+            }
+            return lhs.tag.compareTo(rhs.tag);
+        }
+    };
+
+    private final Node _root = new Node();
+    private final Node[] _path = new Node[64];
+    private final int _rootLimit;
+    private int _size;
+
+    public HashtagTrie() {
+        this(TOP_K);
+    }
+
+    /**
+     * @param rootLimit Most tags to keep for the empty prefix, which can be more than TOP_K
+     *                  so the most used tags overall can be listed too
+     */
+    public HashtagTrie(int rootLimit) {
+        _rootLimit = Math.max(rootLimit, TOP_K);
+    }
+
+    /**
+     * Returns how many different tags are in use.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Changes how many times a tag is used, with each use weighing 1.
+     *
+     * @param tag   The tag, with its '#'
+     * @param delta How many uses to add, or remove if negative
+     */
+    public void add(String tag, int delta) {
+        add(tag, delta, delta);
+    }
+
+    /**
+     * Changes how many times a tag is used, and its score. A tag whose count drops to zero is
+     * no longer suggested.
+     *
+     * @param tag   The tag, with its '#'
+     * @param delta How many uses to add, or remove if negative
+     * @param score How much those uses add to the tag's score, or take away if negative
+     */
+    public void add(String tag, int delta, double score) {
+        if (tag == null || tag.isEmpty() || delta == 0) {
+            return;
+        }
+        String key = fold(tag);
+        Node[] path = key.length() + 1 <= _path.length ? _path : new Node[key.length() + 1];
+        Node node = _root;
+        path[0] = node;
+        for (int i = 0; i < key.length(); i++) {
+            Node child = getChild(node, key.charAt(i));
+            if (child == null) {
+                if (delta < 0) {
+                    // Never added
+                    return;
+                }
+                child = addChild(node, key.charAt(i));
+            }
+            node = child;
+            path[i + 1] = node;
+        }
+
+        Entry entry = node.entry;
+        if (entry == null) {
+            if (delta < 0) {
+                return;
+            }
+            entry = new Entry(tag);
+            node.entry = entry;
+        }
+        boolean wasUsed = entry.count > 0;
+        entry.count = Math.max(entry.count + delta, 0);
+        entry.score += score;
+        if (entry.count == 0) {
+            // Don't leave rounding errors behind
+            entry.score = 0;
+            node.entry = null;
+        }
+        if (wasUsed != entry.count > 0) {
+            _size += wasUsed ? -1 : 1;
+        }
+
+        for (int i = key.length(); i >= 0; i--) {
+            updateTop(path[i], entry, score > 0 || (score == 0 && delta > 0));
+            path[i] = null;
+        }
+    }
+
+    /**
+     * Returns the highest scoring tags starting with a prefix, highest first.
+     *
+     * @param prefix What's been typed so far, including the '#', or "" for every tag
+     * @param limit  Most tags to return, up to TOP_K (or the root limit for "")
+     */
+    public List<String> suggest(String prefix, int limit) {
+        Node node = _root;
+        String key = fold(prefix);
+        for (int i = 0; i < key.length() && node != null; i++) {
+            node = getChild(node, key.charAt(i));
+        }
+        if (node == null || node.topCount == 0) {
+            return Collections.emptyList();
+        }
+        int count = Math.min(limit, node.topCount);
+        List<String> tags = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(node.top[i].tag);
+        }
+        return tags;
+    }
+
+    /**
+     * Keeps a node's top list right after one of the tags below it changed score.
+     */
+    private void updateTop(Node node, Entry entry, boolean increased) {
+        int limit = node == _root ? _rootLimit : TOP_K;
+        int index = -1;
+        for (int i = 0; i < node.topCount; i++) {
+            if (node.top[i] == entry) {
+                index = i;
+                break;
+            }
+        }
+
+        if (index < 0) {
+            if (entry.count == 0 || !increased) {
+                // Wasn't in the list, and its score hasn't gone up
+                return;
+            }
+            if (node.topCount < limit) {
+                if (node.top.length == node.topCount) {
+                    node.top = Arrays.copyOf(node.top, Math.min(Math.max(node.topCount * 2, 2), limit));
+                }
+                index = node.topCount++;
+            } else if (ORDER.compare(entry, node.top[limit - 1]) < 0) {
+                index = limit - 1;
+            } else {
+                return;
+            }
+            node.top[index] = entry;
+        }
+
+        if (!increased && node.topCount == limit) {
+            // A tag that isn't in the full list may now beat this one
+            rebuildTop(node, limit);
+            return;
+        }
+        if (entry.count == 0) {
+            System.arraycopy(node.top, index + 1, node.top, index, node.topCount - index - 1);
+            node.top[--node.topCount] = null;
+            return;
+        }
+
+        // Move it to its place
+        while (index > 0 && ORDER.compare(entry, node.top[index - 1]) < 0) {
+            node.top[index] = node.top[index - 1];
+            index--;
+        }
+        while (index + 1 < node.topCount && ORDER.compare(entry, node.top[index + 1]) > 0) {
+            node.top[index] = node.top[index + 1];
+            index++;
+        }
+        node.top[index] = entry;
+    }
+
+    /**
+     * Works out a node's top list again from every tag below it.
+     */
+    private static void rebuildTop(Node node, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        collect(node, entries);
+        Collections.sort(entries, ORDER);
+        int count = Math.min(entries.size(), limit);
+        Arrays.fill(node.top, null);
+        for (int i = 0; i < count; i++) {
+            node.top[i] = entries.get(i);
+        }
+        node.topCount = count;
+    }
+
+    private static void collect(Node node, List<Entry> entries) {
+        if (node.entry != null) {
+            entries.add(node.entry);
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            collect(node.children[i], entries);
+        }
+    }
+
+    private static Node getChild(Node node, char key) {
+        int index = Arrays.binarySearch(node.keys, 0, node.childCount, key);
+        return index >= 0 ? node.children[index] : null;
+    }
+
+    private static Node addChild(Node node, char key) {
+        int index = -(Arrays.binarySearch(node.keys, 0, node.childCount, key) + 1);
+        if (node.childCount == node.keys.length) {
+            int capacity = Math.max(node.childCount * 2, 1);
+            node.keys = Arrays.copyOf(node.keys, capacity);
+            node.children = Arrays.copyOf(node.children, capacity);
+        }
+        System.arraycopy(node.keys, index, node.keys, index + 1, node.childCount - index);
+        System.arraycopy(node.children, index, node.children, index + 1, node.childCount - index);
+        Node child = new Node();
+        node.keys[index] = key;
+        node.children[index] = child;
+        node.childCount++;
+        return child;
+    }
+
+    private static String fold(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
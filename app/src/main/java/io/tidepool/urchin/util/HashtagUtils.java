@@ -17,6 +17,85 @@ import io.tidepool.urchin.data.Hashtag;
  * Created by Brian King on 8/31/15.
  */
 public class HashtagUtils {
+    // Scanners keep their buffers between calls, so each thread has its own
+    private static final ThreadLocal<HashtagScanner> __scanner = new ThreadLocal<HashtagScanner>() {
+        @Override
+        protected HashtagScanner initialValue() {
+            return new HashtagScanner();
+        }
+    };
+
+    /**
+     * Finds the hashtags in a message. See HashtagScanner for what counts as a hashtag; it's
+     * the only definition, used for parsing and formatting alike.
+     *
+     * @param message Message containing the hashtags
+     * @return the start and end of each hashtag, as pairs of offsets into the message
+     */
+    public static int[] findHashtags(CharSequence message) {
+        HashtagScanner scanner = __scanner.get();
+        scanner.scan(message);
+        return scanner.toArray();
+    }
+
+    /**
+     * Packs hashtag offsets from findHashtags() for storing with a note. Each offset is stored
+     * as the distance from the one before, in as few bytes as it needs (7 bits per byte), so
+     * most hashtags take two bytes.
+     *
+     * @param offsets Pairs of start and end offsets, in order
+     * @return the packed offsets
+     */
+    public static byte[] packOffsets(int[] offsets) {
+        byte[] buffer = new byte[offsets.length * 5];
+        int size = 0;
+        int previous = 0;
+        for (int offset : offsets) {
+            int delta = offset - previous;
+            previous = offset;
+            while ((delta & ~0x7f) != 0) {
+                buffer[size++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            buffer[size++] = (byte) delta;
+        }
+        byte[] packed = new byte[size];
+        System.arraycopy(buffer, 0, packed, 0, size);
+        return packed;
+    }
+
+    /**
+     * Reverses packOffsets().
+     *
+     * @param packed Offsets from packOffsets()
+     * @return pairs of start and end offsets
+     */
+    public static int[] unpackOffsets(byte[] packed) {
+        int count = 0;
+        for (byte b : packed) {
+            if ((b & 0x80) == 0) {
+                count++;
+            }
+        }
+        int[] offsets = new int[count];
+        int previous = 0;
+        int index = 0;
+        int delta = 0;
+        int shift = 0;
+        for (byte b : packed) {
+            delta |= (b & 0x7f) << shift;
+            if ((b & 0x80) != 0) {
+                shift += 7;
+                continue;
+            }
+            previous += delta;
+            offsets[index++] = previous;
+            delta = 0;
+            shift = 0;
+        }
+        return offsets;
+    }
+
     /**
      * Given a string, returns a list of Hashtags found in the string. The objects have not been
      * inserted into Realm.
@@ -25,50 +104,69 @@ public class HashtagUtils {
      * @return a list of Hashtag objects ready to be inserted into Realm
      */
     public static List<Hashtag> parseHashtags(String message) {
-        List<Hashtag> tags = new ArrayList<>();
-        String[] words = message.split("\\s+");
-        for (String word : words) {
-            // Tag words that start with a # and have >1 character
-            if (word.startsWith("#") && word.trim().length() > 1) {
-                tags.add(new Hashtag(word));
-            }
+        return parseHashtags(message, findHashtags(message));
+    }
+
+    /**
+     * Returns the Hashtags at the given offsets, which have not been inserted into Realm.
+     *
+     * @param message Message containing the hashtags
+     * @param offsets Where the hashtags are, from findHashtags()
+     * @return a list of Hashtag objects ready to be inserted into Realm
+     */
+    public static List<Hashtag> parseHashtags(String message, int[] offsets) {
+        List<Hashtag> tags = new ArrayList<>(offsets.length / 2);
+        for (int i = 0; i + 1 < offsets.length; i += 2) {
+            tags.add(new Hashtag(message.substring(offsets[i], offsets[i + 1])));
         }
         return tags;
     }
 
     /**
      * Formats the hashtags in a SpannableString with the given color, and bold if specified.
+     * This scans the text, which is slower than the old whitespace split it replaced; for a
+     * stored note, pass its offsets to the other formatHashtags() instead.
      *
      * @param text  SpannableString with the text to format hashtags in
      * @param color Color to color the hashtags
      * @param bold  Set to true to make the hashtags bold
      */
     public static void formatHashtags(SpannableString text, int color, boolean bold) {
-        int startSpan = -1;
-        for (int i = 0; i < text.length(); i++) {
-            Character c = text.charAt(i);
-            if (startSpan == -1) {
-                // We're looking for a hashtag
-                if (c.equals('#')) {
-                    startSpan = i;
-                }
-            } else {
-                // We're looking for whitespace
-                if (Character.isWhitespace(c)) {
-                    // Found it. Add the span.
-                    text.setSpan(new ForegroundColorSpan(color), startSpan, i, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    if (bold) {
-                        text.setSpan(new StyleSpan(Typeface.BOLD), startSpan, i, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                    startSpan = -1;
-                }
+        applyHashtagSpans(text, findHashtags(text), color, bold);
+    }
+
+    /**
+     * Formats the hashtags in a note's text from the offsets stored with it, only scanning the
+     * text if it has none, e.g. because it hasn't been stored yet.
+     *
+     * @param text    SpannableString with the note's text
+     * @param offsets The note's hashtagOffsets, or null
+     * @param color   Color to color the hashtags
+     * @param bold    Set to true to make the hashtags bold
+     */
+    public static void formatHashtags(SpannableString text, byte[] offsets, int color, boolean bold) {
+        applyHashtagSpans(text, offsets != null ? unpackOffsets(offsets) : findHashtags(text), color, bold);
+    }
+
+    /**
+     * Formats hashtags we already know the positions of, without scanning the text.
+     *
+     * @param text    Text to format hashtags in
+     * @param offsets Where the hashtags are, from findHashtags()
+     * @param color   Color to color the hashtags
+     * @param bold    Set to true to make the hashtags bold
+     */
+    public static void applyHashtagSpans(Spannable text, int[] offsets, int color, boolean bold) {
+        for (int i = 0; i + 1 < offsets.length; i += 2) {
+            int start = offsets[i];
+            int end = Math.min(offsets[i + 1], text.length());
+            if (start >= end) {
+                // Offsets from a different version of the text
+                break;
             }
-        }
-        if (startSpan != -1) {
-            // Hashtag was last
-            text.setSpan(new ForegroundColorSpan(color), startSpan, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new ForegroundColorSpan(color), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             if (bold) {
-                text.setSpan(new StyleSpan(Typeface.BOLD), startSpan, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.setSpan(new StyleSpan(Typeface.BOLD), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             }
         }
     }
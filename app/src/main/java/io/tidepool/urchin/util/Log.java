@@ -1,34 +1,147 @@
 package io.tidepool.urchin.util;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import io.tidepool.urchin.BuildConfig;
 
 /**
  * Created by Brian King on 11/30/15.
+ *
+ * The level is checked before a message is built, as long as callers let us build it: pass a
+ * format and its arguments, or a Message, rather than concatenating. Big bodies go through
+ * payload(), which only logs the start of them.
  */
 public class Log {
+    public static final int VERBOSE = android.util.Log.VERBOSE;
+    public static final int DEBUG = android.util.Log.DEBUG;
+    public static final int INFO = android.util.Log.INFO;
+    public static final int WARN = android.util.Log.WARN;
+    public static final int ERROR = android.util.Log.ERROR;
+
+    // Most characters of a payload that are logged
+    public static final int MAX_PAYLOAD_CHARS = 1000;
+
+    /**
+     * A message that's only built if it's going to be logged.
+     */
+    public static abstract class Message {
+        public abstract String get();
+    }
+
+    // Verbose and debug only in debug builds; info and up always
+    private static volatile int __level = BuildConfig.DEBUG ? VERBOSE : INFO;
+    private static final Map<String, Integer> __tagLevels = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the lowest level that's logged, for tags without a level of their own.
+     */
+    public static void setLevel(int level) {
+        __level = level;
+    }
+
+    /**
+     * Sets the lowest level that's logged for one tag, e.g. to quiet a chatty class or to
+     * hear from one in a release build.
+     */
+    public static void setTagLevel(String tag, int level) {
+        __tagLevels.put(tag, level);
+    }
+
+    public static void clearTagLevel(String tag) {
+        __tagLevels.remove(tag);
+    }
+
+    /**
+     * Returns true if messages at a level will be logged for a tag. Check this before doing
+     * any work that's only needed for logging.
+     */
+    public static boolean isLoggable(String tag, int level) {
+        if (!__tagLevels.isEmpty()) {
+            Integer tagLevel = __tagLevels.get(tag);
+            if (tagLevel != null) {
+                return level >= tagLevel;
+            }
+        }
+        return level >= __level;
+    }
+
     public static void v(String tag, String msg) {
-        if (BuildConfig.DEBUG) {
+        if (isLoggable(tag, VERBOSE)) {
             android.util.Log.v(tag, msg);
         }
     }
 
+    public static void v(String tag, String format, Object... args) {
+        if (isLoggable(tag, VERBOSE)) {
+            android.util.Log.v(tag, format(format, args));
+        }
+    }
+
     public static void d(String tag, String msg) {
-        if (BuildConfig.DEBUG) {
+        if (isLoggable(tag, DEBUG)) {
             android.util.Log.d(tag, msg);
         }
     }
 
-    // Always log
+    public static void d(String tag, String format, Object... args) {
+        if (isLoggable(tag, DEBUG)) {
+            android.util.Log.d(tag, format(format, args));
+        }
+    }
+
+    public static void d(String tag, Message message) {
+        if (isLoggable(tag, DEBUG)) {
+            android.util.Log.d(tag, message.get());
+        }
+    }
+
+    /**
+     * Logs the start of a big body, such as a server response, at debug level.
+     *
+     * @param label What it is, e.g. "Messages response"
+     * @param body  The body, which is only looked at if it's going to be logged
+     */
+    public static void payload(String tag, String label, CharSequence body) {
+        if (isLoggable(tag, DEBUG)) {
+            android.util.Log.d(tag, label + ": " + truncate(body, MAX_PAYLOAD_CHARS));
+        }
+    }
+
+    // Logged unless turned off for the tag
     public static void e(String tag, String msg) {
-        android.util.Log.e(tag, msg);
+        if (isLoggable(tag, ERROR)) {
+            android.util.Log.e(tag, msg);
+        }
     }
 
     public static void i(String tag, String msg) {
-        android.util.Log.i(tag, msg);
+        if (isLoggable(tag, INFO)) {
+            android.util.Log.i(tag, msg);
+        }
     }
 
     public static void w(String tag, String msg) {
-        android.util.Log.w(tag, msg);
+        if (isLoggable(tag, WARN)) {
+            android.util.Log.w(tag, msg);
+        }
+    }
+
+    /**
+     * Returns up to the first maxChars of some text, saying how long it was if it's cut short.
+     */
+    public static String truncate(CharSequence text, int maxChars) {
+        if (text == null) {
+            return "null";
+        }
+        if (text.length() <= maxChars) {
+            return text.toString();
+        }
+        return text.subSequence(0, maxChars) + "... (" + text.length() + " chars)";
     }
 
+    private static String format(String format, Object... args) {
+        return String.format(Locale.ROOT, format, args);
+    }
 }
@@ -5,13 +5,10 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.text.TextUtils;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.text.Collator;
 import java.util.Date;
-import java.util.Locale;
 
-import io.tidepool.urchin.MainActivity;
-import io.tidepool.urchin.api.APIClient;
+import io.tidepool.urchin.UrchinApplication;
 import io.tidepool.urchin.data.Profile;
 import io.tidepool.urchin.data.User;
 
@@ -47,6 +44,31 @@ public class MiscUtils {
         return name;
     }
 
+    /**
+     * Returns a key that sorts names the way the user's locale does. Realm can't sort strings
+     * with locale collation rules, so we store the collation key as hex, which sorts the same.
+     *
+     * @param name Name to make a key for, may be null
+     * @return a hex string that sorts in the same order as the name
+     */
+    public static String getSortKey(String name) {
+        if (name == null) {
+            return "";
+        }
+
+        Collator collator = Collator.getInstance();
+        collator.setStrength(Collator.SECONDARY);
+        byte[] key = collator.getCollationKey(name).toByteArray();
+        char[] hex = new char[key.length * 2];
+        for (int i = 0; i < key.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(key[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[key[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     public static String getAppInfoString(Context context) {
         PackageInfo info = null;
         String ver = "UNKNOWN";
@@ -57,12 +79,10 @@ public class MiscUtils {
             e.printStackTrace();
         }
 
-        return "v" + ver + " on " + MainActivity.getInstance().getSelectedServer();
+        return "v" + ver + " on " + UrchinApplication.get(context).getSelectedServer();
     }
 
-    static DateFormat _jsonDateFormat = new SimpleDateFormat(APIClient.MESSAGE_DATE_FORMAT, Locale.US);
-
     public static String dateToJSONString(Date date) {
-        return _jsonDateFormat.format(date);
+        return DateCodec.formatMessageDate(date.getTime());
     }
 }
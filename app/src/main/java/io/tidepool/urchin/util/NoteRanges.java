@@ -0,0 +1,67 @@
+package io.tidepool.urchin.util;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Splits time into the ranges notes are fetched in: calendar quarters, in UTC.
+ *
+ * A notes request's URL holds its start and end times, and the URL is the cache key. Ranges
+ * counted back from now make a new URL every time, so nothing is ever read back. Fetching whole
+ * quarters instead means a past quarter is always the same URL, and scrolling back through it
+ * again, even after a restart, comes from the cache. Only the quarter we're in is still
+ * changing.
+ */
+public final class NoteRanges {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final int MONTHS_PER_RANGE = 3;
+
+    private NoteRanges() {
+    }
+
+    /**
+     * Returns the start of the range a time is in.
+     */
+    public static long getRangeStart(long millis) {
+        Calendar c = calendar(millis);
+        int year = c.get(Calendar.YEAR);
+        int month = c.get(Calendar.MONTH);
+        c.clear();
+        c.set(year, month - month % MONTHS_PER_RANGE, 1);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Returns the start of the range after the one a time is in, which is where that range
+     * ends.
+     */
+    public static long getRangeEnd(long millis) {
+        Calendar c = calendar(getRangeStart(millis));
+        c.add(Calendar.MONTH, MONTHS_PER_RANGE);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Returns the start of the range before the one a time is in.
+     */
+    public static long getPreviousRangeStart(long millis) {
+        Calendar c = calendar(getRangeStart(millis));
+        c.add(Calendar.MONTH, -MONTHS_PER_RANGE);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Returns true if from and to are exactly one range.
+     */
+    public static boolean isRange(long from, long to) {
+        return getRangeStart(from) == from && getRangeEnd(from) == to;
+    }
+
+    private static Calendar calendar(long millis) {
+        Calendar c = new GregorianCalendar(UTC, Locale.ROOT);
+        c.setTimeInMillis(millis);
+        return c;
+    }
+}
@@ -0,0 +1,100 @@
+package io.tidepool.urchin.util;
+
+import android.os.SystemClock;
+
+/**
+ * Times a cold start, from the application being created to the first note card on screen,
+ * with marks for the steps along the way. It's logged once, on one line, so it's easy to
+ * find and to hold against COLD_START_BUDGET_MILLIS:
+ *
+ *   Time to first card: 412ms (budget 800ms) databaseOpened=95ms activityCreated=160ms ...
+ *
+ * It's also recorded as a "coldStart" span in Trace, with its marks as instants.
+ *
+ * Main thread only.
+ */
+public final class StartupTrace {
+    private static final String LOG_TAG = "StartupTrace";
+
+    // What we aim for, from the application being created to the first card on screen
+    public static final long COLD_START_BUDGET_MILLIS = 800;
+
+    private static long __startTime = -1;
+    private static boolean __finished;
+    private static long __timeToFirstCard = -1;
+    private static int __span;
+    private static final StringBuilder __marks = new StringBuilder();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Starts timing. Called as the application is created.
+     */
+    public static void begin() {
+        __startTime = SystemClock.uptimeMillis();
+        __finished = false;
+        __timeToFirstCard = -1;
+        __marks.setLength(0);
+        __span = Trace.beginAsync("coldStart");
+    }
+
+    /**
+     * Returns true from begin() until the first card is shown or the trace is abandoned.
+     */
+    public static boolean isRunning() {
+        return __startTime >= 0 && !__finished;
+    }
+
+    /**
+     * Notes how long it took to get to a step.
+     */
+    public static void mark(String name) {
+        if (isRunning()) {
+            __marks.append(' ').append(name).append('=').append(elapsed()).append("ms");
+            Trace.instant(name);
+        }
+    }
+
+    /**
+     * Ends the trace as the first card is drawn, and logs it.
+     */
+    public static void firstCard() {
+        if (!isRunning()) {
+            return;
+        }
+        __finished = true;
+        __timeToFirstCard = elapsed();
+        Trace.endAsync(__span);
+        String message = "Time to first card: " + __timeToFirstCard + "ms (budget "
+                + COLD_START_BUDGET_MILLIS + "ms)" + __marks;
+        if (__timeToFirstCard > COLD_START_BUDGET_MILLIS) {
+            Log.w(LOG_TAG, message);
+        } else {
+            Log.i(LOG_TAG, message);
+        }
+    }
+
+    /**
+     * Drops the trace when there won't be a card to time, e.g. when we have to sign in first.
+     */
+    public static void abandon(String reason) {
+        if (!isRunning()) {
+            return;
+        }
+        __finished = true;
+        Trace.endAsync(__span);
+        Log.d(LOG_TAG, "No first card: " + reason + __marks);
+    }
+
+    /**
+     * Returns the time to the first card of the last cold start, or -1 if there wasn't one.
+     */
+    public static long getTimeToFirstCard() {
+        return __timeToFirstCard;
+    }
+
+    private static long elapsed() {
+        return SystemClock.uptimeMillis() - __startTime;
+    }
+}
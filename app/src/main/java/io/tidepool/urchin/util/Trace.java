@@ -0,0 +1,253 @@
+package io.tidepool.urchin.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Records spans of time, to see where a slow launch or sync went, and writes them out as a
+ * Chrome trace (load the file in chrome://tracing or ui.perfetto.dev).
+ *
+ * begin() and end() time work on one thread and nest. beginAsync() and endAsync() time work
+ * that ends somewhere else, such as a request that finishes in a Volley callback.
+ *
+ * Off until setEnabled(true); while it's off every call returns straight away. The last
+ * MAX_EVENTS events are kept, so a long session keeps its end rather than its start.
+ *
+ * Safe to use from any thread. Each event records its thread, and the file names the threads
+ * so the viewer can label their tracks.
+ */
+public final class Trace {
+    // Most events kept
+    public static final int MAX_EVENTS = 16384;
+
+    private static final char BEGIN = 'B';
+    private static final char END = 'E';
+    private static final char ASYNC_BEGIN = 'b';
+    private static final char ASYNC_END = 'e';
+    private static final char INSTANT = 'i';
+
+    private static volatile boolean __enabled;
+
+    private static final Object __lock = new Object();
+
+    // Guarded by __lock. A ring of events, oldest at __first, allocated when first enabled.
+    private static char[] __phases;
+    private static String[] __names;
+    private static long[] __times;          // Microseconds
+    private static long[] __threads;
+    private static int[] __ids;
+    private static int __first;
+    private static int __count;
+    private static int __nextId = 1;
+    private static final Map<Integer, String> __openAsync = new HashMap<>();   // Names by ID
+    private static final Map<Long, String> __threadNames = new HashMap<>();
+
+    private Trace() {
+    }
+
+    public static boolean isEnabled() {
+        return __enabled;
+    }
+
+    /**
+     * Starts or stops recording. Events already recorded are kept.
+     */
+    public static void setEnabled(boolean enabled) {
+        synchronized (__lock) {
+            if (enabled && __phases == null) {
+                __phases = new char[MAX_EVENTS];
+                __names = new String[MAX_EVENTS];
+                __times = new long[MAX_EVENTS];
+                __threads = new long[MAX_EVENTS];
+                __ids = new int[MAX_EVENTS];
+            }
+        }
+        __enabled = enabled;
+    }
+
+    /**
+     * Starts timing something on this thread. Must be followed by end() on the same thread.
+     */
+    public static void begin(String name) {
+        if (__enabled) {
+            record(BEGIN, name, 0);
+        }
+    }
+
+    /**
+     * Ends the last span begun on this thread.
+     */
+    public static void end() {
+        if (__enabled) {
+            record(END, null, 0);
+        }
+    }
+
+    /**
+     * Starts timing something that may end on another thread, or in a callback.
+     *
+     * @return the ID to pass to endAsync(), or 0 if tracing is off
+     */
+    public static int beginAsync(String name) {
+        if (!__enabled) {
+            return 0;
+        }
+        int id;
+        synchronized (__lock) {
+            id = __nextId++;
+            __openAsync.put(id, name);
+        }
+        record(ASYNC_BEGIN, name, id);
+        return id;
+    }
+
+    /**
+     * Ends a span from beginAsync(). Does nothing for 0, or an ID that was already ended.
+     */
+    public static void endAsync(int id) {
+        if (id == 0) {
+            return;
+        }
+        String name;
+        synchronized (__lock) {
+            name = __openAsync.remove(id);
+        }
+        if (name != null && __enabled) {
+            record(ASYNC_END, name, id);
+        }
+    }
+
+    /**
+     * Marks a moment, e.g. a step of a longer span.
+     */
+    public static void instant(String name) {
+        if (__enabled) {
+            record(INSTANT, name, 0);
+        }
+    }
+
+    /**
+     * Returns how many events are recorded.
+     */
+    public static int size() {
+        synchronized (__lock) {
+            return __count;
+        }
+    }
+
+    /**
+     * Forgets everything recorded, and any async spans that haven't ended.
+     */
+    public static void clear() {
+        synchronized (__lock) {
+            __first = 0;
+            __count = 0;
+            __openAsync.clear();
+            __threadNames.clear();
+            if (__names != null) {
+                Arrays.fill(__names, null);
+            }
+        }
+    }
+
+    /**
+     * Writes what's been recorded to a file, in Chrome trace format.
+     */
+    public static void save(File file) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writeJson(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes what's been recorded in Chrome trace format.
+     */
+    public static void writeJson(Writer out) throws IOException {
+        StringBuilder json = new StringBuilder();
+        synchronized (__lock) {
+            json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            boolean first = true;
+            for (Map.Entry<Long, String> thread : __threadNames.entrySet()) {
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread.getKey())
+                        .append(",\"args\":{\"name\":");
+                appendString(json, thread.getValue());
+                json.append("}}");
+            }
+            for (int n = 0; n < __count; n++) {
+                int i = (__first + n) % MAX_EVENTS;
+                if (!first) {
+                    json.append(',');
+                }
+                first = false;
+                json.append("\n{\"ph\":\"").append(__phases[i]).append('"');
+                if (__names[i] != null) {
+                    json.append(",\"name\":");
+                    appendString(json, __names[i]);
+                }
+                if (__phases[i] == ASYNC_BEGIN || __phases[i] == ASYNC_END) {
+                    json.append(",\"cat\":\"async\",\"id\":").append(__ids[i]);
+                } else if (__phases[i] == INSTANT) {
+                    json.append(",\"s\":\"t\"");
+                }
+                json.append(",\"ts\":").append(__times[i])
+                        .append(",\"pid\":1,\"tid\":").append(__threads[i]).append('}');
+            }
+            json.append("\n]}\n");
+        }
+        out.write(json.toString());
+        out.flush();
+    }
+
+    private static void record(char phase, String name, int id) {
+        long time = System.nanoTime() / 1000;
+        Thread thread = Thread.currentThread();
+        long threadId = thread.getId();
+        synchronized (__lock) {
+            int i;
+            if (__count < MAX_EVENTS) {
+                i = (__first + __count++) % MAX_EVENTS;
+            } else {
+                // Full, so the oldest goes
+                i = __first;
+                __first = (__first + 1) % MAX_EVENTS;
+            }
+            __phases[i] = phase;
+            __names[i] = name;
+            __times[i] = time;
+            __threads[i] = threadId;
+            __ids[i] = id;
+            if (!__threadNames.containsKey(threadId)) {
+                __threadNames.put(threadId, thread.getName());
+            }
+        }
+    }
+
+    private static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,115 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import io.tidepool.urchin.util.DateCodec;
+
+/**
+ * Times DateCodec against the SimpleDateFormat code it replaced: parsing note timestamps,
+ * formatting request dates and formatting card dates. Runs on the JVM (./gradlew test);
+ * results are printed to stdout.
+ */
+public class DateCodecBenchmark {
+    private static final int COUNT = 20000;
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 10;
+
+    // The JVM spells Android's ZZZZZ as XXX
+    private static final String MESSAGE_FORMAT = "yyyy-MM-dd'T'HH:mm:ssXXX";
+    private static final String DEFAULT_FORMAT = "yyyy-MM-dd HH:mm:ss.SSSXXX";
+
+    private abstract static class Task {
+        abstract int run(int i) throws ParseException;
+    }
+
+    @Test
+    public void benchmarkDateCodec() throws ParseException {
+        // A feed's worth of note times, a few minutes apart
+        Random random = new Random(3);
+        final long[] times = new long[COUNT];
+        final String[] messageDates = new String[COUNT];
+        long time = 1441043280000L;
+        DateFormat messageFormat = new SimpleDateFormat(MESSAGE_FORMAT, Locale.US);
+        for (int i = 0; i < COUNT; i++) {
+            time -= random.nextInt(6 * 60 * 60) * 1000L;
+            times[i] = time;
+            messageDates[i] = messageFormat.format(new Date(time));
+        }
+
+        final DateFormat shared = new SimpleDateFormat(MESSAGE_FORMAT, Locale.US);
+        report("parse: shared SimpleDateFormat", time(new Task() {
+            @Override
+            int run(int i) throws ParseException {
+                return (int) shared.parse(messageDates[i]).getTime();
+            }
+        }));
+        report("parse: DateCodec", time(new Task() {
+            @Override
+            int run(int i) throws ParseException {
+                return (int) DateCodec.parse(messageDates[i]);
+            }
+        }));
+
+        report("request: new SimpleDateFormat", time(new Task() {
+            @Override
+            int run(int i) {
+                return new SimpleDateFormat(DEFAULT_FORMAT, Locale.US).format(new Date(times[i])).length();
+            }
+        }));
+        report("request: DateCodec", time(new Task() {
+            @Override
+            int run(int i) {
+                return DateCodec.formatDefaultDate(times[i]).length();
+            }
+        }));
+
+        // Binding cards scrolls back and forth over the same notes
+        final DateFormat display = new SimpleDateFormat(DateCodec.DISPLAY_FORMAT, Locale.getDefault());
+        report("card: SimpleDateFormat", time(new Task() {
+            @Override
+            int run(int i) {
+                return display.format(new Date(times[i % 50])).length();
+            }
+        }));
+        report("card: DateCodec", time(new Task() {
+            @Override
+            int run(int i) {
+                return DateCodec.formatDisplay(times[i % 50]).length();
+            }
+        }));
+    }
+
+    /**
+     * Returns the best time, in nanoseconds, to run a task COUNT times.
+     */
+    private static long time(Task task) throws ParseException {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < COUNT; i++) {
+                sink += task.run(i);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        // Keep the JIT from dropping the work
+        assertTrue(sink != 0);
+        return best;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format("%-32s %8.2f ms / %d", name, nanos / 1000000.0, COUNT));
+    }
+}
@@ -0,0 +1,86 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import io.tidepool.urchin.util.DateCodec;
+
+public class DateCodecTest {
+    private static final String[] ZONES = {"UTC", "America/Los_Angeles", "Asia/Kolkata", "Pacific/Chatham"};
+
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        Random random = new Random(11);
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            // The JVM spells Android's ZZZZZ as XXX
+            SimpleDateFormat message = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.US);
+            SimpleDateFormat withMillis = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSXXX", Locale.US);
+            message.setTimeZone(zone);
+            withMillis.setTimeZone(zone);
+            for (int i = 0; i < 2000; i++) {
+                // 1980 to 2040
+                long millis = 315532800000L + (long) (random.nextDouble() * 1893456000000L);
+                Date date = new Date(millis);
+                assertEquals(message.format(date), DateCodec.format(millis, zone, 'T', false));
+                assertEquals(withMillis.format(date), DateCodec.format(millis, zone, ' ', true));
+            }
+        }
+    }
+
+    @Test
+    public void parsesBothFormats() throws ParseException {
+        assertEquals(1441043280000L, DateCodec.parse("2015-08-31T10:48:00-07:00"));
+        assertEquals(1441043280123L, DateCodec.parse("2015-08-31 10:48:00.123-07:00"));
+        assertEquals(1441043280000L, DateCodec.parse("2015-08-31T17:48:00Z"));
+        assertEquals(1441043280000L, DateCodec.parse("2015-08-31T17:48:00+0000"));
+        assertEquals(1441043280120L, DateCodec.parse("2015-08-31T17:48:00.12Z"));
+        assertEquals(1441043280123L, DateCodec.parse("2015-08-31T17:48:00.123456Z"));
+        assertEquals(-1000L, DateCodec.parse("1969-12-31T23:59:59Z"));
+    }
+
+    @Test
+    public void roundTrips() throws ParseException {
+        Random random = new Random(5);
+        for (String id : ZONES) {
+            TimeZone zone = TimeZone.getTimeZone(id);
+            for (int i = 0; i < 2000; i++) {
+                long millis = 315532800000L + (long) (random.nextDouble() * 1893456000000L);
+                assertEquals(millis, DateCodec.parse(DateCodec.format(millis, zone, ' ', true)));
+                assertEquals(millis / 1000 * 1000, DateCodec.parse(DateCodec.format(millis, zone, 'T', false)));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsOtherText() {
+        String[] bad = {"", "2015-08-31", "2015-08-31T10:48:00", "2015-08-31T10:48:00-07:00x",
+                "2015-13-31T10:48:00Z", "2015/08/31T10:48:00Z", "2015-08-31T10:48:00.Z"};
+        for (String text : bad) {
+            try {
+                DateCodec.parse(text);
+                fail("Parsed " + text);
+            } catch (ParseException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void cachesDisplayStringsByMinute() {
+        long millis = 1441043280000L;
+        String text = DateCodec.formatDisplay(millis + 1000);
+        assertSame(text, DateCodec.formatDisplay(millis + 59000));
+        assertEquals(new SimpleDateFormat(DateCodec.DISPLAY_FORMAT, Locale.getDefault()).format(new Date(millis)), text);
+    }
+}
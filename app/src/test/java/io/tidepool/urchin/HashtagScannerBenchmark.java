@@ -0,0 +1,165 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.tidepool.urchin.util.HashtagScanner;
+
+/**
+ * Times HashtagScanner against the two ways we used to find hashtags, on synthetic note bodies
+ * shaped like real ones: a sentence or two, a few hashtags, some punctuation and the odd emoji.
+ * Runs on the JVM (./gradlew test); results are printed to stdout.
+ */
+public class HashtagScannerBenchmark {
+    private static final int NOTE_COUNT = 10000;
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 10;
+
+    private static final String[] WORDS = {
+            "checked", "in", "with", "after", "lunch", "bolus", "was", "late", "and", "BG", "went",
+            "up", "to", "240", "before", "soccer", "practice", "so", "we", "ate", "a", "snack",
+            "site", "change", "tonight", "looks", "good", "café", "😀", "日本",
+    };
+    private static final String[] TAGS = {
+            "#exercise", "#lowbg", "#highbg", "#pizza", "#sitechange", "#sick", "#school",
+            "#café", "#日本語", "#tag_1",
+    };
+    private static final String[] PUNCTUATION = {"", "", "", ",", ".", "!", "?"};
+
+    @Test
+    public void benchmarkScanners() {
+        List<String> notes = createNotes();
+
+        long split = time(notes, new Finder() {
+            @Override
+            int find(String note) {
+                return countWithSplit(note);
+            }
+        });
+        long charLoop = time(notes, new Finder() {
+            @Override
+            int find(String note) {
+                return countWithBoxedLoop(note);
+            }
+        });
+        final HashtagScanner scanner = new HashtagScanner();
+        long scan = time(notes, new Finder() {
+            @Override
+            int find(String note) {
+                return scanner.scan(note);
+            }
+        });
+
+        System.out.println(NOTE_COUNT + " notes, best of " + RUNS + " runs (ms)");
+        System.out.println("regex split       " + format(split));
+        System.out.println("boxed char loop   " + format(charLoop));
+        System.out.println("HashtagScanner    " + format(scan));
+
+        // Every note has at least one hashtag
+        int found = 0;
+        for (String note : notes) {
+            found += scanner.scan(note);
+        }
+        assertTrue(found >= NOTE_COUNT);
+    }
+
+    @Test
+    public void scannerMatchesSplitOnPlainTags() {
+        // Without punctuation or emoji the old parser and the scanner agree
+        HashtagScanner scanner = new HashtagScanner();
+        String note = "after lunch #pizza bolus was late #highbg  #soccer";
+        assertEquals(countWithSplit(note), scanner.scan(note));
+    }
+
+    private static abstract class Finder {
+        abstract int find(String note);
+    }
+
+    /**
+     * Returns the best time, in nanoseconds, to find the hashtags in every note.
+     */
+    private static long time(List<String> notes, Finder finder) {
+        long best = Long.MAX_VALUE;
+        int sink = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            for (String note : notes) {
+                sink += finder.find(note);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        // Keep the JIT from dropping the work
+        assertTrue(sink > 0);
+        return best;
+    }
+
+    private static List<String> createNotes() {
+        Random random = new Random(42);
+        List<String> notes = new ArrayList<>(NOTE_COUNT);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            StringBuilder sb = new StringBuilder();
+            int words = 8 + random.nextInt(40);
+            int tags = 1 + random.nextInt(4);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    sb.append(' ');
+                }
+                if (tags > 0 && random.nextInt(words - w) < tags) {
+                    sb.append(TAGS[random.nextInt(TAGS.length)]);
+                    tags--;
+                } else {
+                    sb.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                sb.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+            }
+            notes.add(sb.toString());
+        }
+        return notes;
+    }
+
+    /**
+     * How HashtagUtils.parseHashtags used to find tags.
+     */
+    private static int countWithSplit(String message) {
+        int count = 0;
+        for (String word : message.split("\\s+")) {
+            if (word.startsWith("#") && word.trim().length() > 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * How HashtagUtils.formatHashtags used to find tags, without the spans.
+     */
+    private static int countWithBoxedLoop(String text) {
+        int count = 0;
+        int startSpan = -1;
+        for (int i = 0; i < text.length(); i++) {
+            Character c = text.charAt(i);
+            if (startSpan == -1) {
+                if (c.equals('#')) {
+                    startSpan = i;
+                }
+            } else if (Character.isWhitespace(c)) {
+                count++;
+                startSpan = -1;
+            }
+        }
+        return startSpan != -1 ? count + 1 : count;
+    }
+
+    private static String format(long nanos) {
+        return String.format("%8.2f", nanos / 1000000.0);
+    }
+}
@@ -0,0 +1,111 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import io.tidepool.urchin.util.HashtagTrie;
+
+public class HashtagTrieTest {
+    @Test
+    public void suggestsMostUsedFirst() {
+        HashtagTrie trie = new HashtagTrie();
+        trie.add("#pizza", 3);
+        trie.add("#pasta", 5);
+        trie.add("#pump", 1);
+        trie.add("#lowbg", 2);
+
+        assertEquals(Arrays.asList("#pasta", "#pizza", "#pump"), trie.suggest("#p", 8));
+        assertEquals(Arrays.asList("#pasta"), trie.suggest("#p", 1));
+        assertEquals(Arrays.asList("#pizza"), trie.suggest("#PI", 8));
+        assertEquals(Collections.<String>emptyList(), trie.suggest("#x", 8));
+        assertEquals(4, trie.size());
+    }
+
+    @Test
+    public void removedTagsAreNotSuggested() {
+        HashtagTrie trie = new HashtagTrie();
+        trie.add("#pizza", 2);
+        trie.add("#pasta", 1);
+        trie.add("#pizza", -2);
+
+        assertEquals(Arrays.asList("#pasta"), trie.suggest("#p", 8));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void ranksByScore() {
+        HashtagTrie trie = new HashtagTrie(20);
+        // Used a lot a long time ago, against once recently
+        trie.add("#old", 10, 0.01);
+        trie.add("#new", 1, 1.0);
+        assertEquals(Arrays.asList("#new", "#old"), trie.suggest("", 20));
+
+        // Taking the recent use away leaves the old tag on top
+        trie.add("#new", -1, -1.0);
+        assertEquals(Arrays.asList("#old"), trie.suggest("", 20));
+    }
+
+    @Test
+    public void rootKeepsMoreTags() {
+        HashtagTrie trie = new HashtagTrie(20);
+        for (int i = 0; i < 30; i++) {
+            trie.add("#tag" + i, i + 1);
+        }
+        assertEquals(20, trie.suggest("", 50).size());
+        assertEquals("#tag29", trie.suggest("", 50).get(0));
+        assertEquals(HashtagTrie.TOP_K, trie.suggest("#tag", 50).size());
+    }
+
+    @Test
+    public void matchesCountingFromScratch() {
+        // Lots of adds and removes over more tags than a node keeps, checked against sorting
+        // the counts each time
+        Random random = new Random(7);
+        String[] tags = new String[40];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = "#t" + Integer.toString(i, 3);
+        }
+        HashtagTrie trie = new HashtagTrie();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int step = 0; step < 5000; step++) {
+            String tag = tags[random.nextInt(tags.length)];
+            int delta = random.nextInt(5) - 2;
+            trie.add(tag, delta);
+            Integer count = counts.get(tag);
+            counts.put(tag, Math.max((count == null ? 0 : count) + delta, 0));
+
+            for (String prefix : new String[]{"#", "#t", "#t1", "#t20"}) {
+                assertEquals(expected(counts, prefix), trie.suggest(prefix, HashtagTrie.TOP_K));
+            }
+        }
+    }
+
+    private static List<String> expected(final Map<String, Integer> counts, String prefix) {
+        List<String> tags = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 0 && entry.getKey().toLowerCase(Locale.ROOT).startsWith(prefix)) {
+                tags.add(entry.getKey());
+            }
+        }
+        Collections.sort(tags, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int l = counts.get(lhs);
+                int r = counts.get(rhs);
+                return l != r ? r - l : lhs.compareTo(rhs);
+            }
+        });
+        return tags.size() > HashtagTrie.TOP_K ? tags.subList(0, HashtagTrie.TOP_K) : tags;
+    }
+}
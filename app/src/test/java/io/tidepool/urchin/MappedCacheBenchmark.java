@@ -0,0 +1,108 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertTrue;
+
+import com.android.volley.Cache;
+import com.android.volley.toolbox.DiskBasedCache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.tidepool.urchin.api.MappedCache;
+
+/**
+ * Times MappedCache against the DiskBasedCache it replaced: opening a full cache, and reading
+ * hits. Runs on the JVM (./gradlew test); results are printed to stdout.
+ */
+public class MappedCacheBenchmark {
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+    private static final int ENTRIES = 500;
+    private static final int HITS = 20000;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 10;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private abstract static class CacheFactory {
+        abstract Cache create(File dir);
+    }
+
+    @Test
+    public void benchmarkMappedCache() throws Exception {
+        // Profiles and groups lists: a few KB each
+        Random random = new Random(5);
+        String[] keys = new String[ENTRIES];
+        Cache.Entry[] entries = new Cache.Entry[ENTRIES];
+        for (int i = 0; i < ENTRIES; i++) {
+            keys[i] = "https://api.tidepool.org/metadata/" + Integer.toHexString(random.nextInt()) + "/profile";
+            entries[i] = entry(1000 + random.nextInt(4000), random);
+        }
+
+        run("DiskBasedCache", new CacheFactory() {
+            @Override
+            Cache create(File dir) {
+                return new DiskBasedCache(dir, MAX_BYTES);
+            }
+        }, keys, entries);
+        run("MappedCache", new CacheFactory() {
+            @Override
+            Cache create(File dir) {
+                return new MappedCache(dir, MAX_BYTES);
+            }
+        }, keys, entries);
+    }
+
+    private void run(String name, CacheFactory factory, String[] keys, Cache.Entry[] entries) throws Exception {
+        File dir = _folder.newFolder(name);
+        Cache filled = factory.create(dir);
+        filled.initialize();
+        for (int i = 0; i < keys.length; i++) {
+            filled.put(keys[i], entries[i]);
+        }
+
+        long bestStartup = Long.MAX_VALUE;
+        long bestHits = Long.MAX_VALUE;
+        int sink = 0;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            long start = System.nanoTime();
+            Cache cache = factory.create(dir);
+            cache.initialize();
+            long startup = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < HITS; i++) {
+                sink += cache.get(keys[(i * 7) % keys.length]).data.length;
+            }
+            long hits = System.nanoTime() - start;
+
+            if (run >= WARMUP_RUNS) {
+                bestStartup = Math.min(bestStartup, startup);
+                bestHits = Math.min(bestHits, hits);
+            }
+        }
+        assertTrue(sink != 0);
+        System.out.println(String.format("%-16s startup %8.2f ms / %d entries, hit %6.2f us",
+                name, bestStartup / 1000000.0, keys.length, bestHits / 1000.0 / HITS));
+    }
+
+    private static Cache.Entry entry(int size, Random random) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        random.nextBytes(entry.data);
+        entry.etag = "\"" + Integer.toHexString(random.nextInt()) + "\"";
+        entry.serverDate = 1441043280000L;
+        entry.softTtl = entry.ttl = Long.MAX_VALUE;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json; charset=utf-8");
+        headers.put("ETag", entry.etag);
+        entry.responseHeaders = headers;
+        return entry;
+    }
+}
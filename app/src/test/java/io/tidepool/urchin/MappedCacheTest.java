@@ -0,0 +1,159 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.android.volley.Cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.tidepool.urchin.api.MappedCache;
+
+public class MappedCacheTest {
+    private static final int MAX_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasPut() throws Exception {
+        MappedCache cache = open(_folder.getRoot());
+        Cache.Entry entry = entry("{\"firstName\":\"Ana\"}", "\"v1\"");
+        cache.put("https://api/profile/1", entry);
+
+        Cache.Entry read = cache.get("https://api/profile/1");
+        assertArrayEquals(entry.data, read.data);
+        assertEquals("\"v1\"", read.etag);
+        assertEquals(entry.ttl, read.ttl);
+        assertEquals(entry.softTtl, read.softTtl);
+        assertEquals(entry.serverDate, read.serverDate);
+        assertEquals(entry.lastModified, read.lastModified);
+        assertEquals("application/json", read.responseHeaders.get("content-type"));
+        assertNull(cache.get("https://api/profile/2"));
+    }
+
+    @Test
+    public void keepsEntriesAcrossRestarts() throws Exception {
+        File dir = _folder.getRoot();
+        MappedCache cache = open(dir);
+        cache.put("a", entry("first", null));
+        cache.put("b", entry("second", null));
+        cache.put("a", entry("replaced", null));
+        cache.remove("b");
+        cache.invalidate("a", true);
+
+        MappedCache reopened = open(dir);
+        assertEquals(1, reopened.size());
+        Cache.Entry a = reopened.get("a");
+        assertEquals("replaced", new String(a.data, "UTF-8"));
+        assertEquals(0, a.ttl);
+        assertEquals(0, a.softTtl);
+        assertNull(reopened.get("b"));
+    }
+
+    @Test
+    public void evictsOldestWritesWhenFull() throws Exception {
+        File dir = _folder.getRoot();
+        MappedCache cache = open(dir);
+        String body = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, entry(body, null));
+        }
+
+        // The newest are all there, the oldest are gone, and it's the same after a restart.
+        // Reading one moves it along, so the oldest one left is read first.
+        assertNotNull(cache.get("key199"));
+        assertNull(cache.get("key0"));
+        int size = cache.size();
+        MappedCache reopened = open(dir);
+        assertEquals(size, reopened.size());
+        assertNull(reopened.get("key" + (199 - size)));
+        assertNotNull(reopened.get("key" + (200 - size)));
+        assertNotNull(reopened.get("key199"));
+    }
+
+    @Test
+    public void keepsEntriesThatAreReadWhenFull() throws Exception {
+        File dir = _folder.getRoot();
+        MappedCache cache = open(dir);
+        String body = new String(new char[1000]).replace('\0', 'x');
+        cache.put("read", entry("read often", null));
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, entry(body, null));
+            assertNotNull(cache.get("read"));
+        }
+
+        // Written before everything else, but read since, so it's moved along rather than evicted
+        assertNull(cache.get("key0"));
+        assertEquals("read often", new String(open(dir).get("read").data, "UTF-8"));
+    }
+
+    @Test
+    public void dropsEntriesTooBigToKeep() throws Exception {
+        MappedCache cache = open(_folder.getRoot());
+        cache.put("big", entry("small", null));
+        cache.put("big", entry(new String(new char[MAX_BYTES]), null));
+        assertNull(cache.get("big"));
+    }
+
+    @Test
+    public void clearEmptiesTheFiles() throws Exception {
+        File dir = _folder.getRoot();
+        MappedCache cache = open(dir);
+        cache.put("a", entry("first", null));
+
+        // Cleared before it's been initialized, as signing out does
+        new MappedCache(dir, MAX_BYTES).clear();
+        assertEquals(0, open(dir).size());
+    }
+
+    @Test
+    public void clearLeavesNothingToReadBack() throws Exception {
+        File dir = _folder.getRoot();
+        MappedCache cache = open(dir);
+        cache.put("https://api/message/notes/1", entry("secret note", null));
+        cache.clear();
+
+        for (File file : dir.listFiles()) {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            assertFalse(new String(bytes, "ISO-8859-1").contains("secret note"));
+        }
+    }
+
+    private static MappedCache open(File dir) {
+        MappedCache cache = new MappedCache(dir, MAX_BYTES);
+        cache.initialize();
+        return cache;
+    }
+
+    private static Cache.Entry entry(String body, String etag) throws Exception {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = body.getBytes("UTF-8");
+        entry.etag = etag;
+        entry.serverDate = 1441043280000L;
+        entry.lastModified = 1441040000000L;
+        entry.softTtl = 1441043580000L;
+        entry.ttl = 1441043880000L;
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        entry.responseHeaders = headers;
+        return entry;
+    }
+}
@@ -0,0 +1,58 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import io.tidepool.urchin.util.DateCodec;
+import io.tidepool.urchin.util.NoteRanges;
+
+public class NoteRangesTest {
+    @Test
+    public void rangesAreUtcQuarters() throws Exception {
+        long time = time("2015-11-30T17:45:12.000Z");
+        assertEquals(time("2015-10-01T00:00:00.000Z"), NoteRanges.getRangeStart(time));
+        assertEquals(time("2016-01-01T00:00:00.000Z"), NoteRanges.getRangeEnd(time));
+        assertEquals(time("2015-07-01T00:00:00.000Z"), NoteRanges.getPreviousRangeStart(time));
+    }
+
+    @Test
+    public void aRangeStartIsInItsOwnRange() throws Exception {
+        long start = time("2016-01-01T00:00:00.000Z");
+        assertEquals(start, NoteRanges.getRangeStart(start));
+        assertEquals(time("2015-10-01T00:00:00.000Z"), NoteRanges.getPreviousRangeStart(start));
+        assertEquals(start, NoteRanges.getRangeStart(start + 1));
+        assertEquals(time("2015-10-01T00:00:00.000Z"), NoteRanges.getRangeStart(start - 1));
+    }
+
+    @Test
+    public void steppingBackGivesTheSameRanges() throws Exception {
+        // Wherever we start from, the ranges before it are the same, so their URLs are too
+        long start = NoteRanges.getRangeStart(time("2016-02-10T08:00:00.000Z"));
+        long other = NoteRanges.getRangeStart(time("2016-03-31T23:59:59.999Z"));
+        for (int i = 0; i < 12; i++) {
+            start = NoteRanges.getPreviousRangeStart(start);
+            other = NoteRanges.getPreviousRangeStart(other);
+            assertEquals(start, other);
+            assertTrue(NoteRanges.isRange(start, NoteRanges.getRangeEnd(start)));
+        }
+    }
+
+    @Test
+    public void otherSpansAreNotRanges() throws Exception {
+        long start = time("2015-10-01T00:00:00.000Z");
+        long end = time("2016-01-01T00:00:00.000Z");
+        assertTrue(NoteRanges.isRange(start, end));
+        assertFalse(NoteRanges.isRange(start + 1, end));
+        assertFalse(NoteRanges.isRange(start, end - 1));
+        assertFalse(NoteRanges.isRange(start, time("2016-04-01T00:00:00.000Z")));
+    }
+
+    private static long time(String text) throws ParseException {
+        return DateCodec.parse(text);
+    }
+}
@@ -0,0 +1,95 @@
+package io.tidepool.urchin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import io.tidepool.urchin.util.Trace;
+
+public class TraceTest {
+    @Before
+    public void setUp() {
+        Trace.clear();
+        Trace.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        Trace.setEnabled(false);
+        Trace.clear();
+    }
+
+    @Test
+    public void recordsNothingWhenDisabled() {
+        Trace.setEnabled(false);
+        Trace.begin("span");
+        Trace.end();
+        assertEquals(0, Trace.beginAsync("async"));
+        Trace.instant("instant");
+        assertEquals(0, Trace.size());
+    }
+
+    @Test
+    public void asyncSpansEndOnAnotherThread() throws Exception {
+        final int id = Trace.beginAsync("request");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Trace.endAsync(id);
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // Ending it again does nothing
+        Trace.endAsync(id);
+        assertEquals(2, Trace.size());
+    }
+
+    @Test
+    public void writesChromeTraceJson() throws Exception {
+        Trace.begin("outer \"quoted\"");
+        Trace.instant("step");
+        Trace.end();
+        int id = Trace.beginAsync("request");
+        Trace.endAsync(id);
+
+        StringWriter out = new StringWriter();
+        Trace.writeJson(out);
+        JsonArray events = new JsonParser().parse(out.toString()).getAsJsonObject().getAsJsonArray("traceEvents");
+
+        // The thread's name first, then the events in order
+        assertEquals("M", event(events, 0).get("ph").getAsString());
+        assertEquals(Thread.currentThread().getName(),
+                event(events, 0).getAsJsonObject("args").get("name").getAsString());
+        String[] phases = {"B", "i", "E", "b", "e"};
+        for (int i = 0; i < phases.length; i++) {
+            assertEquals(phases[i], event(events, i + 1).get("ph").getAsString());
+        }
+        assertEquals("outer \"quoted\"", event(events, 1).get("name").getAsString());
+        assertEquals(id, event(events, 4).get("id").getAsInt());
+        assertEquals(id, event(events, 5).get("id").getAsInt());
+        assertTrue(event(events, 5).get("ts").getAsLong() >= event(events, 1).get("ts").getAsLong());
+    }
+
+    @Test
+    public void keepsTheLatestEvents() {
+        for (int i = 0; i < Trace.MAX_EVENTS + 10; i++) {
+            Trace.instant("event" + i);
+        }
+        assertEquals(Trace.MAX_EVENTS, Trace.size());
+    }
+
+    private static JsonObject event(JsonArray events, int i) {
+        return events.get(i).getAsJsonObject();
+    }
+}